@@ -0,0 +1,80 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import org.jebtk.math.matrix.DataFrame;
+
+/**
+ * The annotation cells of a contiguous range of rows. Each worker writes to
+ * its own block and the blocks are copied into the result matrix in row
+ * order. Cells are either text, numbers, {@link FeatureText} whose text is
+ * built when it is drawn or written out, or null if nothing should be set.
+ * Feature text is copied into the matrix as it is, so the matrix only holds
+ * the ids of the features of each cell.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class AnnotationBlock {
+  private final int mStart;
+  private final int mRows;
+  private final int mCols;
+  private final Object[] mCells;
+
+  public AnnotationBlock(int start, int rows, int cols) {
+    mStart = start;
+    mRows = rows;
+    mCols = cols;
+    mCells = new Object[rows * cols];
+  }
+
+  /**
+   * The index of the first row of the block in the matrix.
+   * 
+   * @return
+   */
+  public int getStart() {
+    return mStart;
+  }
+
+  public int getRows() {
+    return mRows;
+  }
+
+  public int getCols() {
+    return mCols;
+  }
+
+  public void set(int row, int col, Object v) {
+    mCells[row * mCols + col] = v;
+  }
+
+  public Object get(int row, int col) {
+    return mCells[row * mCols + col];
+  }
+
+  /**
+   * Copy the cells into a matrix.
+   * 
+   * @param m
+   * @param colOffset The matrix column of the first block column.
+   */
+  public void copyTo(DataFrame m, int colOffset) {
+    for (int i = 0; i < mRows; ++i) {
+      for (int j = 0; j < mCols; ++j) {
+        set(m, mStart + i, colOffset + j, get(i, j));
+      }
+    }
+  }
+
+  private static void set(DataFrame m, int r, int c, Object v) {
+    if (v instanceof Integer) {
+      m.set(r, c, ((Integer) v).intValue());
+    } else if (v instanceof Number) {
+      m.set(r, c, ((Number) v).doubleValue());
+    } else if (v instanceof FeatureText) {
+      // The matrix renders the cell with toString when it is needed
+      m.set(r, c, v);
+    } else if (v != null) {
+      m.set(r, c, v.toString());
+    }
+  }
+}
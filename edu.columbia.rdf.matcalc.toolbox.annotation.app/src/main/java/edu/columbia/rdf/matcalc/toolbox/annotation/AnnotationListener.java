@@ -0,0 +1,34 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+/**
+ * Receives progress while tracks are loaded and rows annotated, and lets the
+ * annotation be cancelled part way through. Methods may be called from
+ * worker threads.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public interface AnnotationListener {
+  /**
+   * Called when a track has been loaded and indexed.
+   * 
+   * @param track
+   */
+  public void trackLoaded(TrackIndex track);
+
+  /**
+   * Called when a block of rows has been annotated. Blocks may complete in
+   * any order.
+   * 
+   * @param block
+   */
+  public void blockAnnotated(AnnotationBlock block);
+
+  /**
+   * Returns true if the annotation should stop. Work already in progress
+   * finishes but nothing new is started.
+   * 
+   * @return
+   */
+  public boolean isCancelled();
+}
@@ -0,0 +1,225 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide memo of the cells annotated for each region, kept for each
+ * version of a track and set of options. Running an annotation again after
+ * editing a few rows or adding a track only has to annotate the regions and
+ * tracks that are new; everything else is copied from the memo.
+ *
+ * <p>Cells are stored as text, numbers or null rather than as
+ * {@link FeatureText}, which would keep its track in memory after the track
+ * cache has dropped it.
+ *
+ * <p>Tables are evicted, least recently used first, once the memo holds more
+ * than annotation.memo.max-rows rows in total. An annotation whose rows
+ * would not fit in the memo on their own is not remembered at all. A
+ * setting of 0 turns the memo off.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class AnnotationMemo {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(AnnotationMemo.class);
+
+  private static class AnnotationMemoLoader {
+    private static final AnnotationMemo INSTANCE = new AnnotationMemo();
+  }
+
+  public static AnnotationMemo getInstance() {
+    return AnnotationMemoLoader.INSTANCE;
+  }
+
+  /**
+   * Tables in access order so that the first entry is the least recently
+   * used.
+   */
+  private final Map<MemoKey, Map<RegionKey, Object[]>> mTables = new LinkedHashMap<MemoKey, Map<RegionKey, Object[]>>(
+      16, 0.75f, true);
+
+  private long mMaxRows;
+
+  private AnnotationMemo() {
+    mMaxRows = AnnotationSettings.getInt(AnnotationSettings.MEMO_MAX_ROWS,
+        1000000);
+  }
+
+  /**
+   * Returns the table of cells for a track and options, creating it if
+   * necessary. The table can be read and written by several threads.
+   *
+   * @param track
+   * @param options
+   * @param closestMode
+   * @return The table, or null if the memo is off or the track does not
+   *         know which file it came from.
+   */
+  public synchronized Map<RegionKey, Object[]> getTable(TrackIndex track,
+      TrackOptions options,
+      boolean closestMode) {
+    TrackKey key = track.getKey();
+
+    if (mMaxRows < 1 || key == null) {
+      return null;
+    }
+
+    MemoKey memoKey = new MemoKey(key, options, closestMode);
+
+    Map<RegionKey, Object[]> table = mTables.get(memoKey);
+
+    if (table == null) {
+      // Tables of older versions of the track can never be used again
+      Iterator<MemoKey> iter = mTables.keySet().iterator();
+
+      while (iter.hasNext()) {
+        TrackKey k = iter.next().mTrack;
+
+        if (k.getFile().equals(key.getFile()) && !k.equals(key)) {
+          iter.remove();
+        }
+      }
+
+      table = new ConcurrentHashMap<RegionKey, Object[]>();
+
+      mTables.put(memoKey, table);
+    }
+
+    return table;
+  }
+
+  /**
+   * Returns whether an annotation adding a number of rows to the memo can
+   * be remembered without going over budget.
+   *
+   * @param rows
+   * @return
+   */
+  public synchronized boolean fits(long rows) {
+    return rows <= mMaxRows;
+  }
+
+  /**
+   * Evict least recently used tables until the memo is within budget, which
+   * may leave it empty.
+   */
+  public synchronized void trim() {
+    long rows = getRows();
+
+    Iterator<Entry<MemoKey, Map<RegionKey, Object[]>>> iter = mTables
+        .entrySet().iterator();
+
+    while (rows > mMaxRows && iter.hasNext()) {
+      Entry<MemoKey, Map<RegionKey, Object[]>> e = iter.next();
+
+      LOG.info("Evicting annotation memo of {}", e.getKey().mTrack);
+
+      rows -= e.getValue().size();
+      iter.remove();
+    }
+  }
+
+  /**
+   * Returns the number of rows held across all of the tables.
+   *
+   * @return
+   */
+  public synchronized long getRows() {
+    long rows = 0;
+
+    for (Map<RegionKey, Object[]> table : mTables.values()) {
+      rows += table.size();
+    }
+
+    return rows;
+  }
+
+  public synchronized void setMaxRows(long rows) {
+    mMaxRows = rows;
+
+    if (rows < 1) {
+      clear();
+    } else {
+      trim();
+    }
+  }
+
+  public synchronized void clear() {
+    mTables.clear();
+  }
+
+  /**
+   * A region used to look up its cells. Chromosomes are normalized so that
+   * chr1 and 1 are the same region, as they are when querying a track.
+   */
+  public static class RegionKey {
+    private final String mChr;
+    private final int mStart;
+    private final int mEnd;
+
+    public RegionKey(String chr, int start, int end) {
+      mChr = TrackIndex.normalizeChr(chr);
+      mStart = start;
+      mEnd = end;
+    }
+
+    @Override
+    public int hashCode() {
+      return (mChr.hashCode() * 31 + mStart) * 31 + mEnd;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RegionKey)) {
+        return false;
+      }
+
+      RegionKey k = (RegionKey) o;
+
+      return mStart == k.mStart && mEnd == k.mEnd && mChr.equals(k.mChr);
+    }
+  }
+
+  /**
+   * Identifies a table by the track version, options and mode it was
+   * annotated with.
+   */
+  private static class MemoKey {
+    private final TrackKey mTrack;
+    private final TrackOptions mOptions;
+    private final boolean mClosestMode;
+
+    public MemoKey(TrackKey track, TrackOptions options,
+        boolean closestMode) {
+      mTrack = track;
+      mOptions = options;
+      mClosestMode = closestMode;
+    }
+
+    @Override
+    public int hashCode() {
+      return (mTrack.hashCode() * 31 + mOptions.hashCode()) * 31
+          + (mClosestMode ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof MemoKey)) {
+        return false;
+      }
+
+      MemoKey k = (MemoKey) o;
+
+      return mClosestMode == k.mClosestMode && mTrack.equals(k.mTrack)
+          && mOptions.equals(k.mOptions);
+    }
+  }
+}
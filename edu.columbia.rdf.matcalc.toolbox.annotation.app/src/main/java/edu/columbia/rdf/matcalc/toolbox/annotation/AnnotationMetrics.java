@@ -0,0 +1,267 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Where the time of one annotation run went. Loading is broken down for each
+ * track into decompressing, parsing and indexing, or just mapping if the
+ * index already existed. Querying is timed for each track across all of the
+ * threads that annotate, so it may exceed the elapsed time of the run. Times
+ * are in nanoseconds.
+ *
+ * <p>Memory used outside of the heap by the tracks, in direct buffers and
+ * mapped index files, is reported alongside the peak heap. The peak is the
+ * most heap in use when sampled, which happens as each step of the run and
+ * each block of rows is recorded, so short spikes between samples are
+ * missed. Nothing global is reset, so runs at the same time do not affect
+ * each other.
+ *
+ * <p>Call {@link #finish()} once the output has been written to log a summary
+ * and add the run to the totals in {@link AnnotationStats}.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class AnnotationMetrics {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(AnnotationMetrics.class);
+
+  private static final MemoryMXBean MEMORY = ManagementFactory
+      .getMemoryMXBean();
+
+  private List<TrackIndex> mTracks = Collections.emptyList();
+
+  /**
+   * How each track was loaded, or null if the track was already loaded by a
+   * previous run.
+   */
+  private TrackLoadMetrics[] mLoads = new TrackLoadMetrics[0];
+
+  private long[] mQueryTimes = new long[0];
+  private long[] mHits = new long[0];
+
+  private final long mStart;
+  private long mTime = 0;
+  private long mRows = 0;
+  private long mRegionTime = 0;
+  private long mFormatTime = 0;
+  private long mPeakHeap = 0;
+  private long mOffHeap = 0;
+
+  /**
+   * Start timing a run. Create the metrics before loading the tracks so
+   * that loading is included in the elapsed time and peak heap.
+   */
+  public AnnotationMetrics() {
+    mStart = System.nanoTime();
+
+    sampleHeap();
+  }
+
+  /**
+   * Set the tracks annotated with. Tracks loaded by this run are counted
+   * with how long they took to load.
+   *
+   * @param tracks
+   */
+  public synchronized void setTracks(List<TrackIndex> tracks) {
+    mTracks = tracks;
+    mLoads = new TrackLoadMetrics[tracks.size()];
+    mQueryTimes = new long[tracks.size()];
+    mHits = new long[tracks.size()];
+    mOffHeap = 0;
+
+    for (int t = 0; t < mLoads.length; ++t) {
+      mOffHeap += tracks.get(t).getOffHeapSize();
+
+      TrackLoadMetrics load = tracks.get(t).getLoadMetrics();
+
+      if (load.claim()) {
+        mLoads[t] = load;
+      }
+    }
+
+    sampleHeap();
+  }
+
+  /**
+   * Add the time spent finding the regions to annotate.
+   *
+   * @param time
+   */
+  public synchronized void addRegionTime(long time) {
+    mRegionTime += time;
+
+    sampleHeap();
+  }
+
+  /**
+   * Add the time spent writing the annotation out.
+   *
+   * @param time
+   */
+  public synchronized void addFormatTime(long time) {
+    mFormatTime += time;
+
+    sampleHeap();
+  }
+
+  /**
+   * Add the rows annotated by a block.
+   *
+   * @param rows
+   */
+  public synchronized void addRows(long rows) {
+    mRows += rows;
+
+    sampleHeap();
+  }
+
+  /**
+   * Add the time spent querying a track and the number of features found.
+   *
+   * @param track The index of the track.
+   * @param time
+   * @param hits
+   */
+  public synchronized void addQuery(int track, long time, long hits) {
+    mQueryTimes[track] += time;
+    mHits[track] += hits;
+  }
+
+  /**
+   * Record the elapsed time and peak heap, log a summary of the run and add
+   * it to the totals.
+   */
+  public void finish() {
+    synchronized (this) {
+      mTime = System.nanoTime() - mStart;
+
+      sampleHeap();
+    }
+
+    String summary = toString();
+
+    LOG.info(summary);
+
+    AnnotationStats.getInstance().add(this, summary);
+  }
+
+  /**
+   * Keep the heap in use now if it is the most seen so far. Must be called
+   * holding the lock.
+   */
+  private void sampleHeap() {
+    mPeakHeap = Math.max(mPeakHeap, MEMORY.getHeapMemoryUsage().getUsed());
+  }
+
+  public synchronized int getTrackCount() {
+    return mTracks.size();
+  }
+
+  public synchronized long getTime() {
+    return mTime;
+  }
+
+  public synchronized long getRows() {
+    return mRows;
+  }
+
+  public synchronized long getRegionTime() {
+    return mRegionTime;
+  }
+
+  public synchronized long getFormatTime() {
+    return mFormatTime;
+  }
+
+  /**
+   * Returns the most heap in bytes seen in use during the run.
+   *
+   * @return
+   */
+  public synchronized long getPeakHeap() {
+    return mPeakHeap;
+  }
+
+  /**
+   * Returns the bytes the tracks hold outside of the heap.
+   *
+   * @return
+   */
+  public synchronized long getOffHeap() {
+    return mOffHeap;
+  }
+
+  /**
+   * Returns how a track was loaded or null if it was loaded before this run.
+   *
+   * @param track
+   * @return
+   */
+  public synchronized TrackLoadMetrics getLoad(int track) {
+    return mLoads[track];
+  }
+
+  public synchronized long getQueryTime(int track) {
+    return mQueryTimes[track];
+  }
+
+  public synchronized long getHits(int track) {
+    return mHits[track];
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder buffer = new StringBuilder();
+
+    buffer.append("Annotated ").append(mRows).append(" rows with ")
+        .append(mTracks.size()).append(" tracks in ").append(ms(mTime))
+        .append(" ms (regions ").append(ms(mRegionTime))
+        .append(" ms, format ").append(ms(mFormatTime))
+        .append(" ms, peak heap ").append(mb(mPeakHeap))
+        .append(" MB, off-heap ").append(mb(mOffHeap)).append(" MB)");
+
+    for (int t = 0; t < mTracks.size(); ++t) {
+      buffer.append("\n  ").append(mTracks.get(t).getName()).append(": ");
+
+      TrackLoadMetrics load = mLoads[t];
+
+      if (load == null) {
+        buffer.append("cached");
+      } else if (load.getBuilt()) {
+        buffer.append("decompress ").append(ms(load.getDecompressTime()))
+            .append(" ms, parse ").append(ms(load.getParseTime()))
+            .append(" ms, index ").append(ms(load.getIndexTime()))
+            .append(" ms, map ").append(ms(load.getMapTime()))
+            .append(" ms, read ").append(load.getBytesRead())
+            .append(" bytes");
+      } else {
+        buffer.append("map ").append(ms(load.getMapTime())).append(" ms");
+      }
+
+      buffer.append(", query ").append(ms(mQueryTimes[t]))
+          .append(" ms, hits/row ")
+          .append(String.format("%.2f",
+              mRows > 0 ? mHits[t] / (double) mRows : 0))
+          .append(", off-heap ")
+          .append(mb(mTracks.get(t).getOffHeapSize())).append(" MB");
+    }
+
+    return buffer.toString();
+  }
+
+  private static long ms(long nanos) {
+    return nanos / 1000000;
+  }
+
+  private static long mb(long bytes) {
+    return bytes / 1048576;
+  }
+}
@@ -29,33 +29,14 @@ package edu.columbia.rdf.matcalc.toolbox.annotation;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.text.ParseException;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-
-import org.jebtk.bioinformatics.ext.ucsc.Bed;
-import org.jebtk.bioinformatics.ext.ucsc.BedElement;
-import org.jebtk.bioinformatics.ext.ucsc.UCSCTrack;
-import org.jebtk.bioinformatics.gapsearch.GapSearch;
-import org.jebtk.bioinformatics.genomic.Chromosome;
+
 import org.jebtk.bioinformatics.genomic.Genome;
-import org.jebtk.bioinformatics.genomic.ChromosomeService;
-import org.jebtk.bioinformatics.genomic.GenomicElement;
-import org.jebtk.bioinformatics.genomic.GenomicRegion;
-import org.jebtk.bioinformatics.genomic.GenomicRegions;
-import org.jebtk.bioinformatics.genomic.GenomicType;
 import org.jebtk.core.Mathematics;
 import org.jebtk.core.cli.ArgParser;
 import org.jebtk.core.cli.Args;
-import org.jebtk.core.collections.CollectionUtils;
-import org.jebtk.core.collections.UniqueArrayList;
-import org.jebtk.core.io.FileUtils;
-import org.jebtk.core.io.PathUtils;
 import org.jebtk.core.text.Splitter;
-import org.jebtk.core.text.TextUtils;
 import org.jebtk.math.matrix.DataFrame;
 import org.jebtk.modern.AssetService;
 import org.jebtk.modern.button.ModernButton;
@@ -84,9 +65,6 @@ public class AnnotationModule extends Module {
   private static final Logger LOG = LoggerFactory
       .getLogger(AnnotationModule.class);
 
-  private static final Path RES_FOLDER = PathUtils
-      .getPath("res/modules/annotation");
-
   private static final Args ARGS = new Args();
 
   static {
@@ -98,9 +76,7 @@ public class AnnotationModule extends Module {
    */
   private MainMatCalcWindow mWindow;
 
-  private Map<String, Path> mBedFileMap = new TreeMap<String, Path>();
-
-  private Map<String, Map<String, String>> mDescriptionMap = new TreeMap<String, Map<String, String>>();
+  private TrackCatalog mCatalog = new TrackCatalog();
 
   /*
    * (non-Javadoc)
@@ -123,11 +99,7 @@ public class AnnotationModule extends Module {
       mWindow.getRibbon().changeTab("Annotation");
     }
 
-    try {
-      annotate();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    annotate();
   }
 
   /*
@@ -142,7 +114,10 @@ public class AnnotationModule extends Module {
     mWindow = window;
 
     try {
-      load();
+      // Use the cached track headers so that startup does not have to open
+      // every track, then check for changed tracks in the background
+      mCatalog = TrackCatalog.loadCached(TrackCatalog.RES_FOLDER);
+      mCatalog.refresh(TrackCatalog.RES_FOLDER);
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -159,11 +134,7 @@ public class AnnotationModule extends Module {
     button.addClickListener(new ModernClickListener() {
       @Override
       public void clicked(ModernClickEvent e) {
-        try {
-          annotate();
-        } catch (IOException e1) {
-          e1.printStackTrace();
-        }
+        annotate();
       }
     });
 
@@ -181,89 +152,44 @@ public class AnnotationModule extends Module {
         segmentSize();
       }
     });
-  }
-
-  private void load() throws IOException {
-    if (!FileUtils.exists(RES_FOLDER)) {
-      return;
-    }
-
-    for (Path file : FileUtils.ls(RES_FOLDER)) {
-      if (PathUtils.getName(file).contains("bed.gz")) {
-
-        String name = null;
 
-        try {
-          name = UCSCTrack.getNameFromTrack(file);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    button = new RibbonLargeButton("Enrichment",
+        AssetService.getInstance().loadIcon(AnnotationIcon.class, 32),
+        AssetService.getInstance().loadIcon(AnnotationIcon.class, 24));
 
-        mBedFileMap.put(name, file);
+    button.setToolTip(new ModernToolTip("Enrichment",
+        "Test whether regions overlap each track more than by chance."));
+    button.setClickMessage("Enrichment");
+    mWindow.getRibbon().getToolbar("Bioinformatics").getSection("Annotation")
+        .add(button);
 
-        try {
-          mDescriptionMap.put(name, UCSCTrack.getTrackAttributes(file));
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    button.addClickListener(new ModernClickListener() {
+      @Override
+      public void clicked(ModernClickEvent e) {
+        enrichment();
       }
-    }
+    });
   }
 
   /**
    * Analysis.
-   * 
-   * @throws ParseException
-   * @throws IOException
-   * @throws Exception
    */
-  private void annotate() throws IOException {
+  private void annotate() {
     Genome genome = Genome.HG19;
 
     DataFrame m = mWindow.getCurrentMatrix();
 
-    // first find a location column
-    int locationColumn = DataFrame.findColumn(m, "location", "region");
-
-    if (locationColumn != -1) {
-
-      if (m.getRows() > 1) {
-        if (!GenomicRegion.isGenomicRegion(m.getText(0, locationColumn))
-            && !GenomicRegion.isGenomicRegion(m.getText(1, locationColumn))) {
-          // If the column does not appear to contain coordinates
-          locationColumn = -1;
-        }
-      } else if (m.getRows() == 1) {
-        if (!GenomicRegion.isGenomicRegion(m.getText(0, locationColumn))) {
-          // If the column does not appear to contain coordinates
-          locationColumn = -1;
-        }
-      } else {
-        locationColumn = -1;
-      }
-    }
-
-    int chrCol = -1;
-    int startCol = -1;
-    int endCol = -1;
+    RegionColumns columns = RegionColumns.find(m);
 
-    if (locationColumn == -1) {
-      // No location column so see if separate chr, start and end exist
-
-      chrCol = DataFrame.findColumn(m, "chr");
-      startCol = DataFrame.findColumn(m, "start");
-      endCol = DataFrame.findColumn(m, "end");
-    }
-
-    if (locationColumn == -1 && chrCol == -1) {
+    if (columns == null) {
       ModernMessageDialog.createWarningDialog(mWindow,
           "The matrix does not appear to contain genomic coordinates.");
 
       return;
     }
 
-    AnnotationDialog dialog = new AnnotationDialog(mWindow, mBedFileMap,
-        mDescriptionMap);
+    AnnotationDialog dialog = new AnnotationDialog(mWindow,
+        mCatalog.getFiles(), mCatalog.getAttributes());
 
     dialog.setVisible(true);
 
@@ -271,274 +197,64 @@ public class AnnotationModule extends Module {
       return;
     }
 
-    // How many new columns to add
-    int newColCount = m.getCols();
+    List<Path> files = new ArrayList<Path>();
+    List<TrackOptions> options = new ArrayList<TrackOptions>();
 
     for (AnnotationPanel panel : dialog.getPanels()) {
       if (!panel.getAddFeatures()) {
         continue;
       }
 
-      if (panel.getAddAll()) {
-        ++newColCount;
-      }
-
-      if (panel.getCondense()) {
-        ++newColCount;
-      }
-
-      if (panel.getAddCount()) {
-        ++newColCount;
-      }
-
-      if (panel.getAddFirstN()) {
-        ++newColCount;
-      }
+      files.add(mCatalog.getFile(panel.getName()));
+      options.add(new TrackOptions(panel));
     }
 
-    DataFrame ret = DataFrame.createDataFrame(m.getRows(), newColCount);
-
-    DataFrame.copy(m, ret);
-
-    // Add some annotation
-
-    int c = m.getCols();
-
-    for (AnnotationPanel panel : dialog.getPanels()) {
-      if (!panel.getAddFeatures()) {
-        continue;
-      }
-
-      if (panel.getAddCount()) {
-        ret.setColumnName(c++, "num." + panel.getName());
-      }
-
-      if (panel.getAddFirstN()) {
-        ret.setColumnName(c++,
-            "first." + panel.getFirstNCount() + "." + panel.getName());
-      }
-
-      if (panel.getCondense()) {
-        ret.setColumnName(c++, "condensed." + panel.getName());
-      }
-
-      if (panel.getAddAll()) {
-        ret.setColumnName(c++, panel.getName());
-      }
-    }
-
-    // Load the bed files
-
-    Map<String, UCSCTrack> bedMap = new HashMap<String, UCSCTrack>();
-
-    for (AnnotationPanel panel : dialog.getPanels()) {
-      if (!panel.getAddFeatures()) {
-        continue;
-      }
-
-      LOG.info("Loading BED {}", mBedFileMap.get(panel.getName()));
-
-      bedMap.put(panel.getName(),
-          Bed.parseTrack(GenomicType.REGION, mBedFileMap.get(panel.getName())));
-    }
-
-    // Now for the annotation
-
-    LOG.info("Annotating...");
-
-    Chromosome chr;
-    int start;
-    int end;
-
-    Map<UCSCTrack, GapSearch<GenomicElement>> gapMap = new HashMap<UCSCTrack, GapSearch<GenomicElement>>();
-
-    UCSCTrack track;
-    GapSearch<GenomicElement> gapSearch;
-
-    for (int r = 0; r < m.getRows(); ++r) {
-      GenomicRegion region;
-
-      if (locationColumn != -1) {
-        String t = m.getText(r, locationColumn);
-
-        // Empty location so skip
-        if (t == null) {
-          continue;
-        }
+    // Annotate in the background so that the window remains responsive
+    new AnnotationWorker(mWindow, m, genome, columns, files, options,
+        dialog.getClosestMode(), AnnotationSettings.getThreads()).start();
+  }
 
-        region = GenomicRegion.parse(genome, t);
-      } else {
-        chr = ChromosomeService.getInstance().chr(genome, m.getText(r, chrCol));
-        start = (int) m.getValue(r, startCol);
-        end = (int) m.getValue(r, endCol);
+  /**
+   * Test the regions for enrichment against every installed track.
+   */
+  private void enrichment() {
+    Genome genome = Genome.HG19;
 
-        region = new GenomicRegion(chr, start, end);
-      }
+    DataFrame m = mWindow.getCurrentMatrix();
 
-      if (region == null) {
-        continue;
-      }
+    RegionColumns columns = RegionColumns.find(m);
 
-      c = m.getCols();
+    if (columns == null) {
+      ModernMessageDialog.createWarningDialog(mWindow,
+          "The matrix does not appear to contain genomic coordinates.");
 
-      for (AnnotationPanel panel : dialog.getPanels()) {
-        if (!panel.getAddFeatures()) {
-          continue;
-        }
-
-        track = bedMap.get(panel.getName());
-
-        // Find all features
-
-        // Create a searchable index
-        if (!gapMap.containsKey(track)) {
-
-          LOG.info("Searching {} ...", track.getName());
-
-          /*
-           * if (dialog.getClosestMode()) { gapSearch =
-           * GenomicRegions.getFixedGapSearch(track.getRegions()); } else {
-           * gapSearch = GenomicRegions.getBinarySearch(track.getRegions()); }
-           */
-
-          // System.err.println(track.getElements().toList().size());
-
-          gapSearch = GenomicRegions
-              .getBinarySearch(track.getElements());
-
-          LOG.info("Index built: {} elements", gapSearch.size());
-          gapMap.put(track, gapSearch);
-        }
-
-        gapSearch = gapMap.get(track);
-
-        List<GenomicElement> regions = gapSearch.getValues(region);
-
-        List<String> ids = new UniqueArrayList<String>();
-
-        if (!dialog.getClosestMode()) {
-          // Everything that overlaps
-          for (GenomicRegion tr : regions) {
-            if (GenomicRegion.overlaps(tr, region)) {
-
-              if (panel.getAddLocations()) {
-                ids.add(tr.getLocation());
-              } else {
-                ids.add(getSymbol(((BedElement) tr).getName()));
-              }
-            }
-          }
-        } else {
-          for (GenomicRegion tr : regions) {
-            if (panel.getAddLocations()) {
-              ids.add(tr.getLocation());
-            } else {
-              ids.add(getSymbol(((BedElement) tr).getName()));
-            }
-          }
-        }
-
-        if (panel.getAddAlphabetical()) {
-          Collections.sort(ids);
-        }
-
-        if (panel.getAddCount()) {
-          ret.set(r, c++, ids.size());
-        }
-
-        if (panel.getAddFirstN()) {
-          ret.set(r,
-              c++,
-              TextUtils
-                  .scJoin(CollectionUtils.head(ids, panel.getFirstNCount())));
-        }
-
-        if (panel.getCondense()) {
-          if (ids.size() > 0) {
-
-            String v1 = ids.get(0);
-            String v2 = ids.get(ids.size() - 1);
-
-            if (panel.getAddLocations()) {
-              // In locations mode we want to report the minimum and
-              // maximum coordinates that we find so reparse the
-              // coordinates and get the extreme start and end
-              v1 = Integer.toString(GenomicRegion.parse(genome, v1).getStart());
-
-              v2 = Integer.toString(GenomicRegion.parse(genome, v2).getEnd());
-            }
-
-            // If items at the extremes of the list are the same, there
-            // is no point adding dashes
-            if (v1.equals(v2)) {
-              ret.set(r, c, v1);
-            } else {
-              ret.set(r, c, v1 + "--" + v2);
-            }
-          }
-
-          ++c;
-        }
-
-        if (panel.getAddAll()) {
-          ret.set(r, c++, TextUtils.scJoin(ids));
-        }
-      }
+      return;
     }
 
-    mWindow.history().addToHistory("Annotated", ret);
+    new EnrichmentWorker(mWindow, m, genome, columns,
+        new ArrayList<Path>(mCatalog.getFiles().values()),
+        AnnotationSettings.getThreads()).start();
   }
 
   /**
    * Add the segment size.
-   * 
-   * @throws ParseException
    */
   private void segmentSize() {
     Genome genome = Genome.HG19;
 
     DataFrame m = mWindow.getCurrentMatrix();
 
-    // first find a location column
-    int locationColumn = DataFrame.findColumn(m, "location");
-
-    if (locationColumn != -1) {
-
-      if (m.getRows() > 1) {
-        if (!GenomicRegion.isGenomicRegion(m.getText(0, locationColumn))
-            && !GenomicRegion.isGenomicRegion(m.getText(1, locationColumn))) {
-          // If the column does not appear to contain coordinates
-          locationColumn = -1;
-        }
-      } else if (m.getRows() == 1) {
-        if (!GenomicRegion.isGenomicRegion(m.getText(0, locationColumn))) {
-          // If the column does not appear to contain coordinates
-          locationColumn = -1;
-        }
-      } else {
-        locationColumn = -1;
-      }
-    }
+    RegionColumns columns = RegionColumns.find(m);
 
-    int chrCol = -1;
-    int startCol = -1;
-    int endCol = -1;
-
-    if (locationColumn == -1) {
-      // No location column so see if separate chr, start and end exist
-
-      chrCol = DataFrame.findColumn(m, "chr");
-      startCol = DataFrame.findColumn(m, "start");
-      endCol = DataFrame.findColumn(m, "end");
-    }
-
-    if (locationColumn == -1 && chrCol == -1) {
+    if (columns == null) {
       ModernMessageDialog.createWarningDialog(mWindow,
           "The matrix does not appear to contain genomic coordinates.");
 
       return;
     }
 
+    RegionList regions = RegionList.parse(m, genome, columns);
+
     DataFrame ret = DataFrame.createDataFrame(m.getRows(), m.getCols() + 1);
 
     DataFrame.copy(m, ret);
@@ -547,37 +263,14 @@ public class AnnotationModule extends Module {
 
     // Now for the annotation
 
-    Chromosome chr;
-    int start;
-    int end;
-
     for (int r = 0; r < m.getRows(); ++r) {
-      GenomicRegion region;
-
-      if (locationColumn != -1) {
-        String t = m.getText(r, locationColumn);
-
-        // Empty location so skip
-        if (t == null) {
-          continue;
-        }
-
-        region = GenomicRegion.parse(genome, t);
-      } else {
-        chr = ChromosomeService.getInstance().chr(genome, m.getText(r, chrCol));
-        start = (int) m.getValue(r, startCol);
-        end = (int) m.getValue(r, endCol);
-
-        region = new GenomicRegion(chr, start, end);
-      }
-
-      if (region == null) {
+      if (!regions.isValid(r)) {
         continue;
       }
 
       ret.set(r,
           m.getCols(),
-          Mathematics.round((double) region.getLength() / 1000, 2));
+          Mathematics.round((double) regions.getLength(r) / 1000, 2));
     }
 
     mWindow.history().addToHistory("Segment size", ret);
@@ -36,8 +36,26 @@ public class AnnotationPanel extends VBox {
 
   private ModernCheckBox mCheckCount = new ModernCheckBox("Count");
 
+  /*
+   * Count every overlapping feature rather than distinct features
+   */
+  private ModernCheckBox mCheckOverlapCount = new ModernCheckBox(
+      "Overlap count");
+
   private ModernCheckBox mCheckFirstNFeatures = new ModernCheckBox("First");
 
+  private ModernCheckBox mCheckNearest = new ModernCheckBox("Nearest");
+
+  /*
+   * Report the signed distance to the nearest features
+   */
+  private ModernCheckBox mCheckDistance = new ModernCheckBox("Distance");
+
+  /*
+   * Report the extent of the overlapping features as numbers
+   */
+  private ModernCheckBox mCheckBounds = new ModernCheckBox("Bounds");
+
   /*
    * Report the locations rather than the features themselves
    */
@@ -47,6 +65,8 @@ public class AnnotationPanel extends VBox {
 
   private ModernComboBox mFirstCombo = new ModernComboBox();
 
+  private ModernComboBox mNearestCombo = new ModernComboBox();
+
   private String mName;
 
   private static final String ROOT_SETTING = "biomatcalc.modules.annotation.";
@@ -88,6 +108,10 @@ public class AnnotationPanel extends VBox {
     rBox.add(mCheckAlphabetical);
     rBox.add(ModernWidget.createVGap());
     rBox.add(mCheckCount);
+    rBox.add(ModernWidget.createVGap());
+    rBox.add(mCheckOverlapCount);
+    rBox.add(ModernWidget.createVGap());
+    rBox.add(mCheckBounds);
 
     cBox.add(rBox);
     cBox.add(UI.createHGap(20));
@@ -108,6 +132,22 @@ public class AnnotationPanel extends VBox {
 
     rBox.add(ModernWidget.createVGap());
 
+    box2 = HBox.create();
+
+    box2.add(mCheckNearest);
+    UI.setSize(mNearestCombo, FIRST_COMBO_SIZE);
+    box2.add(mNearestCombo);
+    box2.add(UI.createHGap(10));
+    box2.add(new ModernAutoSizeLabel("features"));
+
+    rBox.add(box2);
+
+    rBox.add(ModernWidget.createVGap());
+
+    rBox.add(mCheckDistance);
+
+    rBox.add(ModernWidget.createVGap());
+
     rBox.add(mCheckLocations);
 
     rBox.add(ModernWidget.createVGap());
@@ -127,6 +167,12 @@ public class AnnotationPanel extends VBox {
     mFirstCombo.addMenuItem("50");
     mFirstCombo.addMenuItem("100");
 
+    mNearestCombo.addMenuItem("1");
+    mNearestCombo.addMenuItem("2");
+    mNearestCombo.addMenuItem("3");
+    mNearestCombo.addMenuItem("5");
+    mNearestCombo.addMenuItem("10");
+
     /*
      * mCheckEnabled.addClickListener(new ModernClickListener() {
      * 
@@ -141,7 +187,11 @@ public class AnnotationPanel extends VBox {
     setup("all", mCheckAll);
     setup("alphabetical", mCheckAlphabetical);
     setup("count", mCheckCount);
+    setup("overlap_count", mCheckOverlapCount);
     setup("first_n", mCheckFirstNFeatures);
+    setup("nearest", mCheckNearest);
+    setup("distance", mCheckDistance);
+    setup("bounds", mCheckBounds);
     setup("condense", mCheckCondense);
     setup("locations", mCheckLocations);
   }
@@ -183,10 +233,30 @@ public class AnnotationPanel extends VBox {
     return mCheckCount.isSelected();
   }
 
+  public boolean getAddOverlapCount() {
+    return mCheckOverlapCount.isSelected();
+  }
+
   public boolean getAddFirstN() {
     return mCheckFirstNFeatures.isSelected();
   }
 
+  public boolean getAddNearest() {
+    return mCheckNearest.isSelected();
+  }
+
+  public boolean getAddDistance() {
+    return mCheckDistance.isSelected();
+  }
+
+  public boolean getAddBounds() {
+    return mCheckBounds.isSelected();
+  }
+
+  public int getNearestCount() {
+    return TextUtils.parseInt(mNearestCombo.getText());
+  }
+
   public boolean getAddLocations() {
     return mCheckLocations.isSelected();
   }
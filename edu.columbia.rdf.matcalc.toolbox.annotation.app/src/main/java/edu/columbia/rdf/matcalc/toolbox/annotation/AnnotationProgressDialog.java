@@ -0,0 +1,266 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.List;
+
+import javax.swing.Box;
+import javax.swing.JProgressBar;
+import javax.swing.JTable;
+import javax.swing.SwingWorker;
+import javax.swing.WindowConstants;
+import javax.swing.table.AbstractTableModel;
+
+import org.jebtk.modern.ModernComponent;
+import org.jebtk.modern.ModernWidget;
+import org.jebtk.modern.UI;
+import org.jebtk.modern.button.ModernButton;
+import org.jebtk.modern.dialog.ModernDialogWindow;
+import org.jebtk.modern.event.ModernClickEvent;
+import org.jebtk.modern.event.ModernClickListener;
+import org.jebtk.modern.panel.HBox;
+import org.jebtk.modern.panel.VBox;
+import org.jebtk.modern.scrollpane.ModernScrollPane;
+import org.jebtk.modern.text.ModernAutoSizeLabel;
+import org.jebtk.modern.window.ModernWindow;
+
+/**
+ * Shows the progress of a background annotation with a button to cancel it.
+ * Optionally shows rows as they are annotated. All methods must be called on
+ * the Swing thread.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class AnnotationProgressDialog extends ModernDialogWindow {
+  private static final long serialVersionUID = 1L;
+
+  private final JProgressBar mProgress = new JProgressBar();
+
+  private final ModernAutoSizeLabel mStatus = new ModernAutoSizeLabel(
+      "Loading tracks...");
+
+  private final ModernButton mCancelButton = new ModernButton("Cancel");
+
+  private final ModernComponent mContent = new ModernComponent();
+
+  private final SwingWorker<?, ?> mWorker;
+
+  private final int mTracks;
+  private int mLoadedTracks = 0;
+  private int mRows = 0;
+  private int mAnnotatedRows = 0;
+
+  private boolean mShowRows;
+  private RowsModel mRowsModel;
+
+  /**
+   * Table of the rows annotated so far. Rows that have not been annotated
+   * yet are blank.
+   * 
+   * <p>The rows are shown here rather than in the grid because the grid
+   * shows matrices from the history, and a result is only added to the
+   * history once it is complete so that a cancelled annotation leaves no
+   * partly annotated matrix behind. The table reads the blocks as they
+   * are, so showing them does not copy any cells.
+   */
+  private static class RowsModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private final RegionList mRegions;
+    private final List<String> mColumnNames;
+    private final AnnotationBlock[] mBlocks;
+
+    public RowsModel(RegionList regions, List<String> columnNames) {
+      mRegions = regions;
+      mColumnNames = columnNames;
+      mBlocks = new AnnotationBlock[(regions.size()
+          + RegionAnnotator.BLOCK_SIZE - 1) / RegionAnnotator.BLOCK_SIZE];
+    }
+
+    public void add(AnnotationBlock block) {
+      mBlocks[block.getStart() / RegionAnnotator.BLOCK_SIZE] = block;
+
+      fireTableRowsUpdated(block.getStart(),
+          block.getStart() + block.getRows() - 1);
+    }
+
+    @Override
+    public int getRowCount() {
+      return mRegions.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+      return mColumnNames.size() + 1;
+    }
+
+    @Override
+    public String getColumnName(int c) {
+      return c == 0 ? "Location" : mColumnNames.get(c - 1);
+    }
+
+    @Override
+    public Object getValueAt(int r, int c) {
+      if (c == 0) {
+        if (mRegions.isValid(r)) {
+          return mRegions.getChr(r) + ":" + mRegions.getStart(r) + "-"
+              + mRegions.getEnd(r);
+        } else {
+          return null;
+        }
+      }
+
+      AnnotationBlock block = mBlocks[r / RegionAnnotator.BLOCK_SIZE];
+
+      if (block != null) {
+        return block.get(r - block.getStart(), c - 1);
+      } else {
+        return null;
+      }
+    }
+  }
+
+  public AnnotationProgressDialog(ModernWindow parent,
+      SwingWorker<?, ?> worker, int tracks, boolean showRows) {
+    super(parent);
+
+    mWorker = worker;
+    mTracks = tracks;
+    mShowRows = showRows;
+
+    setTitle("Annotating");
+
+    createUi();
+
+    setup();
+  }
+
+  private void setup() {
+    mCancelButton.addClickListener(new ModernClickListener() {
+      @Override
+      public void clicked(ModernClickEvent e) {
+        cancel();
+      }
+    });
+
+    setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+
+    addWindowListener(new WindowAdapter() {
+      @Override
+      public void windowClosing(WindowEvent e) {
+        cancel();
+      }
+    });
+
+    setResizable(mShowRows);
+
+    setSize(480, mShowRows ? 480 : 160);
+
+    UI.centerWindowToScreen(this);
+  }
+
+  private final void createUi() {
+    mProgress.setIndeterminate(true);
+
+    Box box = VBox.create();
+
+    box.add(mStatus);
+    box.add(UI.createVGap(10));
+    box.add(mProgress);
+    box.add(UI.createVGap(10));
+
+    Box buttons = HBox.create();
+
+    buttons.add(Box.createHorizontalGlue());
+    buttons.add(mCancelButton);
+
+    box.add(buttons);
+
+    mContent.setHeader(box);
+    mContent.setBorder(ModernWidget.BORDER);
+
+    setBody(mContent);
+  }
+
+  /**
+   * Ask the worker to stop. The dialog stays open until the worker has
+   * stopped annotating and disposes it.
+   */
+  private void cancel() {
+    if (!mCancelButton.isEnabled()) {
+      return;
+    }
+
+    mStatus.setText("Cancelling...");
+    mCancelButton.setEnabled(false);
+
+    mWorker.cancel(false);
+  }
+
+  /**
+   * Show a message in place of the progress so far.
+   * 
+   * @param status
+   */
+  public void setStatus(String status) {
+    mStatus.setText(status);
+  }
+
+  /**
+   * Set whether to show rows as they are annotated. Must be called before
+   * {@link #startRows}.
+   * 
+   * @param showRows
+   */
+  public void setShowRows(boolean showRows) {
+    mShowRows = showRows;
+  }
+
+  public void trackLoaded(TrackIndex track) {
+    ++mLoadedTracks;
+
+    mStatus.setText("Loaded " + track.getName() + " (" + mLoadedTracks
+        + " of " + mTracks + ")");
+  }
+
+  /**
+   * Called once the tracks have been loaded and the rows are about to be
+   * annotated.
+   * 
+   * @param regions
+   * @param columnNames
+   */
+  public void startRows(RegionList regions, List<String> columnNames) {
+    mRows = regions.size();
+
+    mProgress.setIndeterminate(false);
+    mProgress.setMaximum(Math.max(1, mRows));
+    mProgress.setValue(0);
+
+    mStatus.setText("Annotating " + mRows + " rows...");
+
+    if (mShowRows) {
+      mRowsModel = new RowsModel(regions, columnNames);
+
+      mContent.setBody(new ModernScrollPane(new JTable(mRowsModel)));
+
+      mContent.revalidate();
+    }
+  }
+
+  public void blockAnnotated(AnnotationBlock block) {
+    mAnnotatedRows += block.getRows();
+
+    mProgress.setValue(mAnnotatedRows);
+
+    if (mCancelButton.isEnabled()) {
+      mStatus.setText(
+          "Annotated " + mAnnotatedRows + " of " + mRows + " rows...");
+    }
+
+    if (mRowsModel != null) {
+      mRowsModel.add(block);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import org.jebtk.core.settings.Setting;
+import org.jebtk.core.settings.SettingsService;
+
+/**
+ * Names and defaults of the settings used by the annotation module.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class AnnotationSettings {
+  /**
+   * Maximum estimated memory, in megabytes, that cached tracks may occupy
+   * on the heap or in direct buffers. Mapped index files are not counted.
+   */
+  public static final String CACHE_MAX_SIZE_MB = "annotation.cache.max-size-mb";
+
+  /**
+   * Number of threads used to load tracks and annotate rows. 0 means use all
+   * processors.
+   */
+  public static final String THREADS = "annotation.threads";
+
+  /**
+   * How far, in bp, from a region to look for the nearest features. 0 means
+   * no limit.
+   */
+  public static final String NEAREST_MAX_DISTANCE = "annotation.nearest.max-distance";
+
+  /**
+   * If the regions are on at most this many chromosomes and a track has not
+   * been indexed, only those chromosomes are read from the track.
+   */
+  public static final String LOAD_MAX_CHRS = "annotation.load.max-chrs";
+
+  /**
+   * If there are at most this many regions and a BGZF track has not been
+   * indexed, only the blocks of the track overlapping the regions are read.
+   */
+  public static final String LOAD_MAX_REGIONS = "annotation.load.max-regions";
+
+  /**
+   * Whether an index built in memory is held in a direct buffer rather than
+   * on the heap.
+   */
+  public static final String LOAD_OFF_HEAP = "annotation.load.off-heap";
+
+  /**
+   * Most rows of annotation to remember so that running an annotation again
+   * only annotates new regions and tracks. 0 turns the memo off.
+   */
+  public static final String MEMO_MAX_ROWS = "annotation.memo.max-rows";
+
+  /**
+   * Fewest tracks needing their overlapping features for them to be queried
+   * together through one fused index. 0 turns fusing off.
+   */
+  public static final String FUSED_MIN_TRACKS = "annotation.fused.min-tracks";
+
+  /**
+   * How many times regions are shuffled when testing for enrichment.
+   */
+  public static final String ENRICHMENT_PERMUTATIONS = "annotation.enrichment.permutations";
+
+  /**
+   * Whether shuffled regions avoid the gaps in gaps.bed.
+   */
+  public static final String ENRICHMENT_EXCLUDE_GAPS = "annotation.enrichment.exclude-gaps";
+
+  /**
+   * Seed of the shuffles so that a test can be repeated exactly.
+   */
+  public static final String ENRICHMENT_SEED = "annotation.enrichment.seed";
+
+  /**
+   * Inputs with more rows than this are annotated a chunk of this many rows
+   * at a time, with finished chunks written to a temporary file rather than
+   * held in memory. The memo is not used and only rows within a chunk share
+   * cells. This bounds memory while annotating but not the finished result,
+   * which is assembled from the file. 0 turns chunking off.
+   */
+  public static final String CHUNK_ROWS = "annotation.chunk.rows";
+
+  /**
+   * Heap use in MB above which cached tracks not used by a chunked
+   * annotation are dropped. 0 means three quarters of the maximum heap.
+   */
+  public static final String MEMORY_BUDGET_MB = "annotation.memory.budget-mb";
+
+  /**
+   * Whether to show rows as they are annotated.
+   */
+  public static final String SHOW_PROGRESS_ROWS = "annotation.progress.show-rows";
+
+  private AnnotationSettings() {
+    // Do nothing
+  }
+
+  /**
+   * Return an integer setting or a default value if it has not been set.
+   * 
+   * @param name
+   * @param defaultValue
+   * @return
+   */
+  public static int getInt(String name, int defaultValue) {
+    Setting setting = SettingsService.getInstance().getSetting(name);
+
+    if (setting != null) {
+      return setting.getInt();
+    } else {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the number of threads to annotate with. A setting of 0 or less
+   * means use all available processors.
+   * 
+   * @return
+   */
+  public static int getThreads() {
+    int threads = getInt(THREADS, 0);
+
+    if (threads < 1) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    return threads;
+  }
+
+  /**
+   * Return a boolean setting or a default value if it has not been set.
+   * 
+   * @param name
+   * @param defaultValue
+   * @return
+   */
+  public static boolean getBool(String name, boolean defaultValue) {
+    Setting setting = SettingsService.getInstance().getSetting(name);
+
+    if (setting != null) {
+      return setting.getBool();
+    } else {
+      return defaultValue;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jebtk.math.matrix.DataFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A temporary file holding annotated blocks so that a large annotation does
+ * not have to keep every cell in memory until the result is assembled. Each
+ * block is written column by column with a type tag per cell, so numbers
+ * stay numbers. Feature text is written as its ids, with the tracks and
+ * chromosomes they refer to kept in memory, so that it is still only built
+ * when it is drawn or written out.
+ *
+ * <p>Blocks must be written in row order. The file is deleted when the
+ * spill is closed.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class AnnotationSpill implements Closeable {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(AnnotationSpill.class);
+
+  private static final int NULL = 0;
+  private static final int INT = 1;
+  private static final int DOUBLE = 2;
+  private static final int TEXT = 3;
+  private static final int SYMBOLS = 4;
+  private static final int LOCATIONS = 5;
+
+  private final Path mFile;
+  private final int mCols;
+  private final DataOutputStream mOut;
+  private int mBlocks = 0;
+
+  /**
+   * The tracks and chromosomes that feature text refers to, by the id that
+   * is written in its place.
+   */
+  private final List<Object> mSources = new ArrayList<Object>();
+  private final Map<Object, Integer> mSourceIds = new IdentityHashMap<Object, Integer>();
+
+  /**
+   * Create an empty spill in the temporary folder.
+   *
+   * @param cols The number of columns of each block.
+   * @throws IOException
+   */
+  public AnnotationSpill(int cols) throws IOException {
+    mCols = cols;
+    mFile = Files.createTempFile("matcalc-annotation", ".spill");
+    mOut = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(mFile)));
+  }
+
+  /**
+   * Add the next block of rows.
+   *
+   * @param block
+   * @throws IOException
+   */
+  public void write(AnnotationBlock block) throws IOException {
+    mOut.writeInt(block.getStart());
+    mOut.writeInt(block.getRows());
+
+    for (int j = 0; j < mCols; ++j) {
+      for (int i = 0; i < block.getRows(); ++i) {
+        Object v = block.get(i, j);
+
+        if (v == null) {
+          mOut.writeByte(NULL);
+        } else if (v instanceof Integer) {
+          mOut.writeByte(INT);
+          mOut.writeInt((Integer) v);
+        } else if (v instanceof Number) {
+          mOut.writeByte(DOUBLE);
+          mOut.writeDouble(((Number) v).doubleValue());
+        } else if (v instanceof FeatureText) {
+          write((FeatureText) v);
+        } else {
+          // writeUTF is limited to 64K, which a list of every feature can
+          // exceed
+          byte[] bytes = v.toString().getBytes(StandardCharsets.UTF_8);
+
+          mOut.writeByte(TEXT);
+          mOut.writeInt(bytes.length);
+          mOut.write(bytes);
+        }
+      }
+    }
+
+    ++mBlocks;
+  }
+
+  private void write(FeatureText text) throws IOException {
+    Object source = text.getChr() != null ? text.getChr() : text.getTrack();
+
+    Integer id = mSourceIds.get(source);
+
+    if (id == null) {
+      id = mSources.size();
+      mSources.add(source);
+      mSourceIds.put(source, id);
+    }
+
+    mOut.writeByte(text.getChr() != null ? LOCATIONS : SYMBOLS);
+    mOut.writeInt(id);
+    mOut.writeInt(text.size());
+
+    for (int i : text.getIds()) {
+      mOut.writeInt(i);
+    }
+  }
+
+  /**
+   * Copy the cells of every block into a matrix, reading one block at a
+   * time.
+   *
+   * @param m
+   * @param colOffset The matrix column of the first block column.
+   * @throws IOException
+   */
+  public void copyTo(DataFrame m, int colOffset) throws IOException {
+    mOut.flush();
+
+    LOG.info("Reading {} blocks ({} MB) from {}",
+        mBlocks,
+        Files.size(mFile) / 1024 / 1024,
+        mFile);
+
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(mFile)));
+
+    try {
+      for (int b = 0; b < mBlocks; ++b) {
+        AnnotationBlock block = new AnnotationBlock(in.readInt(),
+            in.readInt(), mCols);
+
+        for (int j = 0; j < mCols; ++j) {
+          for (int i = 0; i < block.getRows(); ++i) {
+            block.set(i, j, read(in));
+          }
+        }
+
+        block.copyTo(m, colOffset);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private Object read(DataInputStream in) throws IOException {
+    int type = in.readByte();
+
+    if (type == INT) {
+      return in.readInt();
+    } else if (type == DOUBLE) {
+      return in.readDouble();
+    } else if (type == TEXT) {
+      byte[] bytes = new byte[in.readInt()];
+
+      in.readFully(bytes);
+
+      return new String(bytes, StandardCharsets.UTF_8);
+    } else if (type == SYMBOLS || type == LOCATIONS) {
+      Object source = mSources.get(in.readInt());
+
+      int[] ids = new int[in.readInt()];
+
+      for (int i = 0; i < ids.length; ++i) {
+        ids[i] = in.readInt();
+      }
+
+      if (type == LOCATIONS) {
+        return new FeatureText((ChrIndex) source, ids);
+      } else {
+        return new FeatureText((TrackIndex) source, ids);
+      }
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the number of blocks written.
+   *
+   * @return
+   */
+  public int getBlockCount() {
+    return mBlocks;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      mOut.close();
+    } finally {
+      Files.deleteIfExists(mFile);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Totals of the metrics of every annotation run, registered with the
+ * platform MBean server so that they can be watched with JConsole or any
+ * other JMX client.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class AnnotationStats implements AnnotationStatsMBean {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(AnnotationStats.class);
+
+  public static final String OBJECT_NAME = "edu.columbia.rdf.matcalc.toolbox.annotation:type=AnnotationStats";
+
+  private static class AnnotationStatsLoader {
+    private static final AnnotationStats INSTANCE = new AnnotationStats();
+  }
+
+  public static AnnotationStats getInstance() {
+    return AnnotationStatsLoader.INSTANCE;
+  }
+
+  private long mRuns;
+  private long mRows;
+  private long mTime;
+  private long mRegionTime;
+  private long mQueryTime;
+  private long mFormatTime;
+  private long mTracksBuilt;
+  private long mTracksMapped;
+  private long mDecompressTime;
+  private long mParseTime;
+  private long mIndexTime;
+  private long mMapTime;
+  private long mBytesRead;
+  private long mHits;
+  private long mPeakHeap;
+  private long mLastRunTime;
+  private long mLastRunRows;
+  private long mLastRunPeakHeap;
+  private long mPeakOffHeap;
+  private long mLastRunOffHeap;
+  private String mLastRunSummary = "";
+
+  private AnnotationStats() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    try {
+      ObjectName name = new ObjectName(OBJECT_NAME);
+
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (JMException e) {
+      LOG.info("Cannot register {}: {}", OBJECT_NAME, e.getMessage());
+    }
+  }
+
+  /**
+   * Add a finished run to the totals.
+   *
+   * @param metrics
+   * @param summary
+   */
+  public synchronized void add(AnnotationMetrics metrics, String summary) {
+    ++mRuns;
+    mRows += metrics.getRows();
+    mTime += ms(metrics.getTime());
+    mRegionTime += ms(metrics.getRegionTime());
+    mFormatTime += ms(metrics.getFormatTime());
+
+    for (int t = 0; t < metrics.getTrackCount(); ++t) {
+      mQueryTime += ms(metrics.getQueryTime(t));
+      mHits += metrics.getHits(t);
+
+      TrackLoadMetrics load = metrics.getLoad(t);
+
+      if (load == null) {
+        continue;
+      }
+
+      if (load.getBuilt()) {
+        ++mTracksBuilt;
+        mDecompressTime += ms(load.getDecompressTime());
+        mParseTime += ms(load.getParseTime());
+        mIndexTime += ms(load.getIndexTime());
+        mBytesRead += load.getBytesRead();
+      } else {
+        ++mTracksMapped;
+      }
+
+      mMapTime += ms(load.getMapTime());
+    }
+
+    mPeakHeap = Math.max(mPeakHeap, metrics.getPeakHeap());
+    mLastRunTime = ms(metrics.getTime());
+    mLastRunRows = metrics.getRows();
+    mLastRunPeakHeap = metrics.getPeakHeap();
+    mPeakOffHeap = Math.max(mPeakOffHeap, metrics.getOffHeap());
+    mLastRunOffHeap = metrics.getOffHeap();
+    mLastRunSummary = summary;
+  }
+
+  @Override
+  public synchronized long getRuns() {
+    return mRuns;
+  }
+
+  @Override
+  public synchronized long getRows() {
+    return mRows;
+  }
+
+  @Override
+  public synchronized long getTime() {
+    return mTime;
+  }
+
+  @Override
+  public synchronized long getRegionTime() {
+    return mRegionTime;
+  }
+
+  @Override
+  public synchronized long getQueryTime() {
+    return mQueryTime;
+  }
+
+  @Override
+  public synchronized long getFormatTime() {
+    return mFormatTime;
+  }
+
+  @Override
+  public synchronized long getTracksBuilt() {
+    return mTracksBuilt;
+  }
+
+  @Override
+  public synchronized long getTracksMapped() {
+    return mTracksMapped;
+  }
+
+  @Override
+  public synchronized long getDecompressTime() {
+    return mDecompressTime;
+  }
+
+  @Override
+  public synchronized long getParseTime() {
+    return mParseTime;
+  }
+
+  @Override
+  public synchronized long getIndexTime() {
+    return mIndexTime;
+  }
+
+  @Override
+  public synchronized long getMapTime() {
+    return mMapTime;
+  }
+
+  @Override
+  public synchronized long getBytesRead() {
+    return mBytesRead;
+  }
+
+  @Override
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  @Override
+  public synchronized double getHitsPerRow() {
+    return mRows > 0 ? mHits / (double) mRows : 0;
+  }
+
+  @Override
+  public synchronized long getPeakHeap() {
+    return mPeakHeap;
+  }
+
+  @Override
+  public synchronized long getLastRunTime() {
+    return mLastRunTime;
+  }
+
+  @Override
+  public synchronized long getLastRunRows() {
+    return mLastRunRows;
+  }
+
+  @Override
+  public synchronized long getLastRunPeakHeap() {
+    return mLastRunPeakHeap;
+  }
+
+  @Override
+  public synchronized long getPeakOffHeap() {
+    return mPeakOffHeap;
+  }
+
+  @Override
+  public synchronized long getLastRunOffHeap() {
+    return mLastRunOffHeap;
+  }
+
+  @Override
+  public synchronized String getLastRunSummary() {
+    return mLastRunSummary;
+  }
+
+  @Override
+  public synchronized void reset() {
+    mRuns = 0;
+    mRows = 0;
+    mTime = 0;
+    mRegionTime = 0;
+    mQueryTime = 0;
+    mFormatTime = 0;
+    mTracksBuilt = 0;
+    mTracksMapped = 0;
+    mDecompressTime = 0;
+    mParseTime = 0;
+    mIndexTime = 0;
+    mMapTime = 0;
+    mBytesRead = 0;
+    mHits = 0;
+    mPeakHeap = 0;
+    mPeakOffHeap = 0;
+  }
+
+  private static long ms(long nanos) {
+    return nanos / 1000000;
+  }
+}
@@ -0,0 +1,75 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+/**
+ * JMX view of the annotation runs made since startup. Times are in
+ * milliseconds.
+ *
+ * @author Antony Holmes
+ *
+ */
+public interface AnnotationStatsMBean {
+  public long getRuns();
+
+  public long getRows();
+
+  public long getTime();
+
+  public long getRegionTime();
+
+  public long getQueryTime();
+
+  public long getFormatTime();
+
+  public long getTracksBuilt();
+
+  public long getTracksMapped();
+
+  public long getDecompressTime();
+
+  public long getParseTime();
+
+  public long getIndexTime();
+
+  public long getMapTime();
+
+  public long getBytesRead();
+
+  public long getHits();
+
+  public double getHitsPerRow();
+
+  /**
+   * Returns the largest peak heap of any run in bytes.
+   *
+   * @return
+   */
+  public long getPeakHeap();
+
+  public long getLastRunTime();
+
+  public long getLastRunRows();
+
+  public long getLastRunPeakHeap();
+
+  /**
+   * Returns the largest number of bytes the tracks of any run held outside
+   * of the heap, in direct buffers and mapped index files.
+   *
+   * @return
+   */
+  public long getPeakOffHeap();
+
+  public long getLastRunOffHeap();
+
+  /**
+   * Returns the summary logged at the end of the last run.
+   *
+   * @return
+   */
+  public String getLastRunSummary();
+
+  /**
+   * Clear the totals.
+   */
+  public void reset();
+}
@@ -0,0 +1,317 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.math.matrix.DataFrame;
+import org.jebtk.modern.dialog.ModernMessageDialog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.columbia.rdf.matcalc.MainMatCalcWindow;
+
+/**
+ * Loads tracks and annotates a matrix in the background so that the window
+ * stays responsive. The result is only added to the history if the
+ * annotation completes without being cancelled.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class AnnotationWorker extends SwingWorker<DataFrame, Void>
+    implements AnnotationListener {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(AnnotationWorker.class);
+
+  private final MainMatCalcWindow mWindow;
+  private final DataFrame mM;
+  private final Genome mGenome;
+  private final RegionColumns mColumns;
+  private final List<Path> mFiles;
+  private final List<TrackOptions> mOptions;
+  private final boolean mClosestMode;
+  private final int mThreads;
+
+  private final AnnotationProgressDialog mDialog;
+
+  public AnnotationWorker(MainMatCalcWindow window, DataFrame m,
+      Genome genome, RegionColumns columns, List<Path> files,
+      List<TrackOptions> options, boolean closestMode, int threads) {
+    mWindow = window;
+    mM = m;
+    mGenome = genome;
+    mColumns = columns;
+    mFiles = files;
+    mOptions = options;
+    mClosestMode = closestMode;
+    mThreads = threads;
+
+    mDialog = new AnnotationProgressDialog(window, this, files.size(),
+        AnnotationSettings.getBool(AnnotationSettings.SHOW_PROGRESS_ROWS,
+            true));
+  }
+
+  /**
+   * Show the progress dialog and start annotating.
+   */
+  public void start() {
+    execute();
+
+    mDialog.setVisible(true);
+  }
+
+  @Override
+  protected DataFrame doInBackground() throws Exception {
+    try {
+      return annotate();
+    } finally {
+      // A cancelled worker is done as soon as it is cancelled, so the dialog
+      // is only closed once the annotation has really stopped. The dialog
+      // is modal so another annotation cannot start until then.
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          mDialog.dispose();
+        }
+      });
+    }
+  }
+
+  /**
+   * Load the tracks and annotate the matrix.
+   * 
+   * @return The annotated matrix, or null if the annotation was cancelled.
+   * @throws IOException
+   */
+  private DataFrame annotate() throws IOException {
+    AnnotationMetrics metrics = new AnnotationMetrics();
+
+    // Find the regions first so that tracks that have not been indexed only
+    // need to be read for the chromosomes the regions are on
+    long time = System.nanoTime();
+
+    final RegionList regions = RegionList.parse(mM, mGenome, mColumns);
+
+    metrics.addRegionTime(System.nanoTime() - time);
+
+    // Load the bed files and their indexes, reusing any that were loaded
+    // by previous annotations. All of the tracks are loaded up front so that
+    // they are indexed in parallel rather than one at a time
+    List<TrackIndex> tracks = TrackCache.getInstance().getTracks(mFiles,
+        regions.getChrs(),
+        getNeedsNearest() ? null : regions,
+        mThreads,
+        this);
+
+    LOG.info("Track cache {}", TrackCache.getInstance());
+
+    if (tracks == null) {
+      return null;
+    }
+
+    metrics.setTracks(tracks);
+
+    final RegionAnnotator annotator = new RegionAnnotator(tracks, mOptions,
+        mClosestMode);
+
+    annotator.setMetrics(metrics);
+
+    int chunkRows = AnnotationSettings.getInt(AnnotationSettings.CHUNK_ROWS,
+        1048576);
+
+    // Very large inputs are annotated in chunks that are spilled to disk
+    // rather than held in memory while annotating
+    final boolean chunked = chunkRows > 0 && regions.size() > chunkRows;
+
+    if (!chunked) {
+      // Rows and tracks annotated by an earlier run are copied rather than
+      // annotated again. Chunked inputs are too large to remember.
+      annotator.setMemo(AnnotationMemo.getInstance());
+    }
+
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        if (chunked) {
+          // The rows shown would keep every block in memory
+          mDialog.setShowRows(false);
+        }
+
+        mDialog.startRows(regions, annotator.getColumnNames());
+      }
+    });
+
+    // Now for the annotation
+
+    LOG.info("Annotating using {} threads...", mThreads);
+
+    if (chunked) {
+      return annotateChunks(regions, annotator, chunkRows, metrics);
+    }
+
+    AnnotationBlock[] blocks = annotator.annotate(regions, mThreads, this);
+
+    if (isCancelled()) {
+      return null;
+    }
+
+    time = System.nanoTime();
+
+    DataFrame ret = createResult(annotator);
+
+    for (AnnotationBlock block : blocks) {
+      block.copyTo(ret, mM.getCols());
+    }
+
+    metrics.addFormatTime(System.nanoTime() - time);
+
+    metrics.finish();
+
+    return ret;
+  }
+
+  /**
+   * Annotate a chunk of rows at a time, spilling each chunk to disk, then
+   * read the chunks back into the result. Only one chunk of cells is held
+   * while annotating, but the result itself holds every row once it is
+   * assembled.
+   * 
+   * @param regions
+   * @param annotator
+   * @param chunkRows
+   * @param metrics
+   * @return
+   * @throws IOException
+   */
+  private DataFrame annotateChunks(RegionList regions,
+      RegionAnnotator annotator,
+      int chunkRows,
+      AnnotationMetrics metrics) throws IOException {
+    LOG.info("Annotating {} rows in chunks of {}", regions.size(), chunkRows);
+
+    long budget = AnnotationSettings
+        .getInt(AnnotationSettings.MEMORY_BUDGET_MB, 0) * 1024L * 1024L;
+
+    if (budget < 1) {
+      budget = Runtime.getRuntime().maxMemory() / 4 * 3;
+    }
+
+    annotator.setMemoryBudget(budget);
+
+    AnnotationSpill spill = new AnnotationSpill(annotator.getColumnCount());
+
+    try {
+      if (!annotator.annotate(regions, mThreads, chunkRows, spill, this)) {
+        return null;
+      }
+
+      long time = System.nanoTime();
+
+      DataFrame ret = createResult(annotator);
+
+      spill.copyTo(ret, mM.getCols());
+
+      metrics.addFormatTime(System.nanoTime() - time);
+
+      metrics.finish();
+
+      return ret;
+    } finally {
+      spill.close();
+    }
+  }
+
+  /**
+   * Create the result with a copy of the matrix and the names of the new
+   * columns.
+   * 
+   * @param annotator
+   * @return
+   */
+  private DataFrame createResult(RegionAnnotator annotator) {
+    DataFrame ret = DataFrame.createDataFrame(mM.getRows(),
+        mM.getCols() + annotator.getColumnCount());
+
+    DataFrame.copy(mM, ret);
+
+    // Add some annotation
+
+    int c = mM.getCols();
+
+    for (String name : annotator.getColumnNames()) {
+      ret.setColumnName(c++, name);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Whether any track needs features beyond those overlapping the regions.
+   * 
+   * @return
+   */
+  private boolean getNeedsNearest() {
+    if (mClosestMode) {
+      return true;
+    }
+
+    for (TrackOptions options : mOptions) {
+      if (options.getNeedsNearest()) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  protected void done() {
+    if (isCancelled()) {
+      LOG.info("Annotation cancelled.");
+
+      return;
+    }
+
+    try {
+      DataFrame ret = get();
+
+      if (ret != null) {
+        mWindow.history().addToHistory("Annotated", ret);
+      }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+
+      ModernMessageDialog.createWarningDialog(mWindow,
+          "The regions could not be annotated: "
+              + e.getCause().getMessage());
+    }
+  }
+
+  @Override
+  public void trackLoaded(final TrackIndex track) {
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        mDialog.trackLoaded(track);
+      }
+    });
+  }
+
+  @Override
+  public void blockAnnotated(final AnnotationBlock block) {
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        mDialog.blockAnnotated(block);
+      }
+    });
+  }
+}
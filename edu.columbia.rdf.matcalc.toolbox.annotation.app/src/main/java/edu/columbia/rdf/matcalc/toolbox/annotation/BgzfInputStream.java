@@ -0,0 +1,370 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file, the blocked gzip format used by tabix, with random
+ * access. A BGZF file is a series of gzip members of at most 64 KB each, so
+ * any block can be decompressed on its own. Positions are virtual offsets:
+ * the file offset of a block shifted left 16 bits plus the offset within
+ * the decompressed block.
+ *
+ * <p>Lines should be read with {@link #readLine()} rather than through a
+ * buffered reader so that {@link #getVirtualOffset()} stays exact.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class BgzfInputStream extends InputStream {
+  private static final int MAX_BLOCK_SIZE = 65536;
+
+  /**
+   * Fixed part of a gzip header up to and including the extra length.
+   */
+  private static final int HEADER_SIZE = 12;
+
+  private final FileChannel mChannel;
+  private final ByteBuffer mCompressed = ByteBuffer
+      .allocate(MAX_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final byte[] mBlock = new byte[MAX_BLOCK_SIZE];
+  private final Inflater mInflater = new Inflater(true);
+
+  private long mBlockAddress = 0;
+  private long mNextBlockAddress = 0;
+  private int mBlockLength = 0;
+  private int mPos = 0;
+
+  private byte[] mLine = new byte[256];
+
+  private long mCompressedBytes = 0;
+  private long mBytes = 0;
+  private long mTime = 0;
+
+  public BgzfInputStream(Path file) throws IOException {
+    mChannel = FileChannel.open(file, StandardOpenOption.READ);
+  }
+
+  /**
+   * Returns true if a file starts with a BGZF block rather than being plain
+   * gzip.
+   *
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static boolean isBgzf(Path file) throws IOException {
+    byte[] header = new byte[18];
+
+    InputStream in = Files.newInputStream(file);
+
+    try {
+      int n = 0;
+
+      while (n < header.length) {
+        int r = in.read(header, n, header.length - n);
+
+        if (r == -1) {
+          return false;
+        }
+
+        n += r;
+      }
+    } finally {
+      in.close();
+    }
+
+    return (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B
+        && header[2] == 8 && (header[3] & 4) != 0 && header[12] == 'B'
+        && header[13] == 'C';
+  }
+
+  /**
+   * Read and decompress the next non empty block.
+   *
+   * @return false if there are no more blocks.
+   * @throws IOException
+   */
+  private boolean readBlock() throws IOException {
+    while (true) {
+      mBlockAddress = mNextBlockAddress;
+      mBlockLength = 0;
+      mPos = 0;
+
+      mCompressed.clear();
+      mCompressed.limit(HEADER_SIZE);
+
+      if (!readFully(mBlockAddress)) {
+        return false;
+      }
+
+      if ((mCompressed.get(0) & 0xFF) != 0x1F
+          || (mCompressed.get(1) & 0xFF) != 0x8B
+          || (mCompressed.get(3) & 4) == 0) {
+        throw new IOException("Not a BGZF block at " + mBlockAddress);
+      }
+
+      int xlen = mCompressed.getShort(10) & 0xFFFF;
+
+      mCompressed.limit(HEADER_SIZE + xlen);
+
+      if (!readFully(mBlockAddress + HEADER_SIZE)) {
+        throw new IOException("Truncated BGZF block at " + mBlockAddress);
+      }
+
+      int size = blockSize(xlen);
+
+      mCompressed.limit(size);
+
+      if (!readFully(mBlockAddress + HEADER_SIZE + xlen)) {
+        throw new IOException("Truncated BGZF block at " + mBlockAddress);
+      }
+
+      int isize = mCompressed.getInt(size - 4);
+
+      long time = System.nanoTime();
+
+      mInflater.reset();
+      mInflater.setInput(mCompressed.array(),
+          HEADER_SIZE + xlen,
+          size - HEADER_SIZE - xlen - 8);
+
+      try {
+        int n = 0;
+
+        while (n < isize && !mInflater.finished()) {
+          int r = mInflater.inflate(mBlock, n, isize - n);
+
+          if (r == 0 && mInflater.needsInput()) {
+            break;
+          }
+
+          n += r;
+        }
+
+        if (n != isize) {
+          throw new IOException("Corrupt BGZF block at " + mBlockAddress);
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt BGZF block at " + mBlockAddress, e);
+      }
+
+      mTime += System.nanoTime() - time;
+      mCompressedBytes += size;
+      mBytes += isize;
+
+      mNextBlockAddress = mBlockAddress + size;
+      mBlockLength = isize;
+
+      // The last block of a file is empty
+      if (isize > 0) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Find the total size of a block from the BC subfield of its extra field.
+   *
+   * @param xlen
+   * @return
+   * @throws IOException
+   */
+  private int blockSize(int xlen) throws IOException {
+    int p = HEADER_SIZE;
+
+    while (p + 4 <= HEADER_SIZE + xlen) {
+      int length = mCompressed.getShort(p + 2) & 0xFFFF;
+
+      if (mCompressed.get(p) == 'B' && mCompressed.get(p + 1) == 'C'
+          && length == 2) {
+        return (mCompressed.getShort(p + 4) & 0xFFFF) + 1;
+      }
+
+      p += 4 + length;
+    }
+
+    throw new IOException("Not a BGZF block at " + mBlockAddress);
+  }
+
+  /**
+   * Fill the compressed buffer from its position to its limit.
+   *
+   * @param address Where in the file to read from.
+   * @return false if the end of the file was reached before anything was
+   *         read.
+   * @throws IOException
+   */
+  private boolean readFully(long address) throws IOException {
+    int start = mCompressed.position();
+
+    while (mCompressed.hasRemaining()) {
+      int r = mChannel.read(mCompressed,
+          address + mCompressed.position() - start);
+
+      if (r == -1) {
+        if (mCompressed.position() == start) {
+          return false;
+        }
+
+        throw new IOException("Truncated BGZF block at " + mBlockAddress);
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (mPos >= mBlockLength && !readBlock()) {
+      return -1;
+    }
+
+    return mBlock[mPos++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    if (mPos >= mBlockLength && !readBlock()) {
+      return -1;
+    }
+
+    int n = Math.min(len, mBlockLength - mPos);
+
+    System.arraycopy(mBlock, mPos, b, off, n);
+
+    mPos += n;
+
+    return n;
+  }
+
+  /**
+   * Read a line without its terminator.
+   *
+   * @return The line or null at the end of the file.
+   * @throws IOException
+   */
+  public String readLine() throws IOException {
+    int n = 0;
+
+    while (true) {
+      if (mPos >= mBlockLength && !readBlock()) {
+        if (n == 0) {
+          return null;
+        }
+
+        break;
+      }
+
+      int i = mPos;
+
+      while (i < mBlockLength && mBlock[i] != '\n') {
+        ++i;
+      }
+
+      int length = i - mPos;
+
+      if (n + length > mLine.length) {
+        mLine = Arrays.copyOf(mLine, Math.max(mLine.length * 2, n + length));
+      }
+
+      System.arraycopy(mBlock, mPos, mLine, n, length);
+
+      n += length;
+
+      if (i < mBlockLength) {
+        mPos = i + 1;
+
+        break;
+      }
+
+      mPos = i;
+    }
+
+    if (n > 0 && mLine[n - 1] == '\r') {
+      --n;
+    }
+
+    return new String(mLine, 0, n, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the virtual offset of the next byte to be read.
+   *
+   * @return
+   */
+  public long getVirtualOffset() {
+    if (mPos >= mBlockLength) {
+      return mNextBlockAddress << 16;
+    } else {
+      return (mBlockAddress << 16) | mPos;
+    }
+  }
+
+  /**
+   * Move to a virtual offset.
+   *
+   * @param offset
+   * @throws IOException
+   */
+  public void seek(long offset) throws IOException {
+    long address = offset >>> 16;
+
+    if (address != mBlockAddress || mBlockLength == 0) {
+      mNextBlockAddress = address;
+
+      if (!readBlock()) {
+        return;
+      }
+    }
+
+    mPos = (int) (offset & 0xFFFF);
+  }
+
+  /**
+   * Returns the number of compressed bytes read from the file.
+   *
+   * @return
+   */
+  public long getCompressedBytes() {
+    return mCompressedBytes;
+  }
+
+  /**
+   * Returns the number of bytes once decompressed.
+   *
+   * @return
+   */
+  public long getBytes() {
+    return mBytes;
+  }
+
+  /**
+   * Returns the time spent decompressing in nanoseconds.
+   *
+   * @return
+   */
+  public long getTime() {
+    return mTime;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mInflater.end();
+    mChannel.close();
+  }
+}
@@ -0,0 +1,128 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the BGZF blocked gzip format read by {@link BgzfInputStream} and
+ * tabix. Each block holds at most 64 KB of compressed data and the file
+ * ends with an empty block.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class BgzfOutputStream extends OutputStream {
+  /**
+   * Uncompressed bytes per block, chosen as in htslib so that even
+   * incompressible data fits in a block.
+   */
+  private static final int BLOCK_SIZE = 0xFF00;
+
+  private static final byte[] EOF = { 0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0,
+      (byte) 0xFF, 6, 0, 'B', 'C', 2, 0, 0x1B, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0,
+      0 };
+
+  private final OutputStream mOut;
+  private final byte[] mBuffer = new byte[BLOCK_SIZE];
+  private final byte[] mCompressed = new byte[65536];
+  private final Deflater mDeflater = new Deflater(
+      Deflater.DEFAULT_COMPRESSION, true);
+  private final CRC32 mCrc = new CRC32();
+  private int mSize = 0;
+
+  public BgzfOutputStream(OutputStream out) {
+    mOut = out;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (mSize == BLOCK_SIZE) {
+      writeBlock();
+    }
+
+    mBuffer[mSize++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (mSize == BLOCK_SIZE) {
+        writeBlock();
+      }
+
+      int n = Math.min(len, BLOCK_SIZE - mSize);
+
+      System.arraycopy(b, off, mBuffer, mSize, n);
+
+      mSize += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    mDeflater.reset();
+    mDeflater.setInput(mBuffer, 0, mSize);
+    mDeflater.finish();
+
+    // Leave room for the header and footer
+    int n = 0;
+
+    while (!mDeflater.finished()) {
+      n += mDeflater.deflate(mCompressed, n, mCompressed.length - 26 - n);
+
+      if (n >= mCompressed.length - 26) {
+        throw new IOException("BGZF block is too large");
+      }
+    }
+
+    mCrc.reset();
+    mCrc.update(mBuffer, 0, mSize);
+
+    int size = 18 + n + 8;
+
+    mOut.write(0x1F);
+    mOut.write(0x8B);
+    mOut.write(8);
+    mOut.write(4);
+    writeInt(0);
+    mOut.write(0);
+    mOut.write(0xFF);
+    writeShort(6);
+    mOut.write('B');
+    mOut.write('C');
+    writeShort(2);
+    writeShort(size - 1);
+    mOut.write(mCompressed, 0, n);
+    writeInt((int) mCrc.getValue());
+    writeInt(mSize);
+
+    mSize = 0;
+  }
+
+  private void writeShort(int v) throws IOException {
+    mOut.write(v & 0xFF);
+    mOut.write((v >>> 8) & 0xFF);
+  }
+
+  private void writeInt(int v) throws IOException {
+    writeShort(v & 0xFFFF);
+    writeShort(v >>> 16);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (mSize > 0) {
+        writeBlock();
+      }
+
+      mOut.write(EOF);
+    } finally {
+      mDeflater.end();
+      mOut.close();
+    }
+  }
+}
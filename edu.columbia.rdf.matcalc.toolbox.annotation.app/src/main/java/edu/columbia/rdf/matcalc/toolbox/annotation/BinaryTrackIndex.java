@@ -0,0 +1,1300 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import org.jebtk.bioinformatics.ext.ucsc.UCSCTrack;
+import org.jebtk.core.io.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the binary sidecar index of a BED track. The index is built
+ * once from the text track and rebuilt whenever the track's size or
+ * modification time changes. It is memory mapped so that loading a track
+ * costs almost nothing regardless of how many features it has.
+ * 
+ * <p>Layout (big endian):
+ * 
+ * <pre>
+ * int    magic
+ * int    version
+ * long   track size
+ * long   track modification time
+ * int    header length
+ * byte[] header: track name, attributes, and for each chromosome its name,
+ *        feature count and longest feature length
+ * int    name count
+ * int[]  name offsets (name count + 1)
+ * int    name bytes length
+ * byte[] UTF-8 names, padded to a multiple of 4
+ * int    symbol count
+ * int[]  symbol offsets (symbol count + 1)
+ * int    symbol bytes length
+ * byte[] UTF-8 symbols, padded to a multiple of 4
+ * int[]  alphabetical rank of each symbol
+ * int[]  symbol ids in alphabetical order
+ * int[]  symbol id of each name
+ * for each chromosome: int[] starts, int[] ends, int[] name ids,
+ *        int[] interval tree max ends, int[] ordinals sorted by end
+ * </pre>
+ * 
+ * Features are sorted by start and coordinates are stored 1-based. See
+ * ChrIndex for how the max ends are arranged.
+ * 
+ * <p>If a track has not been indexed yet and only a few chromosomes are
+ * needed, an index of just those chromosomes can be built in memory instead.
+ * It is not written out since it cannot answer queries on other chromosomes.
+ * If the track is BGZF compressed, its tabix index is used to decompress
+ * only the blocks holding those chromosomes, or, for a small number of
+ * regions, only the blocks overlapping the regions.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class BinaryTrackIndex {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(BinaryTrackIndex.class);
+
+  private static final int MAGIC = 0x4D434958;
+
+  public static final int VERSION = 4;
+
+  public static final String EXT = ".idx";
+
+  /**
+   * Where indexes are written if the track folder is read only.
+   */
+  private static final Path TMP_DIR = Paths
+      .get(System.getProperty("java.io.tmpdir"), "matcalc-annotation");
+
+  private BinaryTrackIndex() {
+    // Do nothing
+  }
+
+  /**
+   * Load the index of a track, building it first if it does not exist or is
+   * out of date.
+   * 
+   * @param track
+   * @return
+   * @throws IOException
+   */
+  public static TrackIndex load(Path track) throws IOException {
+    return load(track, null);
+  }
+
+  /**
+   * Load the index of a track. If there is no up to date index, only the
+   * features on the given chromosomes are read and indexed in memory.
+   * 
+   * @param track
+   * @param chrs The chromosomes needed, or null to index the whole track.
+   * @return
+   * @throws IOException
+   */
+  public static TrackIndex load(Path track, Collection<String> chrs)
+      throws IOException {
+    TrackKey key = TrackKey.create(track);
+
+    TrackLoadMetrics metrics = new TrackLoadMetrics();
+
+    Path file = findIndex(key);
+
+    if (file == null) {
+      if (chrs != null) {
+        return build(key, chrs, metrics);
+      }
+
+      file = build(key, metrics);
+    }
+
+    return map(file, key, metrics);
+  }
+
+  /**
+   * Load just the features of a BGZF track in the blocks that overlap some
+   * regions, using the tabix index of the track. The index returned can
+   * find the features overlapping the regions, but not those nearest to
+   * them since other features of the track are missing.
+   * 
+   * @param track
+   * @param regions
+   * @return The index, or null if the track already has an up to date
+   *         index or is not BGZF compressed.
+   * @throws IOException
+   */
+  public static TrackIndex loadRegions(Path track, RegionList regions)
+      throws IOException {
+    TrackKey key = TrackKey.create(track);
+
+    if (findIndex(key) != null) {
+      return null;
+    }
+
+    TabixIndex tabix = loadTabix(track);
+
+    if (tabix == null) {
+      return null;
+    }
+
+    LOG.info("Reading {} regions of {}...", regions.size(), track);
+
+    long time = System.currentTimeMillis();
+
+    TrackLoadMetrics metrics = new TrackLoadMetrics();
+
+    TrackIndex index = map(key,
+        parseRegions(track, tabix, regions, metrics),
+        metrics);
+
+    // Not complete for any chromosome
+    index.setChrs(Collections.<String>emptySet());
+
+    LOG.info("Read {} regions of {} in {} ms",
+        regions.size(),
+        track,
+        System.currentTimeMillis() - time);
+
+    return index;
+  }
+
+  /**
+   * Load the index of a track only if an up to date one already exists.
+   * 
+   * @param track
+   * @return The index or null.
+   * @throws IOException
+   */
+  public static TrackIndex loadIfCurrent(Path track) throws IOException {
+    TrackKey key = TrackKey.create(track);
+
+    Path file = findIndex(key);
+
+    if (file != null) {
+      return map(file, key, new TrackLoadMetrics());
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the path of the index file alongside a track.
+   * 
+   * @param track
+   * @return
+   */
+  public static Path getIndexFile(Path track) {
+    return track.resolveSibling(PathUtils.getName(track) + EXT);
+  }
+
+  /**
+   * Returns the path of the index file in the temp directory, used when the
+   * track's own folder cannot be written to.
+   * 
+   * @param track
+   * @return
+   */
+  private static Path getTmpIndexFile(Path track) {
+    return TMP_DIR.resolve(PathUtils.getName(track) + "."
+        + Integer.toHexString(track.toAbsolutePath().hashCode()) + EXT);
+  }
+
+  private static Path findIndex(TrackKey key) throws IOException {
+    Path file = getIndexFile(key.getFile());
+
+    if (isCurrent(file, key)) {
+      return file;
+    }
+
+    file = getTmpIndexFile(key.getFile());
+
+    if (isCurrent(file, key)) {
+      return file;
+    }
+
+    return null;
+  }
+
+  /**
+   * Returns true if an index file exists and was built from the current
+   * version of the track.
+   * 
+   * @param file
+   * @param key
+   * @return
+   * @throws IOException
+   */
+  private static boolean isCurrent(Path file, TrackKey key)
+      throws IOException {
+    if (!Files.exists(file)) {
+      return false;
+    }
+
+    DataInputStream in = new DataInputStream(Files.newInputStream(file));
+
+    try {
+      return in.readInt() == MAGIC && in.readInt() == VERSION
+          && in.readLong() == key.getSize()
+          && in.readLong() == key.getModified();
+    } catch (IOException e) {
+      // Truncated or otherwise unreadable so rebuild it
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Build the index for a track.
+   * 
+   * @param key
+   * @param metrics Records the time taken.
+   * @return The path of the index.
+   * @throws IOException
+   */
+  private static Path build(TrackKey key, TrackLoadMetrics metrics)
+      throws IOException {
+    Path track = key.getFile();
+
+    LOG.info("Building index for {}...", track);
+
+    long time = System.currentTimeMillis();
+
+    TrackBuilder builder = parse(track, null, metrics);
+
+    long indexTime = System.nanoTime();
+
+    Path index = write(builder, key);
+
+    metrics.setIndexTime(System.nanoTime() - indexTime);
+
+    LOG.info("Index {} built in {} ms",
+        index,
+        System.currentTimeMillis() - time);
+
+    return index;
+  }
+
+  /**
+   * Build an index of some of the chromosomes of a track in memory.
+   * 
+   * @param key
+   * @param chrs
+   * @param metrics Records the time taken.
+   * @return
+   * @throws IOException
+   */
+  private static TrackIndex build(TrackKey key,
+      Collection<String> chrs,
+      TrackLoadMetrics metrics) throws IOException {
+    Path track = key.getFile();
+
+    LOG.info("Indexing {} of {}...", chrs, track);
+
+    long time = System.currentTimeMillis();
+
+    Set<String> normalized = new HashSet<String>();
+
+    for (String chr : chrs) {
+      normalized.add(TrackIndex.normalizeChr(chr));
+    }
+
+    TabixIndex tabix = loadTabix(track);
+
+    TrackBuilder builder;
+
+    if (tabix != null) {
+      List<long[]> chunks = new ArrayList<long[]>();
+
+      for (String chr : chrs) {
+        tabix.addChunks(chr, chunks);
+      }
+
+      builder = parseChunks(track, chunks, metrics);
+    } else {
+      builder = parse(track, normalized, metrics);
+    }
+
+    TrackIndex index = map(key, builder, metrics);
+
+    index.setChrs(normalized);
+
+    LOG.info("Indexed {} of {} in {} ms",
+        chrs,
+        track,
+        System.currentTimeMillis() - time);
+
+    return index;
+  }
+
+  /**
+   * Write an index to memory and read it back. The buffer is sized from the
+   * builder so that the index is written straight into it rather than
+   * being copied there from the heap.
+   * 
+   * @param key
+   * @param builder
+   * @param metrics Records the time taken.
+   * @return
+   * @throws IOException
+   */
+  private static TrackIndex map(TrackKey key,
+      TrackBuilder builder,
+      TrackLoadMetrics metrics) throws IOException {
+    long indexTime = System.nanoTime();
+
+    long size = builder.size();
+
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException(
+          "The index of " + key.getFile() + " is too large to keep in memory.");
+    }
+
+    ByteBuffer buffer;
+
+    if (AnnotationSettings.getBool(AnnotationSettings.LOAD_OFF_HEAP, true)) {
+      buffer = ByteBuffer.allocateDirect((int) size);
+    } else {
+      buffer = ByteBuffer.allocate((int) size);
+    }
+
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new BufferOutputStream(buffer), 65536));
+
+    builder.write(key, out);
+
+    out.close();
+
+    buffer.flip();
+
+    metrics.setIndexTime(System.nanoTime() - indexTime);
+
+    TrackIndex index = map(buffer, key.getFile(), metrics);
+
+    index.setKey(key);
+
+    if (buffer.isDirect()) {
+      index.setDirectBytes(buffer.capacity());
+    } else {
+      index.setHeapBytes(buffer.capacity());
+    }
+
+    return index;
+  }
+
+  /**
+   * Returns the tabix index of a track if it is BGZF compressed.
+   * 
+   * @param track
+   * @return The index or null if the track is not BGZF compressed or cannot
+   *         be indexed, in which case it must be read in full.
+   * @throws IOException
+   */
+  private static TabixIndex loadTabix(Path track) throws IOException {
+    if (!BgzfInputStream.isBgzf(track)) {
+      return null;
+    }
+
+    try {
+      return TabixIndex.load(track);
+    } catch (IOException e) {
+      LOG.info("Cannot use tabix index of {}: {}", track, e.getMessage());
+
+      return null;
+    }
+  }
+
+  /**
+   * Write the index next to the track or, if that is not possible, to the
+   * temp directory.
+   * 
+   * @param builder
+   * @param key
+   * @return The path of the index.
+   * @throws IOException
+   */
+  private static Path write(TrackBuilder builder, TrackKey key)
+      throws IOException {
+    Path track = key.getFile();
+
+    Path file = getIndexFile(track);
+
+    try {
+      write(builder, key, file);
+    } catch (IOException e) {
+      LOG.info("Cannot write {}, using {}", file, TMP_DIR);
+
+      Files.createDirectories(TMP_DIR);
+
+      file = getTmpIndexFile(track);
+
+      write(builder, key, file);
+    }
+
+    return file;
+  }
+
+  /**
+   * Parse the features of a BED track, which may be gzipped.
+   * 
+   * @param track
+   * @param chrs The normalized chromosomes to keep or null for all of them.
+   * @param metrics Records the time spent decompressing and parsing.
+   * @return
+   * @throws IOException
+   */
+  private static TrackBuilder parse(Path track,
+      Set<String> chrs,
+      TrackLoadMetrics metrics) throws IOException {
+    MeteredInputStream file = new MeteredInputStream(
+        Files.newInputStream(track));
+    MeteredInputStream in = file;
+
+    if (PathUtils.getName(track).endsWith(".gz")) {
+      in = new MeteredInputStream(new GZIPInputStream(file, 65536));
+    }
+
+    long time = System.nanoTime();
+
+    TrackBuilder builder;
+
+    try {
+      builder = parse(track, in, chrs);
+    } finally {
+      in.close();
+    }
+
+    metrics.setParse(in.getTime(),
+        System.nanoTime() - time - in.getTime(),
+        file.getBytes(),
+        in.getBytes());
+
+    return builder;
+  }
+
+  /**
+   * Parse the features in some chunks of a BGZF track.
+   * 
+   * @param track
+   * @param chunks Start and end virtual offsets of the chunks to read.
+   * @param metrics Records the time spent decompressing and parsing.
+   * @return
+   * @throws IOException
+   */
+  private static TrackBuilder parseChunks(Path track,
+      List<long[]> chunks,
+      TrackLoadMetrics metrics) throws IOException {
+    TrackBuilder builder = new TrackBuilder(
+        UCSCTrack.getNameFromTrack(track),
+        UCSCTrack.getTrackAttributes(track));
+
+    BgzfInputStream in = new BgzfInputStream(track);
+
+    long time = System.nanoTime();
+
+    try {
+      for (long[] chunk : TabixIndex.merge(chunks)) {
+        in.seek(chunk[0]);
+
+        while (in.getVirtualOffset() < chunk[1]) {
+          String line = in.readLine();
+
+          if (line == null) {
+            break;
+          }
+
+          int t1 = line.indexOf('\t');
+          int t2 = line.indexOf('\t', t1 + 1);
+
+          if (t1 == -1 || t2 == -1 || line.startsWith("track")
+              || line.startsWith("browser") || line.startsWith("#")) {
+            continue;
+          }
+
+          add(builder, line, t1, t2);
+        }
+      }
+    } finally {
+      in.close();
+    }
+
+    metrics.setParse(in.getTime(),
+        System.nanoTime() - time - in.getTime(),
+        in.getCompressedBytes(),
+        in.getBytes());
+
+    return builder;
+  }
+
+  /**
+   * Parse the features in the chunks of a BGZF track overlapping some
+   * regions. As in tabix, the chunks of a region are read in order until a
+   * feature starts after the region, since the chunks of the larger bins
+   * can extend far beyond it.
+   * 
+   * @param track
+   * @param tabix
+   * @param regions
+   * @param metrics Records the time spent decompressing and parsing.
+   * @return
+   * @throws IOException
+   */
+  private static TrackBuilder parseRegions(Path track,
+      TabixIndex tabix,
+      RegionList regions,
+      TrackLoadMetrics metrics) throws IOException {
+    // Lines keyed by virtual offset so that features found by more than one
+    // region are only added once and are added in track order
+    Map<Long, String> lines = new TreeMap<Long, String>();
+
+    List<long[]> chunks = new ArrayList<long[]>();
+
+    BgzfInputStream in = new BgzfInputStream(track);
+
+    long time = System.nanoTime();
+
+    try {
+      for (int i = 0; i < regions.size(); ++i) {
+        if (!regions.isValid(i)) {
+          continue;
+        }
+
+        chunks.clear();
+
+        tabix.addChunks(regions.getChr(i),
+            regions.getStart(i),
+            regions.getEnd(i),
+            chunks);
+
+        read(in, TabixIndex.merge(chunks), regions.getEnd(i), lines);
+      }
+    } finally {
+      in.close();
+    }
+
+    TrackBuilder builder = new TrackBuilder(
+        UCSCTrack.getNameFromTrack(track),
+        UCSCTrack.getTrackAttributes(track));
+
+    for (String line : lines.values()) {
+      int t1 = line.indexOf('\t');
+
+      add(builder, line, t1, line.indexOf('\t', t1 + 1));
+    }
+
+    metrics.setParse(in.getTime(),
+        System.nanoTime() - time - in.getTime(),
+        in.getCompressedBytes(),
+        in.getBytes());
+
+    return builder;
+  }
+
+  /**
+   * Read the feature lines in some chunks of a BGZF track up to the first
+   * feature starting after a given end.
+   * 
+   * @param in
+   * @param chunks Sorted chunks.
+   * @param end The 1-based end of the region being read.
+   * @param lines Lines are added keyed by their virtual offset.
+   * @throws IOException
+   */
+  private static void read(BgzfInputStream in,
+      List<long[]> chunks,
+      int end,
+      Map<Long, String> lines) throws IOException {
+    for (long[] chunk : chunks) {
+      in.seek(chunk[0]);
+
+      long offset;
+
+      while ((offset = in.getVirtualOffset()) < chunk[1]) {
+        String line = in.readLine();
+
+        if (line == null) {
+          return;
+        }
+
+        int t1 = line.indexOf('\t');
+        int t2 = line.indexOf('\t', t1 + 1);
+
+        if (t1 == -1 || t2 == -1 || line.startsWith("track")
+            || line.startsWith("browser") || line.startsWith("#")) {
+          continue;
+        }
+
+        // BED starts are 0-based
+        if (Integer.parseInt(line.substring(t1 + 1, t2)) >= end) {
+          return;
+        }
+
+        lines.put(offset, line);
+      }
+    }
+  }
+
+  /**
+   * Parse the features of a BED track.
+   * 
+   * @param track
+   * @param in The decompressed contents of the track.
+   * @param chrs The normalized chromosomes to keep or null for all of them.
+   * @return
+   * @throws IOException
+   */
+  private static TrackBuilder parse(Path track,
+      InputStream in,
+      Set<String> chrs) throws IOException {
+    TrackBuilder builder = new TrackBuilder(
+        UCSCTrack.getNameFromTrack(track),
+        UCSCTrack.getTrackAttributes(track));
+
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(in, StandardCharsets.UTF_8));
+
+    // Tracks are sorted by chromosome so remember whether the chromosome of
+    // the last line was kept rather than normalizing every line
+    String lastChr = null;
+    boolean keep = true;
+
+    try {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("track")
+            || line.startsWith("browser") || line.startsWith("#")) {
+          continue;
+        }
+
+        int t1 = line.indexOf('\t');
+        int t2 = line.indexOf('\t', t1 + 1);
+
+        if (t1 == -1 || t2 == -1) {
+          continue;
+        }
+
+        if (chrs != null) {
+          if (lastChr == null || t1 != lastChr.length()
+              || !line.startsWith(lastChr)) {
+            lastChr = line.substring(0, t1);
+            keep = chrs.contains(TrackIndex.normalizeChr(lastChr));
+          }
+
+          if (!keep) {
+            continue;
+          }
+        }
+
+        add(builder, line, t1, t2);
+      }
+    } finally {
+      reader.close();
+    }
+
+    return builder;
+  }
+
+  /**
+   * Add the feature on a line of a BED track.
+   * 
+   * @param builder
+   * @param line
+   * @param t1 Index of the first tab.
+   * @param t2 Index of the second tab.
+   */
+  private static void add(TrackBuilder builder,
+      String line,
+      int t1,
+      int t2) {
+    int t3 = line.indexOf('\t', t2 + 1);
+
+    String name;
+
+    if (t3 == -1) {
+      t3 = line.length();
+      name = "";
+    } else {
+      int t4 = line.indexOf('\t', t3 + 1);
+
+      name = line.substring(t3 + 1, t4 == -1 ? line.length() : t4);
+    }
+
+    // BED starts are 0-based
+    builder.add(line.substring(0, t1),
+        Integer.parseInt(line.substring(t1 + 1, t2)) + 1,
+        Integer.parseInt(line.substring(t2 + 1, t3)),
+        name);
+  }
+
+  /**
+   * Write the index to a temporary file and then move it into place so that
+   * a partially written index is never seen.
+   * 
+   * @param builder
+   * @param key
+   * @param file
+   * @throws IOException
+   */
+  private static void write(TrackBuilder builder, TrackKey key, Path file)
+      throws IOException {
+    Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(),
+        PathUtils.getName(file),
+        ".tmp");
+
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmp), 65536));
+
+      try {
+        builder.write(key, out);
+      } finally {
+        out.close();
+      }
+
+      try {
+        Files.move(tmp,
+            file,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Memory map an index.
+   * 
+   * @param file
+   * @param key The track the index is of.
+   * @param metrics Records the time taken and is attached to the index.
+   * @return
+   * @throws IOException
+   */
+  private static TrackIndex map(Path file,
+      TrackKey key,
+      TrackLoadMetrics metrics) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+    MappedByteBuffer buffer;
+
+    try {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large to map.");
+      }
+
+      // The mapping remains valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+
+    TrackIndex index = map(buffer, file, metrics);
+
+    index.setKey(key);
+    index.setMappedBytes(buffer.capacity());
+
+    return index;
+  }
+
+  /**
+   * Read an index from a buffer. The index refers to the buffer rather than
+   * copying the features out of it.
+   * 
+   * @param buffer
+   * @param source Where the index came from, for logging.
+   * @param metrics Records the time taken and is attached to the index.
+   * @return
+   * @throws IOException
+   */
+  private static TrackIndex map(ByteBuffer buffer,
+      Path source,
+      TrackLoadMetrics metrics) throws IOException {
+    long time = System.nanoTime();
+
+    // Skip magic, version, size and modified
+    buffer.position(24);
+
+    byte[] header = new byte[buffer.getInt()];
+    buffer.get(header);
+
+    DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(header));
+
+    String name = in.readUTF();
+
+    Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+    int n = in.readInt();
+
+    for (int i = 0; i < n; ++i) {
+      attributes.put(in.readUTF(), in.readUTF());
+    }
+
+    StringTable names = mapStrings(buffer);
+    StringTable symbols = mapStrings(buffer);
+
+    IntBuffer symbolRanks = slice(buffer, symbols.size() * 4).asIntBuffer();
+    IntBuffer symbolsByRank = slice(buffer, symbols.size() * 4)
+        .asIntBuffer();
+    IntBuffer nameSymbols = slice(buffer, names.size() * 4).asIntBuffer();
+
+    TrackIndex index = new TrackIndex(name, attributes, names, symbols,
+        nameSymbols, symbolRanks, symbolsByRank);
+
+    int chrs = in.readInt();
+
+    for (int i = 0; i < chrs; ++i) {
+      String chr = in.readUTF();
+      int size = in.readInt();
+      int maxLength = in.readInt();
+
+      IntBuffer starts = slice(buffer, size * 4).asIntBuffer();
+      IntBuffer ends = slice(buffer, size * 4).asIntBuffer();
+      IntBuffer nameIds = slice(buffer, size * 4).asIntBuffer();
+      IntBuffer maxEnds = slice(buffer, size * 4).asIntBuffer();
+      IntBuffer byEnd = slice(buffer, size * 4).asIntBuffer();
+
+      index.addChr(new ChrIndex(index, chr, starts, ends, nameIds, maxEnds,
+          byEnd, maxLength));
+    }
+
+    metrics.setMapTime(System.nanoTime() - time);
+
+    index.setLoadMetrics(metrics);
+
+    LOG.info("Mapped {} ({} features)", source, index.getFeatureCount());
+
+    return index;
+  }
+
+  /**
+   * Map the next string dictionary in a buffer.
+   * 
+   * @param buffer
+   * @return
+   */
+  private static StringTable mapStrings(ByteBuffer buffer) {
+    int n = buffer.getInt();
+    IntBuffer offsets = slice(buffer, (n + 1) * 4).asIntBuffer();
+    int length = buffer.getInt();
+    ByteBuffer bytes = slice(buffer, pad(length));
+
+    return new StringTable(offsets, bytes);
+  }
+
+  /**
+   * Returns a view of the next bytes of a buffer and advances past them.
+   * 
+   * @param buffer
+   * @param length
+   * @return
+   */
+  private static ByteBuffer slice(ByteBuffer buffer, int length) {
+    ByteBuffer ret = buffer.slice();
+    ret.limit(length);
+
+    buffer.position(buffer.position() + length);
+
+    return ret;
+  }
+
+  private static int pad(int length) {
+    return (length + 3) & ~3;
+  }
+
+  /**
+   * Growable int array used while parsing.
+   */
+  private static class IntArray {
+    private int[] mData = new int[1024];
+    private int mSize = 0;
+
+    public void add(int v) {
+      if (mSize == mData.length) {
+        mData = Arrays.copyOf(mData, mSize * 2);
+      }
+
+      mData[mSize++] = v;
+    }
+
+    public int get(int i) {
+      return mData[i];
+    }
+
+    public int size() {
+      return mSize;
+    }
+  }
+
+  /**
+   * Features of one chromosome accumulated while parsing.
+   */
+  private static class ChrBuilder {
+    private final String mChr;
+    private final IntArray mStarts = new IntArray();
+    private final IntArray mEnds = new IntArray();
+    private final IntArray mNameIds = new IntArray();
+    private int mMaxLength = 0;
+
+    public ChrBuilder(String chr) {
+      mChr = chr;
+    }
+
+    public void add(int start, int end, int nameId) {
+      mStarts.add(start);
+      mEnds.add(end);
+      mNameIds.add(nameId);
+
+      mMaxLength = Math.max(mMaxLength, end - start + 1);
+    }
+
+    /**
+     * Returns the order of the features sorted by start. Ties keep the order
+     * they appear in the track.
+     * 
+     * @return
+     */
+    public int[] order() {
+      int n = mStarts.size();
+
+      long[] keys = new long[n];
+
+      for (int i = 0; i < n; ++i) {
+        keys[i] = ((long) mStarts.get(i) << 32) | i;
+      }
+
+      Arrays.sort(keys);
+
+      int[] order = new int[n];
+
+      for (int i = 0; i < n; ++i) {
+        order[i] = (int) keys[i];
+      }
+
+      return order;
+    }
+  }
+
+  /**
+   * Accumulates a track while parsing and writes it in the index format.
+   */
+  private static class TrackBuilder {
+    private final String mName;
+    private final Map<String, String> mAttributes;
+    private final Map<String, ChrBuilder> mChrs = new LinkedHashMap<String, ChrBuilder>();
+    private final Map<String, Integer> mNameIds = new HashMap<String, Integer>();
+    private final List<String> mNames = new ArrayList<String>();
+
+    private byte[] mHeader;
+    private StringBlock mNameTable;
+    private StringBlock mSymbolTable;
+    private int[] mSymbolRanks;
+    private int[] mSymbolsByRank;
+    private int[] mNameSymbols;
+
+    public TrackBuilder(String name, Map<String, String> attributes) {
+      mName = name;
+      mAttributes = attributes;
+    }
+
+    public void add(String chr, int start, int end, String name) {
+      ChrBuilder builder = mChrs.get(chr);
+
+      if (builder == null) {
+        builder = new ChrBuilder(chr);
+        mChrs.put(chr, builder);
+      }
+
+      Integer id = mNameIds.get(name);
+
+      if (id == null) {
+        id = mNames.size();
+        mNameIds.put(name, id);
+        mNames.add(name);
+      }
+
+      builder.add(start, end, id);
+    }
+
+    /**
+     * Work out the parts of the index that are not simply the features: the
+     * header, the name and symbol dictionaries and the symbol order. They
+     * are needed both to size and to write the index.
+     */
+    private void prepare() throws IOException {
+      if (mHeader != null) {
+        return;
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream(bytes);
+
+      header.writeUTF(mName);
+      header.writeInt(mAttributes.size());
+
+      for (Entry<String, String> e : mAttributes.entrySet()) {
+        header.writeUTF(e.getKey());
+        header.writeUTF(e.getValue());
+      }
+
+      header.writeInt(mChrs.size());
+
+      for (ChrBuilder chr : mChrs.values()) {
+        header.writeUTF(chr.mChr);
+        header.writeInt(chr.mStarts.size());
+        header.writeInt(chr.mMaxLength);
+      }
+
+      header.close();
+
+      mHeader = bytes.toByteArray();
+
+      // Symbols are split from the names here so that annotating does not
+      // have to split every name it finds
+
+      Map<String, Integer> symbolIds = new HashMap<String, Integer>();
+      List<String> symbols = new ArrayList<String>();
+      mNameSymbols = new int[mNames.size()];
+
+      for (int i = 0; i < mNameSymbols.length; ++i) {
+        String name = mNames.get(i);
+        String symbol = name.isEmpty() ? name
+            : AnnotationModule.getSymbol(name);
+
+        Integer id = symbolIds.get(symbol);
+
+        if (id == null) {
+          id = symbols.size();
+          symbolIds.put(symbol, id);
+          symbols.add(symbol);
+        }
+
+        mNameSymbols[i] = id;
+      }
+
+      List<String> sorted = new ArrayList<String>(symbols);
+      Collections.sort(sorted);
+
+      mSymbolRanks = new int[symbols.size()];
+      mSymbolsByRank = new int[symbols.size()];
+
+      for (int i = 0; i < mSymbolRanks.length; ++i) {
+        int id = symbolIds.get(sorted.get(i));
+
+        mSymbolRanks[id] = i;
+        mSymbolsByRank[i] = id;
+      }
+
+      mNameTable = new StringBlock(mNames);
+      mSymbolTable = new StringBlock(symbols);
+    }
+
+    /**
+     * Returns the number of bytes {@link #write(TrackKey, DataOutputStream)}
+     * will write.
+     * 
+     * @return
+     * @throws IOException
+     */
+    public long size() throws IOException {
+      prepare();
+
+      long ret = 28 + mHeader.length + mNameTable.size() + mSymbolTable.size()
+          + 4L * (mSymbolRanks.length + mSymbolsByRank.length
+              + mNameSymbols.length);
+
+      for (ChrBuilder chr : mChrs.values()) {
+        // Starts, ends, name ids, max ends and end order
+        ret += 20L * chr.mStarts.size();
+      }
+
+      return ret;
+    }
+
+    public void write(TrackKey key, DataOutputStream out) throws IOException {
+      prepare();
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(key.getSize());
+      out.writeLong(key.getModified());
+
+      out.writeInt(mHeader.length);
+      out.write(mHeader);
+
+      // Dictionaries
+
+      mNameTable.write(out);
+      mSymbolTable.write(out);
+
+      for (int rank : mSymbolRanks) {
+        out.writeInt(rank);
+      }
+
+      for (int id : mSymbolsByRank) {
+        out.writeInt(id);
+      }
+
+      for (int id : mNameSymbols) {
+        out.writeInt(id);
+      }
+
+      // Coordinates
+
+      for (ChrBuilder chr : mChrs.values()) {
+        int[] order = chr.order();
+
+        for (int i : order) {
+          out.writeInt(chr.mStarts.get(i));
+        }
+
+        for (int i : order) {
+          out.writeInt(chr.mEnds.get(i));
+        }
+
+        for (int i : order) {
+          out.writeInt(chr.mNameIds.get(i));
+        }
+
+        int[] ends = new int[order.length];
+
+        for (int i = 0; i < order.length; ++i) {
+          ends[i] = chr.mEnds.get(order[i]);
+        }
+
+        for (int e : ChrIndex.maxEnds(ends)) {
+          out.writeInt(e);
+        }
+
+        for (int i : endOrder(ends)) {
+          out.writeInt(i);
+        }
+      }
+    }
+
+    /**
+     * Returns the ordinals of features sorted by end. Ties are in start
+     * order.
+     * 
+     * @param ends Feature ends in start order.
+     * @return
+     */
+    private static int[] endOrder(int[] ends) {
+      long[] keys = new long[ends.length];
+
+      for (int i = 0; i < ends.length; ++i) {
+        keys[i] = ((long) ends[i] << 32) | i;
+      }
+
+      Arrays.sort(keys);
+
+      int[] ret = new int[ends.length];
+
+      for (int i = 0; i < ends.length; ++i) {
+        ret[i] = (int) keys[i];
+      }
+
+      return ret;
+    }
+  }
+
+  /**
+   * A string dictionary encoded ready to be written to an index.
+   */
+  private static class StringBlock {
+    private final int[] mEnds;
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+    public StringBlock(List<String> strings) throws IOException {
+      mEnds = new int[strings.size()];
+
+      for (int i = 0; i < mEnds.length; ++i) {
+        mBytes.write(strings.get(i).getBytes(StandardCharsets.UTF_8));
+        mEnds[i] = mBytes.size();
+      }
+    }
+
+    /**
+     * Returns the number of bytes the dictionary takes in the index.
+     * 
+     * @return
+     */
+    public int size() {
+      return 12 + 4 * mEnds.length + pad(mBytes.size());
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+      out.writeInt(mEnds.length);
+      out.writeInt(0);
+
+      for (int end : mEnds) {
+        out.writeInt(end);
+      }
+
+      out.writeInt(mBytes.size());
+      mBytes.writeTo(out);
+
+      for (int i = mBytes.size(); i < pad(mBytes.size()); ++i) {
+        out.write(0);
+      }
+    }
+  }
+
+  /**
+   * Writes to a buffer that is already large enough.
+   */
+  private static class BufferOutputStream extends OutputStream {
+    private final ByteBuffer mBuffer;
+
+    public BufferOutputStream(ByteBuffer buffer) {
+      mBuffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      mBuffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      mBuffer.put(b, off, len);
+    }
+  }
+}
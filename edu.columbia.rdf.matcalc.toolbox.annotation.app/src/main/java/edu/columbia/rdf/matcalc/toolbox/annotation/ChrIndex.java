@@ -0,0 +1,420 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.nio.IntBuffer;
+
+/**
+ * The features of one chromosome of a binary track index. Features are sorted
+ * by start and referred to by their ordinal in that order. Coordinates are
+ * 1-based and inclusive, as with GenomicRegion.
+ * 
+ * <p>The sorted features also form an implicit binary interval tree: the
+ * level of feature i is the number of trailing 1 bits of i, its children are
+ * i &plusmn; 2<sup>level - 1</sup> and the index stores the maximum end of
+ * each subtree. Subtrees ending before a query are skipped, so a few long
+ * features do not slow down every query.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class ChrIndex {
+  /**
+   * Subtrees at or below this level are scanned rather than walked.
+   */
+  private static final int SCAN_LEVEL = 3;
+
+  private final TrackIndex mTrack;
+  private final String mChr;
+  private final IntBuffer mStarts;
+  private final IntBuffer mEnds;
+  private final IntBuffer mNameIds;
+  private final IntBuffer mMaxEnds;
+
+  /**
+   * Feature ordinals sorted by end, for finding the nearest features before
+   * a region.
+   */
+  private final IntBuffer mByEnd;
+  private final int mSize;
+
+  /**
+   * The length of the longest feature, which bounds how far before a query
+   * an overlapping feature can start.
+   */
+  private final int mMaxLength;
+
+  public ChrIndex(TrackIndex track, String chr, IntBuffer starts,
+      IntBuffer ends, IntBuffer nameIds, IntBuffer maxEnds, IntBuffer byEnd,
+      int maxLength) {
+    mTrack = track;
+    mChr = chr;
+    mStarts = starts;
+    mEnds = ends;
+    mNameIds = nameIds;
+    mMaxEnds = maxEnds;
+    mByEnd = byEnd;
+    mSize = starts.limit();
+    mMaxLength = maxLength;
+  }
+
+  public String getChr() {
+    return mChr;
+  }
+
+  /**
+   * Returns the length of the longest feature.
+   * 
+   * @return
+   */
+  public int getMaxLength() {
+    return mMaxLength;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public int getStart(int i) {
+    return mStarts.get(i);
+  }
+
+  public int getEnd(int i) {
+    return mEnds.get(i);
+  }
+
+  /**
+   * Returns the id of the BED name of a feature.
+   * 
+   * @param i
+   * @return
+   */
+  public int getNameId(int i) {
+    return mNameIds.get(i);
+  }
+
+  /**
+   * Returns the BED name of a feature.
+   * 
+   * @param i
+   * @return
+   */
+  public String getName(int i) {
+    return mTrack.getName(mNameIds.get(i));
+  }
+
+  /**
+   * Returns the location of a feature in the form chr:start-end.
+   * 
+   * @param i
+   * @return
+   */
+  public String getLocation(int i) {
+    return mChr + ":" + getStart(i) + "-" + getEnd(i);
+  }
+
+  /**
+   * Add the ordinals of all features overlapping a region to a list in start
+   * order.
+   * 
+   * @param start
+   * @param end
+   * @param hits
+   */
+  public void overlapping(int start, int end, HitList hits) {
+    overlapping(mStarts, mEnds, mMaxEnds, start, end, hits);
+  }
+
+  /**
+   * Add the positions of all intervals overlapping a region to a list in
+   * start order, using the implicit interval tree of intervals sorted by
+   * start.
+   * 
+   * @param starts Interval starts, sorted.
+   * @param ends Interval ends in start order.
+   * @param maxEnds The max ends of the tree, see {@link #maxEnds(int[])}.
+   * @param start
+   * @param end
+   * @param hits
+   */
+  static void overlapping(IntBuffer starts,
+      IntBuffer ends,
+      IntBuffer maxEnds,
+      int start,
+      int end,
+      HitList hits) {
+    int size = starts.limit();
+
+    if (size == 0) {
+      return;
+    }
+
+    int rootLevel = 31 - Integer.numberOfLeadingZeros(size);
+
+    // Walk the tree in order (left subtree, node, right subtree) so that
+    // hits come out sorted. Each entry is a node and its level shifted left
+    // by one, with the low bit set once the left subtree has been visited.
+    int[] nodes = hits.getStackNodes();
+    int[] levels = hits.getStackLevels();
+
+    int t = 0;
+
+    nodes[t] = (1 << rootLevel) - 1;
+    levels[t++] = rootLevel << 1;
+
+    while (t > 0) {
+      --t;
+
+      int x = nodes[t];
+      int k = levels[t] >> 1;
+
+      if (k <= SCAN_LEVEL) {
+        int i0 = x >> k << k;
+        int i1 = (int) Math.min(size, (long) i0 + (1 << (k + 1)) - 1);
+
+        for (int i = i0; i < i1 && starts.get(i) <= end; ++i) {
+          if (ends.get(i) >= start) {
+            hits.add(i);
+          }
+        }
+      } else if ((levels[t] & 1) == 0) {
+        int y = x - (1 << (k - 1));
+
+        nodes[t] = x;
+        levels[t++] = (k << 1) | 1;
+
+        // Nodes beyond the last feature have no max end of their own but
+        // their left subtree may still contain features
+        if (y >= size || maxEnds.get(y) >= start) {
+          nodes[t] = y;
+          levels[t++] = (k - 1) << 1;
+        }
+      } else if (x < size && starts.get(x) <= end) {
+        if (ends.get(x) >= start) {
+          hits.add(x);
+        }
+
+        nodes[t] = x + (1 << (k - 1));
+        levels[t++] = (k - 1) << 1;
+      }
+    }
+  }
+
+  /**
+   * Returns the maximum end of each subtree of the implicit interval tree
+   * over features sorted by start.
+   * 
+   * @param ends Feature ends in start order.
+   * @return
+   */
+  static int[] maxEnds(int[] ends) {
+    int n = ends.length;
+
+    int[] ret = new int[n];
+
+    if (n == 0) {
+      return ret;
+    }
+
+    // Leaves. The last node on each level is tracked so that nodes whose
+    // right subtree is partly beyond the last feature still get its max.
+    int lastI = 0;
+    int last = 0;
+
+    for (int i = 0; i < n; i += 2) {
+      lastI = i;
+      last = ret[i] = ends[i];
+    }
+
+    for (int k = 1; (1L << k) <= n; ++k) {
+      int x = 1 << (k - 1);
+      long step = (long) x << 2;
+
+      for (long l = (x << 1) - 1; l < n; l += step) {
+        int i = (int) l;
+
+        int e = Math.max(ends[i], ret[i - x]);
+
+        e = Math.max(e, l + x < n ? ret[i + x] : last);
+
+        ret[i] = e;
+      }
+
+      lastI = ((lastI >> k) & 1) == 1 ? lastI - x : lastI + x;
+
+      if (lastI < n && ret[lastI] > last) {
+        last = ret[lastI];
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the number of features overlapping a region. Every feature
+   * starting at or before the end of the region overlaps it unless it also
+   * ends before the region starts, so this needs only two binary searches.
+   * 
+   * @param start
+   * @param end
+   * @return
+   */
+  public int countOverlapping(int start, int end) {
+    return firstStartAtLeast(end + 1) - (lastEndBefore(start) + 1);
+  }
+
+  /**
+   * Add the ordinals of the features overlapping a region or, if there are
+   * none, the features with the closest start or end on either side.
+   * 
+   * @param start
+   * @param end
+   * @param hits
+   */
+  public void closest(int start, int end, HitList hits) {
+    overlapping(start, end, hits);
+
+    if (!hits.isEmpty() || mSize == 0) {
+      return;
+    }
+
+    // Nearest feature starting after the region
+    int after = firstStartAtLeast(end + 1);
+
+    int afterDist = after < mSize ? getStart(after) - end : Integer.MAX_VALUE;
+
+    // Nearest feature ending before the region
+    int e = lastEndBefore(start);
+
+    int before = e >= 0 ? mByEnd.get(e) : -1;
+
+    int beforeDist = before != -1 ? start - getEnd(before)
+        : Integer.MAX_VALUE;
+
+    if (before != -1 && beforeDist <= afterDist) {
+      hits.add(before);
+    }
+
+    if (after < mSize && afterDist <= beforeDist) {
+      hits.add(after);
+    }
+  }
+
+  /**
+   * Add the ordinals of the features nearest to a region, nearest first.
+   * Overlapping features come first, in start order, followed by features
+   * either side of the region in order of distance. On a tie the feature
+   * before the region comes first.
+   * 
+   * @param start
+   * @param end
+   * @param n The number of non-overlapping features to add. All overlapping
+   *          features are added regardless.
+   * @param maxDistance Features further than this from the region are not
+   *          added. 0 means no limit.
+   * @param hits
+   * @return The number of non-overlapping features added, which is less than
+   *         n if there are no more within range.
+   */
+  public int nearest(int start,
+      int end,
+      int n,
+      int maxDistance,
+      HitList hits) {
+    overlapping(start, end, hits);
+
+    if (maxDistance < 1) {
+      maxDistance = Integer.MAX_VALUE;
+    }
+
+    int before = lastEndBefore(start);
+    int after = firstStartAtLeast(end + 1);
+
+    int i = 0;
+
+    for (; i < n; ++i) {
+      long beforeDist = before >= 0
+          ? (long) start - getEnd(mByEnd.get(before)) : Long.MAX_VALUE;
+      long afterDist = after < mSize ? (long) getStart(after) - end
+          : Long.MAX_VALUE;
+
+      if (Math.min(beforeDist, afterDist) > maxDistance) {
+        break;
+      }
+
+      if (beforeDist <= afterDist) {
+        hits.add(mByEnd.get(before--));
+      } else {
+        hits.add(after++);
+      }
+    }
+
+    return i;
+  }
+
+  /**
+   * Returns the signed distance from a region to a feature. The distance is
+   * negative if the feature ends before the region, positive if it starts
+   * after it and 0 if they overlap.
+   * 
+   * @param start
+   * @param end
+   * @param i
+   * @return
+   */
+  public int getDistance(int start, int end, int i) {
+    if (getEnd(i) < start) {
+      return getEnd(i) - start;
+    } else if (getStart(i) > end) {
+      return getStart(i) - end;
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * Binary search for the last feature, in end order, whose end is before a
+   * given position.
+   * 
+   * @param pos
+   * @return The position in end order or -1 if there is no such feature.
+   */
+  private int lastEndBefore(int pos) {
+    int lo = 0;
+    int hi = mSize;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (getEnd(mByEnd.get(mid)) < pos) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo - 1;
+  }
+
+  /**
+   * Binary search for the first feature whose start is at least a given
+   * position.
+   * 
+   * @param pos
+   * @return
+   */
+  public int firstStartAtLeast(int pos) {
+    int lo = 0;
+    int hi = mSize;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (mStarts.get(mid) < pos) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+}
@@ -0,0 +1,166 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.math.matrix.DataFrame;
+import org.jebtk.modern.dialog.ModernMessageDialog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.columbia.rdf.matcalc.MainMatCalcWindow;
+
+/**
+ * Tests the regions of a matrix for enrichment against the installed tracks
+ * in the background and adds a table with a row per track to the history.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class EnrichmentWorker extends SwingWorker<DataFrame, Void>
+    implements AnnotationListener {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(EnrichmentWorker.class);
+
+  private final MainMatCalcWindow mWindow;
+  private final DataFrame mM;
+  private final Genome mGenome;
+  private final RegionColumns mColumns;
+  private final List<Path> mFiles;
+  private final int mThreads;
+
+  private final AnnotationProgressDialog mDialog;
+
+  public EnrichmentWorker(MainMatCalcWindow window, DataFrame m,
+      Genome genome, RegionColumns columns, List<Path> files, int threads) {
+    mWindow = window;
+    mM = m;
+    mGenome = genome;
+    mColumns = columns;
+    mFiles = files;
+    mThreads = threads;
+
+    mDialog = new AnnotationProgressDialog(window, this, files.size(), false);
+    mDialog.setTitle("Enrichment");
+  }
+
+  /**
+   * Show the progress dialog and start testing.
+   */
+  public void start() {
+    execute();
+
+    mDialog.setVisible(true);
+  }
+
+  @Override
+  protected DataFrame doInBackground() throws Exception {
+    RegionList regions = RegionList.parse(mM, mGenome, mColumns);
+
+    // Shuffled regions can land anywhere on their chromosomes so the whole
+    // of each chromosome is needed
+    List<TrackIndex> tracks = TrackCache.getInstance().getTracks(mFiles,
+        regions.getChrs(),
+        mThreads,
+        this);
+
+    if (tracks == null) {
+      return null;
+    }
+
+    GenomeBounds bounds = GenomeBounds.load(TrackCatalog.RES_FOLDER,
+        AnnotationSettings
+            .getBool(AnnotationSettings.ENRICHMENT_EXCLUDE_GAPS, true));
+
+    OverlapEnrichment enrichment = new OverlapEnrichment(tracks, regions,
+        bounds);
+
+    final int permutations = AnnotationSettings
+        .getInt(AnnotationSettings.ENRICHMENT_PERMUTATIONS, 1000);
+
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        mDialog.setStatus("Running " + permutations + " permutations...");
+      }
+    });
+
+    LOG.info("Testing enrichment using {} threads...", mThreads);
+
+    if (!enrichment.run(permutations,
+        AnnotationSettings.getInt(AnnotationSettings.ENRICHMENT_SEED, 1),
+        mThreads,
+        this)) {
+      return null;
+    }
+
+    DataFrame ret = DataFrame.createDataFrame(tracks.size(), 5);
+
+    ret.setColumnName(0, "track");
+    ret.setColumnName(1, "observed");
+    ret.setColumnName(2, "expected");
+    ret.setColumnName(3, "fold.enrichment");
+    ret.setColumnName(4, "p");
+
+    for (int t = 0; t < tracks.size(); ++t) {
+      double expected = enrichment.getExpected(t);
+
+      ret.set(t, 0, tracks.get(t).getName());
+      ret.set(t, 1, enrichment.getObserved(t));
+      ret.set(t, 2, expected);
+      ret.set(t,
+          3,
+          expected > 0 ? enrichment.getObserved(t) / expected : 0);
+      ret.set(t, 4, enrichment.getPValue(t));
+    }
+
+    return ret;
+  }
+
+  @Override
+  protected void done() {
+    mDialog.dispose();
+
+    if (isCancelled()) {
+      LOG.info("Enrichment cancelled.");
+
+      return;
+    }
+
+    try {
+      DataFrame ret = get();
+
+      if (ret != null) {
+        mWindow.history().addToHistory("Enrichment", ret);
+      }
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+
+      ModernMessageDialog.createWarningDialog(mWindow,
+          "The enrichment could not be tested: "
+              + e.getCause().getMessage());
+    }
+  }
+
+  @Override
+  public void trackLoaded(final TrackIndex track) {
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        mDialog.trackLoaded(track);
+      }
+    });
+  }
+
+  @Override
+  public void blockAnnotated(AnnotationBlock block) {
+    // Nothing is annotated
+  }
+}
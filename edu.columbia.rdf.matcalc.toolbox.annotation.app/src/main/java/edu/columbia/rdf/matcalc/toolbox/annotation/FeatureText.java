@@ -0,0 +1,142 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jebtk.core.text.TextUtils;
+
+/**
+ * A semicolon separated list of features whose text is only built when it is
+ * needed, for example when a cell is drawn or written out. Only the symbol
+ * ids or, for locations, the feature ordinals are stored, and these cells are
+ * put into the result matrix as they are. Recently built text is kept in a
+ * small cache since tables ask for the same cells repeatedly.
+ *
+ * <p>A cell refers to the track it came from, so a result keeps its tracks
+ * in memory for as long as the result is open.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class FeatureText {
+  private static final int CACHE_SIZE = 1024;
+
+  /**
+   * Recently built text. Keys are compared by identity.
+   */
+  private static final Map<FeatureText, String> CACHE = new LinkedHashMap<FeatureText, String>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<FeatureText, String> e) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  private final TrackIndex mTrack;
+  private final ChrIndex mChr;
+  private final int[] mIds;
+
+  /**
+   * Create the text of a list of symbols.
+   *
+   * @param track
+   * @param symbolIds
+   */
+  public FeatureText(TrackIndex track, int[] symbolIds) {
+    mTrack = track;
+    mChr = null;
+    mIds = symbolIds;
+  }
+
+  /**
+   * Create the text of a list of feature locations.
+   *
+   * @param chr
+   * @param features
+   */
+  public FeatureText(ChrIndex chr, int[] features) {
+    mTrack = null;
+    mChr = chr;
+    mIds = features;
+  }
+
+  /**
+   * Returns the number of features.
+   *
+   * @return
+   */
+  public int size() {
+    return mIds.length;
+  }
+
+  /**
+   * Returns the symbol ids or feature ordinals.
+   *
+   * @return
+   */
+  int[] getIds() {
+    return mIds;
+  }
+
+  /**
+   * Returns the track whose symbols the ids are, or null if they are the
+   * ordinals of features.
+   *
+   * @return
+   */
+  TrackIndex getTrack() {
+    return mTrack;
+  }
+
+  /**
+   * Returns the chromosome whose features the ids are, or null if they are
+   * symbol ids.
+   *
+   * @return
+   */
+  ChrIndex getChr() {
+    return mChr;
+  }
+
+  /**
+   * Build the text without caching it.
+   *
+   * @return
+   */
+  String getText() {
+    List<String> texts = new ArrayList<String>(mIds.length);
+
+    for (int id : mIds) {
+      if (mChr != null) {
+        texts.add(mChr.getLocation(id));
+      } else {
+        texts.add(mTrack.getSymbol(id));
+      }
+    }
+
+    return TextUtils.scJoin(texts);
+  }
+
+  @Override
+  public String toString() {
+    synchronized (CACHE) {
+      String ret = CACHE.get(this);
+
+      if (ret != null) {
+        return ret;
+      }
+    }
+
+    String ret = getText();
+
+    synchronized (CACHE) {
+      CACHE.put(this, ret);
+    }
+
+    return ret;
+  }
+}
@@ -0,0 +1,297 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The features of several tracks merged into one index so that a single
+ * query finds the overlapping features of every track. Each feature is
+ * tagged with the track it came from and its ordinal in that track's
+ * chromosome, so the hits can be handed back to each track as if it had
+ * been queried on its own.
+ *
+ * <p>Features are sorted by start, then track, then ordinal, and use the
+ * same implicit interval tree as ChrIndex. Since each track's features keep
+ * their relative order, the hits for each track come out in the same order
+ * as ChrIndex.overlapping.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class FusedIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(FusedIndex.class);
+
+  /**
+   * Whether each track is in the index.
+   */
+  private final boolean[] mFused;
+
+  /**
+   * Merged chromosomes keyed by normalized name.
+   */
+  private final Map<String, FusedChr> mChrs = new HashMap<String, FusedChr>();
+
+  private long mFeatures = 0;
+
+  /**
+   * Merge some of the tracks for a set of chromosomes.
+   *
+   * @param tracks
+   * @param fused Which tracks to merge.
+   * @param chrs The chromosomes to merge.
+   */
+  public FusedIndex(List<TrackIndex> tracks, boolean[] fused,
+      Collection<String> chrs) {
+    mFused = fused;
+
+    long time = System.currentTimeMillis();
+
+    for (String chr : chrs) {
+      String name = TrackIndex.normalizeChr(chr);
+
+      if (!mChrs.containsKey(name)) {
+        FusedChr fusedChr = merge(tracks, chr);
+
+        mChrs.put(name, fusedChr);
+
+        mFeatures += fusedChr.mTracks.limit();
+      }
+    }
+
+    int n = 0;
+
+    for (boolean f : fused) {
+      if (f) {
+        ++n;
+      }
+    }
+
+    LOG.info("Fused {} features of {} tracks in {} ms",
+        mFeatures,
+        n,
+        System.currentTimeMillis() - time);
+  }
+
+  /**
+   * Returns true if a track's features are in the index.
+   *
+   * @param track
+   * @return
+   */
+  public boolean contains(int track) {
+    return mFused[track];
+  }
+
+  /**
+   * Returns true if the index has every feature of the fused tracks on a
+   * set of chromosomes.
+   *
+   * @param chrs
+   * @return
+   */
+  public boolean hasChrs(Collection<String> chrs) {
+    for (String chr : chrs) {
+      if (!mChrs.containsKey(TrackIndex.normalizeChr(chr))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the normalized names of the chromosomes in the index.
+   *
+   * @return
+   */
+  public Set<String> getChrs() {
+    return Collections.unmodifiableSet(mChrs.keySet());
+  }
+
+  /**
+   * Returns the heap used by the index in bytes.
+   *
+   * @return
+   */
+  public long getSize() {
+    // Start, end, track, ordinal and max end of each feature
+    return mFeatures * 20;
+  }
+
+  /**
+   * Returns a query with its own reusable hit lists, for use by a single
+   * thread.
+   *
+   * @return
+   */
+  public Query newQuery() {
+    return new Query();
+  }
+
+  /**
+   * Finds the features of every fused track that overlap a region.
+   */
+  public class Query {
+    private final HitList mFusedHits = new HitList();
+    private final HitList[] mHits = new HitList[mFused.length];
+
+    private Query() {
+      for (int t = 0; t < mHits.length; ++t) {
+        if (mFused[t]) {
+          mHits[t] = new HitList();
+        }
+      }
+    }
+
+    /**
+     * Find the features of every fused track that overlap a region.
+     *
+     * @param chr
+     * @param start
+     * @param end
+     */
+    public void overlapping(String chr, int start, int end) {
+      for (HitList hits : mHits) {
+        if (hits != null) {
+          hits.clear();
+        }
+      }
+
+      FusedChr fusedChr = mChrs.get(TrackIndex.normalizeChr(chr));
+
+      if (fusedChr == null) {
+        return;
+      }
+
+      mFusedHits.clear();
+
+      ChrIndex.overlapping(fusedChr.mStarts,
+          fusedChr.mEnds,
+          fusedChr.mMaxEnds,
+          start,
+          end,
+          mFusedHits);
+
+      for (int i = 0; i < mFusedHits.size(); ++i) {
+        int h = mFusedHits.get(i);
+
+        mHits[fusedChr.mTracks.get(h)].add(fusedChr.mOrdinals.get(h));
+      }
+    }
+
+    /**
+     * Returns the ordinals of the features of a track found by the last
+     * query, in start order.
+     *
+     * @param track
+     * @return
+     */
+    public HitList getHits(int track) {
+      return mHits[track];
+    }
+  }
+
+  /**
+   * Merge the features of the fused tracks on one chromosome.
+   *
+   * @param tracks
+   * @param chr
+   * @return
+   */
+  private FusedChr merge(List<TrackIndex> tracks, String chr) {
+    ChrIndex[] chrIndexes = new ChrIndex[tracks.size()];
+
+    int n = 0;
+
+    for (int t = 0; t < chrIndexes.length; ++t) {
+      if (mFused[t]) {
+        chrIndexes[t] = tracks.get(t).getChr(chr);
+
+        if (chrIndexes[t] != null) {
+          n += chrIndexes[t].size();
+        }
+      }
+    }
+
+    // Sort on start then position in the concatenation of the tracks,
+    // which orders ties by track then ordinal
+    long[] keys = new long[n];
+    int[] offsets = new int[chrIndexes.length + 1];
+
+    int p = 0;
+
+    for (int t = 0; t < chrIndexes.length; ++t) {
+      offsets[t] = p;
+
+      ChrIndex c = chrIndexes[t];
+
+      if (c != null) {
+        for (int i = 0; i < c.size(); ++i) {
+          keys[p] = ((long) c.getStart(i) << 32) | p;
+          ++p;
+        }
+      }
+    }
+
+    offsets[chrIndexes.length] = p;
+
+    Arrays.sort(keys);
+
+    int[] starts = new int[n];
+    int[] ends = new int[n];
+    int[] trackIds = new int[n];
+    int[] ordinals = new int[n];
+
+    for (int i = 0; i < n; ++i) {
+      int q = (int) keys[i];
+
+      int t = Arrays.binarySearch(offsets, q);
+
+      if (t < 0) {
+        t = -t - 2;
+      } else {
+        // Skip tracks without features that share the offset
+        while (offsets[t + 1] == q) {
+          ++t;
+        }
+      }
+
+      int ordinal = q - offsets[t];
+
+      starts[i] = chrIndexes[t].getStart(ordinal);
+      ends[i] = chrIndexes[t].getEnd(ordinal);
+      trackIds[i] = t;
+      ordinals[i] = ordinal;
+    }
+
+    return new FusedChr(starts, ends, trackIds, ordinals);
+  }
+
+  /**
+   * The merged features of one chromosome.
+   */
+  private static class FusedChr {
+    private final IntBuffer mStarts;
+    private final IntBuffer mEnds;
+    private final IntBuffer mTracks;
+    private final IntBuffer mOrdinals;
+    private final IntBuffer mMaxEnds;
+
+    public FusedChr(int[] starts, int[] ends, int[] tracks, int[] ordinals) {
+      mStarts = IntBuffer.wrap(starts);
+      mEnds = IntBuffer.wrap(ends);
+      mTracks = IntBuffer.wrap(tracks);
+      mOrdinals = IntBuffer.wrap(ordinals);
+      mMaxEnds = IntBuffer.wrap(ChrIndex.maxEnds(ends));
+    }
+  }
+}
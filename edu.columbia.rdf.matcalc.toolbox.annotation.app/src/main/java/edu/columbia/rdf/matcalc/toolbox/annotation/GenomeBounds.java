@@ -0,0 +1,236 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The size of each chromosome and the assembly gaps within them, used to
+ * place shuffled regions. Both are read from optional files installed with
+ * the tracks: chrom.sizes, with a chromosome and size per line, and
+ * gaps.bed. Chromosomes missing from chrom.sizes are as long as the
+ * furthest feature or region seen on them.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class GenomeBounds {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(GenomeBounds.class);
+
+  public static final String SIZES_FILE = "chrom.sizes";
+
+  public static final String GAPS_FILE = "gaps.bed";
+
+  /**
+   * Sizes keyed by normalized chromosome.
+   */
+  private final Map<String, Integer> mSizes = new HashMap<String, Integer>();
+
+  /**
+   * Merged gaps keyed by normalized chromosome, as 1-based inclusive starts
+   * and ends sorted by start.
+   */
+  private final Map<String, int[]> mGapStarts = new HashMap<String, int[]>();
+  private final Map<String, int[]> mGapEnds = new HashMap<String, int[]>();
+
+  /**
+   * Returns the size of a chromosome or 0 if it is not known.
+   *
+   * @param chr
+   * @return
+   */
+  public int getSize(String chr) {
+    Integer size = mSizes.get(TrackIndex.normalizeChr(chr));
+
+    return size != null ? size : 0;
+  }
+
+  /**
+   * Grow a chromosome so that it is at least a given length.
+   *
+   * @param chr
+   * @param end
+   */
+  public void extend(String chr, int end) {
+    if (end > getSize(chr)) {
+      mSizes.put(TrackIndex.normalizeChr(chr), end);
+    }
+  }
+
+  /**
+   * Returns the starts of the gaps on a chromosome or null if it has none.
+   *
+   * @param chr
+   * @return
+   */
+  public int[] getGapStarts(String chr) {
+    return mGapStarts.get(TrackIndex.normalizeChr(chr));
+  }
+
+  /**
+   * Returns the ends of the gaps on a chromosome, in the same order as the
+   * starts, or null if it has none.
+   *
+   * @param chr
+   * @return
+   */
+  public int[] getGapEnds(String chr) {
+    return mGapEnds.get(TrackIndex.normalizeChr(chr));
+  }
+
+  /**
+   * Load the chromosome sizes and, optionally, the gaps installed in a
+   * folder. Missing files are skipped.
+   *
+   * @param dir
+   * @param gaps Whether to load the gaps.
+   * @return
+   * @throws IOException
+   */
+  public static GenomeBounds load(Path dir, boolean gaps) throws IOException {
+    GenomeBounds bounds = new GenomeBounds();
+
+    Path file = dir.resolve(SIZES_FILE);
+
+    if (Files.exists(file)) {
+      bounds.loadSizes(file);
+    }
+
+    file = dir.resolve(GAPS_FILE);
+
+    if (gaps && Files.exists(file)) {
+      bounds.loadGaps(file);
+    }
+
+    return bounds;
+  }
+
+  private void loadSizes(Path file) throws IOException {
+    BufferedReader reader = Files.newBufferedReader(file,
+        StandardCharsets.UTF_8);
+
+    try {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        int t1 = line.indexOf('\t');
+
+        if (t1 == -1 || line.startsWith("#")) {
+          continue;
+        }
+
+        int t2 = line.indexOf('\t', t1 + 1);
+
+        extend(line.substring(0, t1),
+            Integer.parseInt(
+                line.substring(t1 + 1, t2 != -1 ? t2 : line.length())));
+      }
+    } finally {
+      reader.close();
+    }
+
+    LOG.info("Loaded the sizes of {} chromosomes", mSizes.size());
+  }
+
+  private void loadGaps(Path file) throws IOException {
+    Map<String, List<int[]>> gaps = new HashMap<String, List<int[]>>();
+
+    BufferedReader reader = Files.newBufferedReader(file,
+        StandardCharsets.UTF_8);
+
+    int n = 0;
+
+    try {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith("track") || line.startsWith("#")) {
+          continue;
+        }
+
+        int t1 = line.indexOf('\t');
+        int t2 = line.indexOf('\t', t1 + 1);
+
+        if (t1 == -1 || t2 == -1) {
+          continue;
+        }
+
+        int t3 = line.indexOf('\t', t2 + 1);
+
+        String chr = TrackIndex.normalizeChr(line.substring(0, t1));
+
+        List<int[]> chrGaps = gaps.get(chr);
+
+        if (chrGaps == null) {
+          chrGaps = new ArrayList<int[]>();
+          gaps.put(chr, chrGaps);
+        }
+
+        // BED starts are 0-based
+        chrGaps.add(new int[] {
+            Integer.parseInt(line.substring(t1 + 1, t2)) + 1,
+            Integer.parseInt(
+                line.substring(t2 + 1, t3 != -1 ? t3 : line.length())) });
+
+        ++n;
+      }
+    } finally {
+      reader.close();
+    }
+
+    for (Entry<String, List<int[]>> e : gaps.entrySet()) {
+      merge(e.getKey(), e.getValue());
+    }
+
+    LOG.info("Loaded {} gaps on {} chromosomes", n, gaps.size());
+  }
+
+  /**
+   * Sort and merge the gaps of a chromosome so that their ends are also
+   * sorted.
+   *
+   * @param chr
+   * @param gaps
+   */
+  private void merge(String chr, List<int[]> gaps) {
+    int[][] sorted = gaps.toArray(new int[gaps.size()][]);
+
+    Arrays.sort(sorted, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] g1, int[] g2) {
+        return Integer.compare(g1[0], g2[0]);
+      }
+    });
+
+    int[] starts = new int[sorted.length];
+    int[] ends = new int[sorted.length];
+
+    int n = 0;
+
+    for (int[] gap : sorted) {
+      if (n > 0 && gap[0] <= ends[n - 1] + 1) {
+        ends[n - 1] = Math.max(ends[n - 1], gap[1]);
+      } else {
+        starts[n] = gap[0];
+        ends[n] = gap[1];
+        ++n;
+      }
+    }
+
+    mGapStarts.put(chr, Arrays.copyOf(starts, n));
+    mGapEnds.put(chr, Arrays.copyOf(ends, n));
+  }
+}
@@ -0,0 +1,64 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.Arrays;
+
+/**
+ * Reusable, growable list of feature ordinals returned by an index query.
+ * Reusing the same list between queries avoids allocating per row. It also
+ * holds the stack used to walk a chromosome's interval tree so that queries
+ * themselves allocate nothing.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class HitList {
+  private int[] mHits;
+  private int mSize = 0;
+
+  /**
+   * Tree traversal stack. The tree depth is at most 31 and each level adds
+   * at most two entries.
+   */
+  private final int[] mStackNodes = new int[64];
+  private final int[] mStackLevels = new int[64];
+
+  public HitList() {
+    this(16);
+  }
+
+  public HitList(int capacity) {
+    mHits = new int[Math.max(1, capacity)];
+  }
+
+  public void add(int hit) {
+    if (mSize == mHits.length) {
+      mHits = Arrays.copyOf(mHits, mSize * 2);
+    }
+
+    mHits[mSize++] = hit;
+  }
+
+  public int get(int i) {
+    return mHits[i];
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  public void clear() {
+    mSize = 0;
+  }
+
+  int[] getStackNodes() {
+    return mStackNodes;
+  }
+
+  int[] getStackLevels() {
+    return mStackLevels;
+  }
+}
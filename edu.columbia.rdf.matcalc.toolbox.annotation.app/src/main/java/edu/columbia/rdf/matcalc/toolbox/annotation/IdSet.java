@@ -0,0 +1,149 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.Arrays;
+
+/**
+ * Reusable set of int ids, such as symbol ids, that keeps the order the ids
+ * were added in. Membership is tracked with a small open addressing table
+ * that grows with the number of ids in the set rather than with the range of
+ * the ids, and each slot is stamped so that clearing the set between queries
+ * takes constant time.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class IdSet {
+  private static final int MIN_CAPACITY = 16;
+
+  /**
+   * The ids tracked by {@link #add(int)}, a slot being in use if its stamp
+   * is the current one.
+   */
+  private int[] mKeys = new int[MIN_CAPACITY];
+  private int[] mStamps = new int[MIN_CAPACITY];
+  private int mStamp = 1;
+  private int mKeyCount = 0;
+
+  private int[] mIds = new int[MIN_CAPACITY];
+  private int mSize = 0;
+
+  /**
+   * Add an id if it is not already in the set.
+   *
+   * @param id
+   * @return true if the id was added.
+   */
+  public boolean add(int id) {
+    int mask = mKeys.length - 1;
+
+    for (int i = hash(id) & mask;; i = (i + 1) & mask) {
+      if (mStamps[i] != mStamp) {
+        mKeys[i] = id;
+        mStamps[i] = mStamp;
+        break;
+      }
+
+      if (mKeys[i] == id) {
+        return false;
+      }
+    }
+
+    // Keep the table at most half full so probes stay short
+    if (++mKeyCount * 2 > mKeys.length) {
+      grow();
+    }
+
+    append(id);
+
+    return true;
+  }
+
+  /**
+   * Add a value to the end of the list without checking whether it is
+   * already present. Values appended this way are not tracked by
+   * {@link #add(int)}.
+   *
+   * @param v
+   */
+  public void append(int v) {
+    if (mSize == mIds.length) {
+      mIds = Arrays.copyOf(mIds, mSize * 2);
+    }
+
+    mIds[mSize++] = v;
+  }
+
+  public int get(int i) {
+    return mIds[i];
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public void clear() {
+    mSize = 0;
+    mKeyCount = 0;
+
+    if (++mStamp == 0) {
+      // Stamps have wrapped around so old ones could match again
+      Arrays.fill(mStamps, 0);
+      mStamp = 1;
+    }
+  }
+
+  /**
+   * Double the table and re-insert the ids in use.
+   */
+  private void grow() {
+    int[] keys = mKeys;
+    int[] stamps = mStamps;
+
+    mKeys = new int[keys.length * 2];
+    mStamps = new int[keys.length * 2];
+
+    int mask = mKeys.length - 1;
+
+    for (int j = 0; j < keys.length; ++j) {
+      if (stamps[j] == mStamp) {
+        int i = hash(keys[j]) & mask;
+
+        while (mStamps[i] == mStamp) {
+          i = (i + 1) & mask;
+        }
+
+        mKeys[i] = keys[j];
+        mStamps[i] = mStamp;
+      }
+    }
+  }
+
+  /**
+   * Spread the bits of an id since symbol ids are often consecutive.
+   *
+   * @param id
+   * @return
+   */
+  private static int hash(int id) {
+    int h = id * 0x9E3779B9;
+
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Sort symbol ids alphabetically using the track's precomputed ranks.
+   *
+   * @param track
+   */
+  public void sortSymbols(TrackIndex track) {
+    for (int i = 0; i < mSize; ++i) {
+      mIds[i] = track.getSymbolRank(mIds[i]);
+    }
+
+    Arrays.sort(mIds, 0, mSize);
+
+    for (int i = 0; i < mSize; ++i) {
+      mIds[i] = track.getSymbolByRank(mIds[i]);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through a stream and the time spent reading them.
+ * Wrapped around a decompressing stream, the time is the time spent reading
+ * and decompressing as opposed to parsing what was read.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class MeteredInputStream extends FilterInputStream {
+  private long mBytes = 0;
+  private long mTime = 0;
+
+  public MeteredInputStream(InputStream in) {
+    super(in);
+  }
+
+  @Override
+  public int read() throws IOException {
+    long time = System.nanoTime();
+
+    int ret = super.read();
+
+    mTime += System.nanoTime() - time;
+
+    if (ret != -1) {
+      ++mBytes;
+    }
+
+    return ret;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    long time = System.nanoTime();
+
+    int ret = super.read(b, off, len);
+
+    mTime += System.nanoTime() - time;
+
+    if (ret > 0) {
+      mBytes += ret;
+    }
+
+    return ret;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long ret = super.skip(n);
+
+    mBytes += ret;
+
+    return ret;
+  }
+
+  /**
+   * Returns the number of bytes read so far.
+   *
+   * @return
+   */
+  public long getBytes() {
+    return mBytes;
+  }
+
+  /**
+   * Returns the time spent reading in nanoseconds.
+   *
+   * @return
+   */
+  public long getTime() {
+    return mTime;
+  }
+}
@@ -0,0 +1,452 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tests whether regions overlap each of a set of tracks more often than
+ * chance. The regions are shuffled to random positions on their own
+ * chromosome, keeping their lengths and avoiding gaps, and the number of
+ * regions overlapping at least one feature of each track is compared with
+ * the number before shuffling.
+ *
+ * <p>Everything the shuffle touches is held in primitive arrays indexed by
+ * chromosome id and nothing is allocated per permutation. Each track keeps
+ * its starts and the running maximum of its ends, so whether a region
+ * overlaps a track is a single binary search. Permutations are
+ * run in fixed size batches, each with its own random stream split from the
+ * seed in order, so the results only depend on the seed and not on the
+ * number of threads.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class OverlapEnrichment {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(OverlapEnrichment.class);
+
+  /**
+   * Permutations run by each task.
+   */
+  private static final int BATCH_SIZE = 32;
+
+  /**
+   * How many times to try to place a region outside of a gap before keeping
+   * the last position tried.
+   */
+  private static final int MAX_TRIES = 100;
+
+  private final List<TrackIndex> mTracks;
+
+  /**
+   * The sorted feature starts of each track, indexed by region chromosome
+   * id then track.
+   */
+  private final int[][][] mStarts;
+
+  /**
+   * The largest end of the features up to and including each start.
+   */
+  private final int[][][] mMaxEnds;
+
+  private final int[] mSizes;
+  private final int[][] mGapStarts;
+  private final int[][] mGapEnds;
+
+  /**
+   * The chromosome ids, starts and lengths of the rows with a region.
+   */
+  private final int[] mRegionChrs;
+  private final int[] mRegionStarts;
+  private final int[] mRegionLengths;
+
+  private int[] mObserved;
+  private double[] mExpected;
+  private double[] mPValues;
+  private int mPermutations = 0;
+
+  /**
+   * Prepare to test regions against tracks.
+   *
+   * @param tracks
+   * @param regions
+   * @param bounds The chromosome sizes and gaps. Chromosomes are extended to
+   *          cover the features and regions on them.
+   */
+  public OverlapEnrichment(List<TrackIndex> tracks, RegionList regions,
+      GenomeBounds bounds) {
+    mTracks = tracks;
+
+    int chrs = regions.getChrCount();
+
+    mStarts = new int[chrs][tracks.size()][];
+    mMaxEnds = new int[chrs][tracks.size()][];
+    mSizes = new int[chrs];
+    mGapStarts = new int[chrs][];
+    mGapEnds = new int[chrs][];
+
+    int n = 0;
+
+    for (int i = 0; i < regions.size(); ++i) {
+      if (regions.isValid(i)) {
+        bounds.extend(regions.getChr(i), regions.getEnd(i));
+        ++n;
+      }
+    }
+
+    for (int c = 0; c < chrs; ++c) {
+      String chr = regions.getChrName(c);
+
+      for (int t = 0; t < tracks.size(); ++t) {
+        ChrIndex chrIndex = tracks.get(t).getChr(chr);
+
+        if (chrIndex == null) {
+          continue;
+        }
+
+        int[] starts = new int[chrIndex.size()];
+        int[] maxEnds = new int[starts.length];
+
+        int maxEnd = 0;
+
+        for (int i = 0; i < starts.length; ++i) {
+          maxEnd = Math.max(maxEnd, chrIndex.getEnd(i));
+
+          starts[i] = chrIndex.getStart(i);
+          maxEnds[i] = maxEnd;
+        }
+
+        mStarts[c][t] = starts;
+        mMaxEnds[c][t] = maxEnds;
+
+        bounds.extend(chr, maxEnd);
+      }
+
+      mSizes[c] = bounds.getSize(chr);
+      mGapStarts[c] = bounds.getGapStarts(chr);
+      mGapEnds[c] = bounds.getGapEnds(chr);
+    }
+
+    mRegionChrs = new int[n];
+    mRegionStarts = new int[n];
+    mRegionLengths = new int[n];
+
+    n = 0;
+
+    for (int i = 0; i < regions.size(); ++i) {
+      if (regions.isValid(i)) {
+        mRegionChrs[n] = regions.getChrId(i);
+        mRegionStarts[n] = regions.getStart(i);
+        mRegionLengths[n] = regions.getLength(i);
+        ++n;
+      }
+    }
+  }
+
+  /**
+   * Count the overlaps of the regions and of shuffled copies of them.
+   *
+   * @param permutations The number of shuffles.
+   * @param seed
+   * @param threads
+   * @param listener Optional listener to cancel with, may be null.
+   * @return false if the test was cancelled.
+   * @throws InterruptedException
+   * @throws ExecutionException
+   */
+  public boolean run(int permutations,
+      long seed,
+      int threads,
+      final AnnotationListener listener)
+      throws InterruptedException, ExecutionException {
+    long time = System.currentTimeMillis();
+
+    int tracks = mTracks.size();
+
+    mObserved = new int[tracks];
+    count(mRegionStarts, mObserved);
+
+    // Split the random streams in batch order before running anything
+    SplittableRandom random = new SplittableRandom(seed);
+
+    List<Callable<long[]>> batches = new ArrayList<Callable<long[]>>();
+
+    for (int p = 0; p < permutations; p += BATCH_SIZE) {
+      final int n = Math.min(BATCH_SIZE, permutations - p);
+      final SplittableRandom batchRandom = random.split();
+
+      batches.add(new Callable<long[]>() {
+        @Override
+        public long[] call() {
+          return permute(n, batchRandom, listener);
+        }
+      });
+    }
+
+    // Sum of the shuffled overlaps then how often they reached the
+    // observed overlaps, for each track
+    long[] totals = new long[tracks * 2];
+
+    ExecutorService pool = Executors
+        .newFixedThreadPool(Math.max(1, Math.min(threads, batches.size())));
+
+    try {
+      for (Future<long[]> future : pool.invokeAll(batches)) {
+        long[] batch = future.get();
+
+        if (batch == null) {
+          return false;
+        }
+
+        for (int i = 0; i < totals.length; ++i) {
+          totals[i] += batch[i];
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+
+    mExpected = new double[tracks];
+    mPValues = new double[tracks];
+
+    for (int t = 0; t < tracks; ++t) {
+      mExpected[t] = permutations > 0
+          ? totals[t] / (double) permutations : 0;
+
+      // Count the observed regions as one of the permutations so that the
+      // p-value is never 0
+      mPValues[t] = (totals[tracks + t] + 1) / (double) (permutations + 1);
+    }
+
+    mPermutations = permutations;
+
+    LOG.info("Ran {} permutations of {} regions against {} tracks in {} ms",
+        permutations,
+        mRegionStarts.length,
+        tracks,
+        System.currentTimeMillis() - time);
+
+    return true;
+  }
+
+  /**
+   * Run a batch of permutations.
+   *
+   * @param permutations
+   * @param random
+   * @param listener
+   * @return The sum of the overlaps of each track then the number of
+   *         permutations with at least the observed overlaps, or null if
+   *         cancelled.
+   */
+  private long[] permute(int permutations,
+      SplittableRandom random,
+      AnnotationListener listener) {
+    int tracks = mTracks.size();
+
+    long[] totals = new long[tracks * 2];
+    int[] starts = new int[mRegionStarts.length];
+    int[] overlaps = new int[tracks];
+
+    for (int p = 0; p < permutations; ++p) {
+      if (listener != null && listener.isCancelled()) {
+        return null;
+      }
+
+      for (int i = 0; i < starts.length; ++i) {
+        starts[i] = shuffle(i, random);
+      }
+
+      count(starts, overlaps);
+
+      for (int t = 0; t < tracks; ++t) {
+        totals[t] += overlaps[t];
+
+        if (overlaps[t] >= mObserved[t]) {
+          ++totals[tracks + t];
+        }
+      }
+    }
+
+    return totals;
+  }
+
+  /**
+   * Count the regions overlapping each track when placed at given starts.
+   *
+   * @param starts
+   * @param overlaps The count for each track.
+   */
+  private void count(int[] starts, int[] overlaps) {
+    Arrays.fill(overlaps, 0);
+
+    for (int i = 0; i < starts.length; ++i) {
+      int c = mRegionChrs[i];
+
+      int start = starts[i];
+      int end = start + mRegionLengths[i] - 1;
+
+      for (int t = 0; t < overlaps.length; ++t) {
+        if (overlaps(mStarts[c][t], mMaxEnds[c][t], start, end)) {
+          ++overlaps[t];
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns true if any feature overlaps a region. Only the features that
+   * start at or before the end of the region can overlap it, and one does
+   * if the largest of their ends reaches the start.
+   *
+   * @param starts
+   * @param maxEnds
+   * @param start
+   * @param end
+   * @return
+   */
+  private static boolean overlaps(int[] starts,
+      int[] maxEnds,
+      int start,
+      int end) {
+    if (starts == null) {
+      return false;
+    }
+
+    int lo = 0;
+    int hi = starts.length;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (starts[mid] <= end) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo > 0 && maxEnds[lo - 1] >= start;
+  }
+
+  /**
+   * Returns a random start for a region that keeps it on its chromosome
+   * and, if possible, out of the gaps.
+   *
+   * @param i
+   * @param random
+   * @return
+   */
+  private int shuffle(int i, SplittableRandom random) {
+    int c = mRegionChrs[i];
+    int length = mRegionLengths[i];
+
+    // The number of places the region can start
+    int span = mSizes[c] - length + 1;
+
+    if (span < 2) {
+      return mRegionStarts[i];
+    }
+
+    int start = 0;
+
+    for (int k = 0; k < MAX_TRIES; ++k) {
+      start = 1 + random.nextInt(span);
+
+      if (!inGap(c, start, start + length - 1)) {
+        break;
+      }
+    }
+
+    return start;
+  }
+
+  /**
+   * Returns true if a region overlaps a gap.
+   *
+   * @param c
+   * @param start
+   * @param end
+   * @return
+   */
+  private boolean inGap(int c, int start, int end) {
+    int[] starts = mGapStarts[c];
+
+    if (starts == null) {
+      return false;
+    }
+
+    // The last gap starting at or before the end of the region is the only
+    // one that can overlap it since the gaps are merged
+    int lo = 0;
+    int hi = starts.length;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (starts[mid] <= end) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo > 0 && mGapEnds[c][lo - 1] >= start;
+  }
+
+  /**
+   * Returns the number of regions overlapping at least one feature of a
+   * track.
+   *
+   * @param t
+   * @return
+   */
+  public int getObserved(int t) {
+    return mObserved[t];
+  }
+
+  /**
+   * Returns the mean number of shuffled regions overlapping at least one
+   * feature of a track.
+   *
+   * @param t
+   * @return
+   */
+  public double getExpected(int t) {
+    return mExpected[t];
+  }
+
+  /**
+   * Returns the fraction of permutations, counting the regions themselves,
+   * with at least as many overlaps as observed.
+   *
+   * @param t
+   * @return
+   */
+  public double getPValue(int t) {
+    return mPValues[t];
+  }
+
+  public int getPermutations() {
+    return mPermutations;
+  }
+
+  /**
+   * Returns the number of rows with a region.
+   *
+   * @return
+   */
+  public int getRegionCount() {
+    return mRegionStarts.length;
+  }
+}
@@ -0,0 +1,1298 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jebtk.core.text.TextUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Annotates regions with the features of a set of tracks. Rows are split into
+ * fixed size blocks that are annotated in parallel on a fork/join pool. Each
+ * row is annotated independently so the output is the same regardless of how
+ * many threads are used.
+ * 
+ * <p>Rows with the same region, such as one row per sample, are annotated
+ * once and share their cells. If a memo is set, the cells of each region and
+ * track are also remembered and reused by later annotations with the same
+ * track and options.
+ * 
+ * <p>Very large inputs can be annotated a chunk of rows at a time, with
+ * each chunk written to an {@link AnnotationSpill} once it is finished.
+ * Only rows within a chunk share cells and the memo is not used, so that
+ * nothing grows with the number of rows while annotating.
+ * 
+ * <p>When many tracks are selected and the regions are not sorted, the
+ * tracks that need their overlapping features are merged into a
+ * {@link FusedIndex} so that each row is found with one query rather than
+ * one per track. The time of the fused query is counted against the first
+ * fused track of the row.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class RegionAnnotator {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(RegionAnnotator.class);
+
+  /**
+   * Number of rows each worker annotates at a time.
+   */
+  public static final int BLOCK_SIZE = 1024;
+
+  private static final long MB = 1024 * 1024;
+
+  private final List<TrackIndex> mTracks;
+  private final List<TrackOptions> mOptions;
+  private final boolean mClosestMode;
+  private final int mCols;
+
+  /**
+   * The number of columns each track adds.
+   */
+  private final int[] mTrackCols;
+
+  /**
+   * Whether the user has said the input is sorted by position.
+   */
+  private boolean mSorted = false;
+
+  private AnnotationMetrics mMetrics = null;
+
+  private AnnotationMemo mMemo = null;
+
+  /**
+   * Heap use in bytes above which unused cached tracks are dropped when
+   * annotating in chunks, 0 for no limit.
+   */
+  private long mMemoryBudget = 0;
+
+  /**
+   * The fused index of the last annotation, reused while it has the
+   * chromosomes needed.
+   */
+  private FusedIndex mLastFused = null;
+
+  /**
+   * Pool shared by every annotation. Idle workers exit on their own so it
+   * does not need shutting down.
+   */
+  private ForkJoinPool mSharedPool = null;
+
+  public RegionAnnotator(List<TrackIndex> tracks, List<TrackOptions> options,
+      boolean closestMode) {
+    mTracks = tracks;
+    mOptions = options;
+    mClosestMode = closestMode;
+    mCols = getColumnNames().size();
+
+    mTrackCols = new int[options.size()];
+
+    List<String> names = new ArrayList<String>();
+
+    for (int t = 0; t < mTrackCols.length; ++t) {
+      names.clear();
+      options.get(t).addColumnNames(names);
+      mTrackCols[t] = names.size();
+    }
+  }
+
+  /**
+   * Returns the names of the columns added by the annotation.
+   * 
+   * @return
+   */
+  public List<String> getColumnNames() {
+    List<String> names = new ArrayList<String>();
+
+    for (TrackOptions options : mOptions) {
+      options.addColumnNames(names);
+    }
+
+    return names;
+  }
+
+  public int getColumnCount() {
+    return mCols;
+  }
+
+  /**
+   * Set whether regions can be assumed to be sorted by position so that the
+   * sweep line search is used without checking. Otherwise regions are
+   * checked and the sweep is only used if they are sorted.
+   * 
+   * @param sorted
+   */
+  public void setSorted(boolean sorted) {
+    mSorted = sorted;
+  }
+
+  /**
+   * Set where to record the time spent querying each track and how many
+   * features were found. Nothing is timed if the metrics are null.
+   * 
+   * @param metrics
+   */
+  public void setMetrics(AnnotationMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  /**
+   * Set the memo to reuse the cells of regions annotated before and to
+   * remember new ones in. Nothing is remembered if the memo is null.
+   * 
+   * @param memo
+   */
+  public void setMemo(AnnotationMemo memo) {
+    mMemo = memo;
+  }
+
+  /**
+   * Set the heap use in bytes above which cached tracks that are not being
+   * used are dropped between chunks.
+   * 
+   * @param budget The budget, or 0 for no limit.
+   */
+  public void setMemoryBudget(long budget) {
+    mMemoryBudget = budget;
+  }
+
+  public List<TrackIndex> getTracks() {
+    return mTracks;
+  }
+
+  /**
+   * Annotate regions using a given number of threads. If the parallelism is
+   * 1 or less, the regions are annotated on the calling thread.
+   * 
+   * @param regions
+   * @param parallelism
+   * @return Blocks of annotation in row order.
+   */
+  public AnnotationBlock[] annotate(RegionList regions, int parallelism) {
+    return annotate(regions, parallelism, null);
+  }
+
+  /**
+   * Annotate regions using a given number of threads, reporting each block
+   * as it completes.
+   * 
+   * @param regions
+   * @param parallelism
+   * @param listener Optional listener, may be null.
+   * @return Blocks of annotation in row order. If the annotation was
+   *         cancelled, blocks that were not annotated are null.
+   */
+  public AnnotationBlock[] annotate(RegionList regions,
+      int parallelism,
+      AnnotationListener listener) {
+    AnnotationBlock[] blocks = new AnnotationBlock[getBlockCount(regions)];
+
+    Run run = new Run(regions, parallelism, mMemo);
+
+    try {
+      run.annotate(blocks, 0, blocks.length, listener);
+    } finally {
+      run.finish();
+    }
+
+    return blocks;
+  }
+
+  /**
+   * Annotate regions a chunk of rows at a time, writing each chunk to a
+   * spill file as soon as it is finished so that only one chunk of cells is
+   * held in memory. Rows only share cells with rows in the same chunk and
+   * the memo is not used. If the heap grows beyond the memory budget
+   * between chunks, cached tracks not used by this annotation are dropped.
+   * 
+   * @param regions
+   * @param parallelism
+   * @param chunkRows The number of rows to annotate before spilling them.
+   * @param spill Where to write the annotated blocks in row order.
+   * @param listener Optional listener, may be null.
+   * @return false if the annotation was cancelled.
+   * @throws IOException
+   */
+  public boolean annotate(RegionList regions,
+      int parallelism,
+      int chunkRows,
+      AnnotationSpill spill,
+      AnnotationListener listener) throws IOException {
+    AnnotationBlock[] blocks = new AnnotationBlock[getBlockCount(regions)];
+
+    int chunkBlocks = Math.max(1, chunkRows / BLOCK_SIZE);
+
+    Run run = new Run(regions, parallelism, null);
+
+    try {
+      for (int b = 0; b < blocks.length; b += chunkBlocks) {
+        int end = Math.min(blocks.length, b + chunkBlocks);
+
+        run.annotate(blocks, b, end, listener);
+
+        if (listener != null && listener.isCancelled()) {
+          return false;
+        }
+
+        for (int i = b; i < end; ++i) {
+          spill.write(blocks[i]);
+          blocks[i] = null;
+        }
+
+        checkMemory();
+      }
+    } finally {
+      run.finish();
+    }
+
+    return true;
+  }
+
+  private static int getBlockCount(RegionList regions) {
+    return (regions.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+  }
+
+  /**
+   * If the heap is over budget, drop the cached tracks this annotation is
+   * not using.
+   */
+  private void checkMemory() {
+    Runtime runtime = Runtime.getRuntime();
+
+    long used = runtime.totalMemory() - runtime.freeMemory();
+
+    if (mMemoryBudget < 1 || used <= mMemoryBudget) {
+      return;
+    }
+
+    long freed = TrackCache.getInstance().evictExcept(mTracks);
+
+    LOG.info("Heap use of {} MB is over budget, dropped {} MB of tracks.",
+        used / MB,
+        freed / MB);
+  }
+
+  /**
+   * The state shared by the blocks of one annotation: how tracks are
+   * searched, the memo and the pool to run on. Cells are shared between the
+   * rows of each range of blocks annotated.
+   */
+  private class Run {
+    private final RegionList mRegions;
+    private final boolean mSweep;
+    private final AnnotationMemo mMemo;
+
+    /**
+     * The fused index this run queries, or null if the tracks are queried
+     * separately.
+     */
+    private final FusedIndex mFused;
+
+    /**
+     * The pool this run annotates on, or null to annotate on the calling
+     * thread.
+     */
+    private final ForkJoinPool mPool;
+    private long mReused = 0;
+    private long mSharedRows = 0;
+
+    /**
+     * The rows with a region and the number of distinct regions, counted
+     * within each range, annotated so far.
+     */
+    private long mRows = 0;
+    private long mDistinctRegions = 0;
+
+    /**
+     * 
+     * @param regions
+     * @param parallelism
+     * @param memo The memo to use, or null.
+     */
+    public Run(RegionList regions, int parallelism, AnnotationMemo memo) {
+      mRegions = regions;
+      mMemo = memo;
+
+      // Sorted regions can be annotated in a single sweep along each track
+      mSweep = !mClosestMode && (mSorted || regions.isSorted());
+
+      if (mSweep) {
+        LOG.info("Regions are sorted, using sweep line search.");
+      }
+
+      // Sorted regions keep the sweep of each track, which is cheaper still
+      mFused = mSweep || mClosestMode ? null : fuse(regions);
+
+      mPool = parallelism > 1 && regions.size() > BLOCK_SIZE
+          ? getPool(parallelism) : null;
+    }
+
+    /**
+     * Annotate a range of blocks.
+     * 
+     * @param blocks
+     * @param start The first block.
+     * @param end One past the last block.
+     * @param listener
+     */
+    public void annotate(AnnotationBlock[] blocks,
+        int start,
+        int end,
+        AnnotationListener listener) {
+      SharedCells cells = share(start * BLOCK_SIZE,
+          Math.min(mRegions.size(), end * BLOCK_SIZE));
+
+      AnnotateTask task = new AnnotateTask(mRegions, blocks, start, end,
+          mSweep, cells, mFused, mPool, listener);
+
+      if (mPool != null && end - start > 1) {
+        mPool.invoke(task);
+      } else {
+        task.compute();
+      }
+
+      if (cells != null) {
+        mReused += cells.mReused.get();
+        mSharedRows += cells.mRows;
+      }
+    }
+
+    public void finish() {
+      if (mDistinctRegions > 0) {
+        LOG.info("{} rows have {} distinct regions (dedup ratio {}).",
+            mRows,
+            mDistinctRegions,
+            String.format("%.2f", mRows / (double) mDistinctRegions));
+      }
+
+      if (mSharedRows > 0) {
+        LOG.info("Reused {} of {} track rows.",
+            mReused,
+            mSharedRows * mTracks.size());
+      }
+
+      if (mMemo != null) {
+        mMemo.trim();
+      }
+    }
+
+    /**
+     * Find the rows of a range whose cells can be shared, either because
+     * their region is on more than one row of the range or because there is a
+     * memo with room for them, and the tables to share them through.
+     * 
+     * @param start The first row.
+     * @param end One past the last row.
+     * @return The shared cells, or null if there is nothing to share.
+     */
+    private SharedCells share(int start, int end) {
+      AnnotationMemo memo = mMemo;
+
+      AnnotationMemo.RegionKey[] keys = new AnnotationMemo.RegionKey[end
+          - start];
+
+      Map<AnnotationMemo.RegionKey, Integer> counts = new HashMap<AnnotationMemo.RegionKey, Integer>();
+
+      int rows = 0;
+
+      for (int i = 0; i < keys.length; ++i) {
+        int r = start + i;
+
+        if (mRegions.isValid(r)) {
+          keys[i] = new AnnotationMemo.RegionKey(mRegions.getChr(r),
+              mRegions.getStart(r), mRegions.getEnd(r));
+
+          Integer n = counts.get(keys[i]);
+
+          counts.put(keys[i], n == null ? 1 : n + 1);
+
+          ++rows;
+        }
+      }
+
+      mRows += rows;
+      mDistinctRegions += counts.size();
+
+      // Each track remembers every distinct region, so only remember them if
+      // they all fit
+      if (memo != null && !memo.fits((long) counts.size() * mTracks.size())) {
+        LOG.info("{} regions are too many to remember.", counts.size());
+
+        memo = null;
+      }
+
+      if (memo == null) {
+        if (counts.size() == rows) {
+          return null;
+        }
+
+        // Only the cells of regions on more than one row need sharing
+        for (int i = 0; i < keys.length; ++i) {
+          if (keys[i] != null && counts.get(keys[i]) == 1) {
+            keys[i] = null;
+          }
+        }
+      }
+
+      List<Map<AnnotationMemo.RegionKey, Object[]>> tables = new ArrayList<Map<AnnotationMemo.RegionKey, Object[]>>(
+          mTracks.size());
+
+      for (int t = 0; t < mTracks.size(); ++t) {
+        Map<AnnotationMemo.RegionKey, Object[]> table = null;
+
+        if (memo != null) {
+          table = memo.getTable(mTracks.get(t), mOptions.get(t), mClosestMode);
+        }
+
+        if (table == null) {
+          table = new ConcurrentHashMap<AnnotationMemo.RegionKey, Object[]>();
+        }
+
+        tables.add(table);
+      }
+
+      return new SharedCells(tables, keys, start, rows, memo != null);
+    }
+  }
+
+  /**
+   * Returns the pool to annotate on, only creating a new one if the
+   * parallelism has changed.
+   * 
+   * @param parallelism
+   * @return
+   */
+  private synchronized ForkJoinPool getPool(int parallelism) {
+    if (mSharedPool == null || mSharedPool.getParallelism() != parallelism) {
+      if (mSharedPool != null) {
+        mSharedPool.shutdown();
+      }
+
+      mSharedPool = new ForkJoinPool(parallelism);
+    }
+
+    return mSharedPool;
+  }
+
+  /**
+   * Merge the tracks that need their overlapping features into one index
+   * if there are enough of them and enough rows for it to be worthwhile.
+   * The index is reused by later annotations with this annotator, and
+   * through the track cache by other annotators of the same tracks.
+   * 
+   * @param regions
+   * @return The fused index, or null if the tracks are queried separately.
+   */
+  private FusedIndex fuse(RegionList regions) {
+    int minTracks = AnnotationSettings
+        .getInt(AnnotationSettings.FUSED_MIN_TRACKS, 4);
+
+    boolean[] fused = new boolean[mTracks.size()];
+
+    int n = 0;
+
+    for (int t = 0; t < fused.length; ++t) {
+      fused[t] = mOptions.get(t).getNeedsFeatures();
+
+      if (fused[t]) {
+        ++n;
+      }
+    }
+
+    if (minTracks < 1 || n < minTracks) {
+      return null;
+    }
+
+    List<String> chrs = regions.getChrs();
+
+    if (mLastFused != null && mLastFused.hasChrs(chrs)) {
+      return mLastFused;
+    }
+
+    FusedIndex index = TrackCache.getInstance().findFused(mTracks,
+        fused,
+        chrs);
+
+    if (index == null) {
+      // Merging sorts every feature once whereas each row saves querying
+      // all but one of the tracks, so it only pays off once the queries
+      // saved outnumber the features
+      long features = 0;
+
+      for (int t = 0; t < fused.length; ++t) {
+        if (fused[t]) {
+          for (String chr : chrs) {
+            ChrIndex chrIndex = mTracks.get(t).getChr(chr);
+
+            if (chrIndex != null) {
+              features += chrIndex.size();
+            }
+          }
+        }
+      }
+
+      if ((long) regions.size() * (n - 1) < features) {
+        LOG.info("Too few rows to fuse {} features of {} tracks.",
+            features,
+            n);
+
+        return null;
+      }
+
+      index = TrackCache.getInstance().getFused(mTracks, fused, chrs);
+    }
+
+    LOG.info("Querying {} tracks through a fused index.", n);
+
+    mLastFused = index;
+
+    return index;
+  }
+
+  /**
+   * Annotate the rows of a block.
+   * 
+   * @param regions
+   * @param b The index of the block.
+   * @param sweep Whether to use a sweep line search.
+   * @param cells Cells shared between rows, or null.
+   * @param fused Index of the tracks to query together, or null.
+   * @return
+   */
+  private AnnotationBlock annotateBlock(RegionList regions,
+      int b,
+      boolean sweep,
+      SharedCells cells,
+      FusedIndex fused) {
+    int start = b * BLOCK_SIZE;
+    int end = Math.min(regions.size(), start + BLOCK_SIZE);
+
+    AnnotationBlock block = new AnnotationBlock(start, end - start, mCols);
+
+    HitList hits = new HitList();
+
+    TrackHits[] trackHits = new TrackHits[mTracks.size()];
+
+    for (int t = 0; t < trackHits.length; ++t) {
+      trackHits[t] = new TrackHits(mTracks.get(t), mOptions.get(t));
+    }
+
+    SweepCursor[] cursors = null;
+
+    if (sweep) {
+      // Each block sweeps independently so blocks can still run in parallel
+      cursors = new SweepCursor[mTracks.size()];
+
+      for (int t = 0; t < cursors.length; ++t) {
+        cursors[t] = new SweepCursor();
+      }
+    }
+
+    FusedIndex.Query query = fused != null ? fused.newQuery() : null;
+
+    boolean timed = mMetrics != null;
+
+    int n = 0;
+
+    for (int r = start; r < end; ++r) {
+      if (regions.isValid(r)) {
+        n += annotate(regions.getChr(r),
+            regions.getStart(r),
+            regions.getEnd(r),
+            block,
+            r - start,
+            hits,
+            trackHits,
+            cursors,
+            cells != null ? cells.getKey(r) : null,
+            cells,
+            query,
+            timed);
+      }
+    }
+
+    if (cells != null) {
+      cells.mReused.addAndGet(n);
+    }
+
+    if (timed) {
+      for (int t = 0; t < trackHits.length; ++t) {
+        mMetrics.addQuery(t, trackHits[t].mTime, trackHits[t].mHitCount);
+      }
+
+      mMetrics.addRows(end - start);
+    }
+
+    return block;
+  }
+
+  /**
+   * Annotate a single region.
+   * 
+   * @param chr
+   * @param start
+   * @param end
+   * @param block The block to write to.
+   * @param row The row in the block.
+   * @param hits Reusable list for the query results.
+   * @param trackHits Reusable distinct hits for each track.
+   * @param cursors Sweep cursors for each track if the regions are sorted,
+   *          otherwise null.
+   * @param key The key to share the cells of the region by, or null if
+   *          they are not shared.
+   * @param shared Cells shared between rows, or null.
+   * @param fused Query of the fused tracks, or null.
+   * @param timed Whether to time each track.
+   * @return The number of tracks whose cells were copied.
+   */
+  private int annotate(String chr,
+      int start,
+      int end,
+      AnnotationBlock block,
+      int row,
+      HitList hits,
+      TrackHits[] trackHits,
+      SweepCursor[] cursors,
+      AnnotationMemo.RegionKey key,
+      SharedCells shared,
+      FusedIndex.Query fused,
+      boolean timed) {
+    int c = 0;
+    int reused = 0;
+
+    // The fused tracks are only queried once a track needs its features
+    boolean queried = false;
+
+    long time = timed ? System.nanoTime() : 0;
+
+    for (int t = 0; t < mTracks.size(); ++t) {
+      Map<AnnotationMemo.RegionKey, Object[]> table = key != null
+          ? shared.mTables.get(t) : null;
+
+      Object[] cells = table != null ? table.get(key) : null;
+
+      if (cells != null) {
+        for (int i = 0; i < cells.length; ++i) {
+          block.set(row, c + i, cells[i]);
+        }
+
+        ++reused;
+      } else {
+        HitList found = fused != null ? fused.getHits(t) : null;
+
+        if (found != null && !queried) {
+          fused.overlapping(chr, start, end);
+          queried = true;
+        }
+
+        annotate(t,
+            chr,
+            start,
+            end,
+            block,
+            row,
+            c,
+            hits,
+            found,
+            trackHits[t],
+            cursors != null ? cursors[t] : null);
+
+        if (table != null) {
+          cells = new Object[mTrackCols[t]];
+
+          for (int i = 0; i < cells.length; ++i) {
+            Object v = block.get(row, c + i);
+
+            // Feature text refers to its track, which the memo would
+            // otherwise keep in memory after the track cache drops it
+            if (shared.mRemembered && v instanceof FeatureText) {
+              v = ((FeatureText) v).getText();
+            }
+
+            cells[i] = v;
+          }
+
+          table.put(key, cells);
+        }
+      }
+
+      c += mTrackCols[t];
+
+      if (timed) {
+        long now = System.nanoTime();
+
+        trackHits[t].mTime += now - time;
+        time = now;
+      }
+    }
+
+    return reused;
+  }
+
+  /**
+   * Annotate a single region with one track.
+   * 
+   * @param t The index of the track.
+   * @param chr
+   * @param start
+   * @param end
+   * @param block The block to write to.
+   * @param row The row in the block.
+   * @param c The first column of the track in the block.
+   * @param hits Reusable list for the query results.
+   * @param found The overlapping features already found by a fused query,
+   *          or null to query the track.
+   * @param ids Reusable distinct hits for the track.
+   * @param cursor Sweep cursor for the track if the regions are sorted,
+   *          otherwise null.
+   */
+  private void annotate(int t,
+      String chr,
+      int start,
+      int end,
+      AnnotationBlock block,
+      int row,
+      int c,
+      HitList hits,
+      HitList found,
+      TrackHits ids,
+      SweepCursor cursor) {
+    TrackOptions options = mOptions.get(t);
+
+    // Find all features
+
+    ChrIndex chrIndex = mTracks.get(t).getChr(chr);
+
+    HitList overlaps = hits;
+
+    hits.clear();
+
+    if (found != null) {
+      overlaps = found;
+    } else if (chrIndex != null && options.getNeedsFeatures()) {
+      // Tracks that only need counting never look at the features
+      if (mClosestMode) {
+        chrIndex.closest(start, end, hits);
+      } else if (cursor != null) {
+        cursor.overlapping(chrIndex, start, end, hits);
+      } else {
+        // Everything that overlaps
+        chrIndex.overlapping(start, end, hits);
+      }
+    }
+
+    ids.mHitCount += overlaps.size();
+
+    ids.set(chrIndex, overlaps);
+
+    int n = ids.size();
+
+    if (options.getAddBounds()
+        || (options.getCondense() && options.getAddLocations())) {
+      ids.setBounds(overlaps, start, end);
+    }
+
+    if (options.getAddCount()) {
+      block.set(row, c++, n);
+    }
+
+    if (options.getAddOverlapCount()) {
+      block.set(row,
+          c++,
+          chrIndex != null ? chrIndex.countOverlapping(start, end) : 0);
+    }
+
+    if (options.getAddFirstN()) {
+      block.set(row,
+          c++,
+          ids.getFeatureText(Math.min(n, options.getFirstNCount())));
+    }
+
+    if (options.getAddNearest() || options.getAddDistance()) {
+      ids.setNearest(chrIndex, start, end, hits);
+
+      if (options.getAddNearest()) {
+        block.set(row, c++, TextUtils.scJoin(ids.getNearestTexts()));
+      }
+
+      if (options.getAddDistance()) {
+        if (options.getNearestCount() == 1) {
+          // A single distance is a number
+          block.set(row, c++, ids.getNearestDistance(start, end));
+        } else {
+          block.set(row,
+              c++,
+              TextUtils.scJoin(ids.getNearestDistances(start, end)));
+        }
+      }
+    }
+
+    if (options.getAddBounds()) {
+      if (n > 0) {
+        block.set(row, c, ids.mMinStart);
+        block.set(row, c + 1, ids.mMaxEnd);
+      }
+
+      block.set(row, c + 2, ids.mOverlapBp);
+
+      c += 3;
+    }
+
+    if (options.getCondense()) {
+      if (n > 0) {
+        if (options.getAddLocations()) {
+          // In locations mode we want to report the minimum and
+          // maximum coordinates that we find, which are taken from the
+          // hits rather than the location text. Always text so that the
+          // column has one type.
+          block.set(row, c, ids.mMinStart + "--" + ids.mMaxEnd);
+        } else {
+          String v1 = ids.getText(0);
+          String v2 = ids.getText(n - 1);
+
+          // If items at the extremes of the list are the same, there
+          // is no point adding dashes
+          if (v1.equals(v2)) {
+            block.set(row, c, v1);
+          } else {
+            block.set(row, c, v1 + "--" + v2);
+          }
+        }
+      }
+
+      ++c;
+    }
+
+    if (options.getAddAll()) {
+      block.set(row, c++, ids.getFeatureText(n));
+    }
+  }
+
+  /**
+   * The distinct features found for one track, as symbol ids or, in
+   * locations mode, feature ordinals. Text is only created for the features
+   * that are written out.
+   */
+  private static class TrackHits {
+    private final TrackIndex mTrack;
+    private final TrackOptions mOptions;
+    private final boolean mLocations;
+    private final boolean mAlphabetical;
+    private final IdSet mIds;
+    private ChrIndex mChr;
+
+    /**
+     * The distinct nearest features, nearest first.
+     */
+    private final HitList mNearest = new HitList();
+    private IdSet mNearestIds = null;
+
+    /**
+     * Sorted location text, since locations are sorted as text rather than
+     * by position.
+     */
+    private List<String> mSortedLocations;
+
+    /**
+     * The smallest start and largest end of the features found and how many
+     * bases of the region they cover, set by {@link #setBounds}.
+     */
+    private int mMinStart;
+    private int mMaxEnd;
+    private int mOverlapBp;
+
+    /**
+     * Time spent on this track and the features found, for the metrics.
+     */
+    private long mTime = 0;
+    private long mHitCount = 0;
+
+    public TrackHits(TrackIndex track, TrackOptions options) {
+      mTrack = track;
+      mOptions = options;
+      mLocations = options.getAddLocations();
+      // Sorting makes no difference if only the count is written
+      mAlphabetical = options.getAddAlphabetical() && options.getNeedsText();
+      mIds = new IdSet();
+    }
+
+    public void set(ChrIndex chr, HitList hits) {
+      mChr = chr;
+      mIds.clear();
+      mSortedLocations = null;
+
+      if (mLocations) {
+        for (int i = 0; i < hits.size(); ++i) {
+          if (!isDuplicateLocation(hits, i)) {
+            mIds.append(hits.get(i));
+          }
+        }
+
+        if (mAlphabetical) {
+          mSortedLocations = new ArrayList<String>(mIds.size());
+
+          for (int i = 0; i < mIds.size(); ++i) {
+            mSortedLocations.add(mChr.getLocation(mIds.get(i)));
+          }
+
+          Collections.sort(mSortedLocations);
+        }
+      } else {
+        for (int i = 0; i < hits.size(); ++i) {
+          mIds.add(mTrack.getSymbolId(mChr.getNameId(hits.get(i))));
+        }
+
+        if (mAlphabetical) {
+          mIds.sortSymbols(mTrack);
+        }
+      }
+    }
+
+    /**
+     * Find the extent of the features found and how many bases of a region
+     * they cover. Must be called after {@link #set}.
+     * 
+     * @param hits The features found, in start order.
+     * @param start
+     * @param end
+     */
+    public void setBounds(HitList hits, int start, int end) {
+      mMinStart = Integer.MAX_VALUE;
+      mMaxEnd = 0;
+      mOverlapBp = 0;
+
+      // Clipped to the region the hits are still in start order, so
+      // overlapping hits can be merged into runs as they are seen
+      int runStart = 0;
+      int runEnd = -1;
+
+      for (int i = 0; i < hits.size(); ++i) {
+        int h = hits.get(i);
+
+        int s = mChr.getStart(h);
+        int e = mChr.getEnd(h);
+
+        mMinStart = Math.min(mMinStart, s);
+        mMaxEnd = Math.max(mMaxEnd, e);
+
+        s = Math.max(s, start);
+        e = Math.min(e, end);
+
+        if (e < s) {
+          continue;
+        }
+
+        if (s > runEnd + 1) {
+          mOverlapBp += runEnd - runStart + 1;
+          runStart = s;
+          runEnd = e;
+        } else {
+          runEnd = Math.max(runEnd, e);
+        }
+      }
+
+      mOverlapBp += runEnd - runStart + 1;
+    }
+
+    /**
+     * Find the distinct nearest features to a region.
+     * 
+     * @param chr
+     * @param start
+     * @param end
+     * @param hits Reusable list for the query results.
+     */
+    public void setNearest(ChrIndex chr, int start, int end, HitList hits) {
+      mNearest.clear();
+
+      if (chr == null) {
+        return;
+      }
+
+      if (mNearestIds == null) {
+        mNearestIds = new IdSet();
+      }
+
+      int k = mOptions.getNearestCount();
+
+      // Several features may share a symbol or location so keep asking for
+      // more until there are enough distinct ones or there are no more
+      for (int n = k;; n *= 2) {
+        hits.clear();
+        mNearest.clear();
+        mNearestIds.clear();
+
+        int added = chr.nearest(start, end, n, mOptions.getMaxDistance(), hits);
+
+        for (int i = 0; i < hits.size() && mNearest.size() < k; ++i) {
+          int h = hits.get(i);
+
+          if (mLocations ? !isNearestLocation(chr, h)
+              : mNearestIds.add(mTrack.getSymbolId(chr.getNameId(h)))) {
+            mNearest.add(h);
+          }
+        }
+
+        if (mNearest.size() == k || added < n) {
+          break;
+        }
+      }
+    }
+
+    private boolean isNearestLocation(ChrIndex chr, int h) {
+      for (int i = 0; i < mNearest.size(); ++i) {
+        int p = mNearest.get(i);
+
+        if (chr.getStart(p) == chr.getStart(h)
+            && chr.getEnd(p) == chr.getEnd(h)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    public List<String> getNearestTexts() {
+      List<String> ret = new ArrayList<String>(mNearest.size());
+
+      for (int i = 0; i < mNearest.size(); ++i) {
+        int h = mNearest.get(i);
+
+        if (mLocations) {
+          ret.add(mChr.getLocation(h));
+        } else {
+          ret.add(mTrack.getSymbol(mTrack.getSymbolId(mChr.getNameId(h))));
+        }
+      }
+
+      return ret;
+    }
+
+    /**
+     * Returns the signed distance from a region to each of its nearest
+     * features.
+     * 
+     * @param start
+     * @param end
+     * @return
+     */
+    public List<String> getNearestDistances(int start, int end) {
+      List<String> ret = new ArrayList<String>(mNearest.size());
+
+      for (int i = 0; i < mNearest.size(); ++i) {
+        ret.add(
+            Integer.toString(mChr.getDistance(start, end, mNearest.get(i))));
+      }
+
+      return ret;
+    }
+
+    /**
+     * Returns the signed distance from a region to its nearest feature or
+     * null if there is none.
+     * 
+     * @param start
+     * @param end
+     * @return
+     */
+    public Integer getNearestDistance(int start, int end) {
+      if (mNearest.isEmpty()) {
+        return null;
+      }
+
+      return mChr.getDistance(start, end, mNearest.get(0));
+    }
+
+    /**
+     * Hits are in start order so a feature with the same location as an
+     * earlier hit must be in the run of hits with the same start.
+     * 
+     * @param hits
+     * @param i
+     * @return
+     */
+    private boolean isDuplicateLocation(HitList hits, int i) {
+      int h = hits.get(i);
+      int start = mChr.getStart(h);
+      int end = mChr.getEnd(h);
+
+      for (int j = i - 1; j >= 0; --j) {
+        int p = hits.get(j);
+
+        if (mChr.getStart(p) != start) {
+          break;
+        }
+
+        if (mChr.getEnd(p) == end) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    public int size() {
+      return mIds.size();
+    }
+
+    public String getText(int i) {
+      if (mSortedLocations != null) {
+        return mSortedLocations.get(i);
+      } else if (mLocations) {
+        return mChr.getLocation(mIds.get(i));
+      } else {
+        return mTrack.getSymbol(mIds.get(i));
+      }
+    }
+
+    /**
+     * Returns the text of the first n features, which is built only when it
+     * is needed.
+     * 
+     * @param n
+     * @return
+     */
+    public Object getFeatureText(int n) {
+      if (mSortedLocations != null) {
+        // Already built in order to sort them
+        return TextUtils.scJoin(mSortedLocations.subList(0, n));
+      }
+
+      if (n == 0) {
+        return "";
+      }
+
+      int[] ids = new int[n];
+
+      for (int i = 0; i < n; ++i) {
+        ids[i] = mIds.get(i);
+      }
+
+      if (mLocations) {
+        return new FeatureText(mChr, ids);
+      } else {
+        return new FeatureText(mTrack, ids);
+      }
+    }
+  }
+
+  /**
+   * The tables through which rows share cells. Rows with the same region
+   * look up their cells by the region before annotating it, so usually
+   * only the first of them is annotated, though two threads may annotate
+   * the same region at once.
+   */
+  private static class SharedCells {
+    private final List<Map<AnnotationMemo.RegionKey, Object[]>> mTables;
+
+    /**
+     * The key of each row of the range, or null if the row does not share
+     * its cells.
+     */
+    private final AnnotationMemo.RegionKey[] mKeys;
+
+    /**
+     * The first row of the range.
+     */
+    private final int mStart;
+
+    /**
+     * Whether the tables are the memo's, in which case cells are stored
+     * as text, numbers or null.
+     */
+    private final boolean mRemembered;
+
+    /**
+     * The number of rows with a region.
+     */
+    private final int mRows;
+
+    private final AtomicLong mReused = new AtomicLong();
+
+    public SharedCells(List<Map<AnnotationMemo.RegionKey, Object[]>> tables,
+        AnnotationMemo.RegionKey[] keys, int start, int rows,
+        boolean remembered) {
+      mTables = tables;
+      mKeys = keys;
+      mStart = start;
+      mRows = rows;
+      mRemembered = remembered;
+    }
+
+    public AnnotationMemo.RegionKey getKey(int row) {
+      return mKeys[row - mStart];
+    }
+  }
+
+  /**
+   * Recursively splits a range of blocks until each task has a single block.
+   */
+  private class AnnotateTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final RegionList mRegions;
+    private final AnnotationBlock[] mBlocks;
+    private final int mStart;
+    private final int mEnd;
+    private final boolean mSweep;
+    private final SharedCells mCells;
+    private final FusedIndex mFused;
+
+    /**
+     * The pool of the run, or null if the blocks are annotated on the
+     * calling thread.
+     */
+    private final ForkJoinPool mPool;
+    private final AnnotationListener mListener;
+
+    public AnnotateTask(RegionList regions, AnnotationBlock[] blocks,
+        int start, int end, boolean sweep, SharedCells cells,
+        FusedIndex fused, ForkJoinPool pool, AnnotationListener listener) {
+      mRegions = regions;
+      mBlocks = blocks;
+      mStart = start;
+      mEnd = end;
+      mSweep = sweep;
+      mCells = cells;
+      mFused = fused;
+      mPool = pool;
+      mListener = listener;
+    }
+
+    @Override
+    protected void compute() {
+      if (mEnd - mStart > 1 && mPool != null) {
+        int mid = (mStart + mEnd) >>> 1;
+
+        invokeAll(
+            new AnnotateTask(mRegions, mBlocks, mStart, mid, mSweep, mCells,
+                mFused, mPool, mListener),
+            new AnnotateTask(mRegions, mBlocks, mid, mEnd, mSweep, mCells,
+                mFused, mPool, mListener));
+      } else {
+        for (int b = mStart; b < mEnd; ++b) {
+          if (mListener != null && mListener.isCancelled()) {
+            return;
+          }
+
+          mBlocks[b] = annotateBlock(mRegions, b, mSweep, mCells,
+              mFused);
+
+          if (mListener != null) {
+            mListener.blockAnnotated(mBlocks[b]);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.math.matrix.DataFrame;
+
+/**
+ * The columns of a matrix holding genomic coordinates, either a single
+ * location column such as chr1:100-200 or separate chr, start and end
+ * columns.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class RegionColumns {
+  private final int mLocationColumn;
+  private final int mChrCol;
+  private final int mStartCol;
+  private final int mEndCol;
+
+  public RegionColumns(int locationColumn, int chrCol, int startCol,
+      int endCol) {
+    mLocationColumn = locationColumn;
+    mChrCol = chrCol;
+    mStartCol = startCol;
+    mEndCol = endCol;
+  }
+
+  /**
+   * Returns the location column or -1 if separate chr, start and end columns
+   * are used.
+   * 
+   * @return
+   */
+  public int getLocationColumn() {
+    return mLocationColumn;
+  }
+
+  public int getChrColumn() {
+    return mChrCol;
+  }
+
+  public int getStartColumn() {
+    return mStartCol;
+  }
+
+  public int getEndColumn() {
+    return mEndCol;
+  }
+
+  @Override
+  public int hashCode() {
+    return ((mLocationColumn * 31 + mChrCol) * 31 + mStartCol) * 31 + mEndCol;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof RegionColumns)) {
+      return false;
+    }
+
+    RegionColumns c = (RegionColumns) o;
+
+    return mLocationColumn == c.mLocationColumn && mChrCol == c.mChrCol
+        && mStartCol == c.mStartCol && mEndCol == c.mEndCol;
+  }
+
+  /**
+   * Find the coordinate columns of a matrix.
+   * 
+   * @param m
+   * @return The columns or null if the matrix does not appear to contain
+   *         genomic coordinates.
+   */
+  public static RegionColumns find(DataFrame m) {
+    // first find a location column
+    int locationColumn = DataFrame.findColumn(m, "location", "region");
+
+    if (locationColumn != -1) {
+
+      if (m.getRows() > 1) {
+        if (!GenomicRegion.isGenomicRegion(m.getText(0, locationColumn))
+            && !GenomicRegion.isGenomicRegion(m.getText(1, locationColumn))) {
+          // If the column does not appear to contain coordinates
+          locationColumn = -1;
+        }
+      } else if (m.getRows() == 1) {
+        if (!GenomicRegion.isGenomicRegion(m.getText(0, locationColumn))) {
+          // If the column does not appear to contain coordinates
+          locationColumn = -1;
+        }
+      } else {
+        locationColumn = -1;
+      }
+    }
+
+    if (locationColumn != -1) {
+      return new RegionColumns(locationColumn, -1, -1, -1);
+    }
+
+    // No location column so see if separate chr, start and end exist
+
+    int chrCol = DataFrame.findColumn(m, "chr");
+    int startCol = DataFrame.findColumn(m, "start");
+    int endCol = DataFrame.findColumn(m, "end");
+
+    if (chrCol == -1 || startCol == -1 || endCol == -1) {
+      return null;
+    }
+
+    return new RegionColumns(-1, chrCol, startCol, endCol);
+  }
+}
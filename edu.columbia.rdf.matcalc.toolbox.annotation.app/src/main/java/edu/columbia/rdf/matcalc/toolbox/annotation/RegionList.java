@@ -0,0 +1,305 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.bioinformatics.genomic.GenomicRegion;
+import org.jebtk.math.matrix.DataFrame;
+
+/**
+ * The regions of the rows of a matrix stored as columns: a chromosome id,
+ * start and end per row and a bitmap of which rows have a region. Rows
+ * without a region are skipped when annotating.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class RegionList {
+  private final int[] mChrIds;
+  private final int[] mStarts;
+  private final int[] mEnds;
+  private final long[] mValid;
+
+  private final List<String> mChrs = new ArrayList<String>();
+  private final Map<String, Integer> mChrMap = new HashMap<String, Integer>();
+
+  /**
+   * The last chromosome seen when parsing. Rows are usually grouped by
+   * chromosome so this avoids looking up the chromosome of most rows.
+   */
+  private int mLastChrId = -1;
+
+  public RegionList(int size) {
+    mChrIds = new int[size];
+    mStarts = new int[size];
+    mEnds = new int[size];
+    mValid = new long[(size + 63) >>> 6];
+  }
+
+  public void set(int i, String chr, int start, int end) {
+    set(i, getChrId(chr), start, end);
+  }
+
+  private void set(int i, int chrId, int start, int end) {
+    mChrIds[i] = chrId;
+    mStarts[i] = start;
+    mEnds[i] = end;
+    mValid[i >>> 6] |= 1L << i;
+  }
+
+  /**
+   * Set a region from a location such as chr1:100-200.
+   * 
+   * @param i
+   * @param genome
+   * @param location
+   * @return true if the location could be parsed.
+   */
+  public boolean setLocation(int i, Genome genome, String location) {
+    if (parseLocation(i, location)) {
+      return true;
+    }
+
+    // Leave anything unusual to the full parser
+    GenomicRegion region = GenomicRegion.parse(genome, location);
+
+    if (region == null) {
+      return false;
+    }
+
+    set(i, region.getChr().toString(), region.getStart(), region.getEnd());
+
+    return true;
+  }
+
+  /**
+   * Parse a location of the form chr:start-end without creating any
+   * objects, other than the chromosome name when it is first seen.
+   * 
+   * @param i
+   * @param location
+   * @return false if the location is not in the expected form.
+   */
+  private boolean parseLocation(int i, String location) {
+    int colon = location.indexOf(':');
+
+    if (colon < 1) {
+      return false;
+    }
+
+    int dash = location.indexOf('-', colon + 1);
+
+    if (dash == -1) {
+      return false;
+    }
+
+    int start = parseInt(location, colon + 1, dash);
+    int end = parseInt(location, dash + 1, location.length());
+
+    if (start == -1 || end == -1) {
+      return false;
+    }
+
+    int chrId = mLastChrId;
+
+    if (chrId == -1 || mChrs.get(chrId).length() != colon
+        || !location.startsWith(mChrs.get(chrId))) {
+      chrId = getChrId(location.substring(0, colon));
+    }
+
+    set(i, chrId, start, end);
+
+    return true;
+  }
+
+  /**
+   * Parse a non-negative integer, ignoring thousands separators.
+   * 
+   * @param s
+   * @param from
+   * @param to
+   * @return The integer or -1 if the text is not a valid integer.
+   */
+  private static int parseInt(String s, int from, int to) {
+    if (from >= to) {
+      return -1;
+    }
+
+    long v = 0;
+
+    for (int i = from; i < to; ++i) {
+      char c = s.charAt(i);
+
+      if (c >= '0' && c <= '9') {
+        v = v * 10 + (c - '0');
+
+        if (v > Integer.MAX_VALUE) {
+          return -1;
+        }
+      } else if (c != ',') {
+        return -1;
+      }
+    }
+
+    return (int) v;
+  }
+
+  /**
+   * Returns the id of a chromosome, adding it if it has not been seen.
+   * 
+   * @param chr
+   * @return
+   */
+  private int getChrId(String chr) {
+    Integer id = mChrMap.get(chr);
+
+    if (id == null) {
+      id = mChrs.size();
+      mChrs.add(chr);
+      mChrMap.put(chr, id);
+    }
+
+    mLastChrId = id;
+
+    return id;
+  }
+
+  public int size() {
+    return mChrIds.length;
+  }
+
+  public boolean isValid(int i) {
+    return (mValid[i >>> 6] & (1L << i)) != 0;
+  }
+
+  /**
+   * Returns the chromosome of a row or null if the row has no region.
+   * 
+   * @param i
+   * @return
+   */
+  public String getChr(int i) {
+    return isValid(i) ? mChrs.get(mChrIds[i]) : null;
+  }
+
+  /**
+   * Returns the id of the chromosome of a row. Ids are numbered from 0 in
+   * the order chromosomes are first seen.
+   * 
+   * @param i
+   * @return
+   */
+  public int getChrId(int i) {
+    return mChrIds[i];
+  }
+
+  public int getChrCount() {
+    return mChrs.size();
+  }
+
+  public String getChrName(int id) {
+    return mChrs.get(id);
+  }
+
+  /**
+   * Returns the chromosomes the regions are on in the order they are first
+   * seen.
+   * 
+   * @return
+   */
+  public List<String> getChrs() {
+    return Collections.unmodifiableList(mChrs);
+  }
+
+  public int getStart(int i) {
+    return mStarts[i];
+  }
+
+  public int getEnd(int i) {
+    return mEnds[i];
+  }
+
+  /**
+   * Returns the length of a region. Coordinates are inclusive.
+   * 
+   * @param i
+   * @return
+   */
+  public int getLength(int i) {
+    return mEnds[i] - mStarts[i] + 1;
+  }
+
+  /**
+   * Returns true if the regions are sorted by start within each run of rows
+   * on the same chromosome. Rows without a region are ignored.
+   * 
+   * @return
+   */
+  public boolean isSorted() {
+    int chr = -1;
+    int start = Integer.MIN_VALUE;
+
+    for (int i = 0; i < mChrIds.length; ++i) {
+      if (!isValid(i)) {
+        continue;
+      }
+
+      if (mChrIds[i] != chr) {
+        chr = mChrIds[i];
+      } else if (mStarts[i] < start) {
+        return false;
+      }
+
+      start = mStarts[i];
+    }
+
+    return true;
+  }
+
+  /**
+   * Read the regions of a matrix either from a location column or from
+   * separate chr, start and end columns.
+   * 
+   * @param m
+   * @param genome
+   * @param columns
+   * @return
+   */
+  public static RegionList parse(DataFrame m,
+      Genome genome,
+      RegionColumns columns) {
+    RegionList regions = new RegionList(m.getRows());
+
+    int locationColumn = columns.getLocationColumn();
+
+    for (int r = 0; r < m.getRows(); ++r) {
+      if (locationColumn != -1) {
+        String t = m.getText(r, locationColumn);
+
+        // Empty location so skip
+        if (t == null) {
+          continue;
+        }
+
+        regions.setLocation(r, genome, t);
+      } else {
+        String chr = m.getText(r, columns.getChrColumn());
+
+        if (chr == null || chr.isEmpty()) {
+          continue;
+        }
+
+        regions.set(r,
+            chr,
+            (int) m.getValue(r, columns.getStartColumn()),
+            (int) m.getValue(r, columns.getEndColumn()));
+      }
+    }
+
+    return regions;
+  }
+}
@@ -0,0 +1,302 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.jebtk.core.io.PathUtils;
+
+/**
+ * Annotates a tab delimited or BED file line by line without loading it into
+ * memory. Lines are read in chunks which are annotated in parallel and
+ * written out before the next chunk is read, so memory use is bounded by the
+ * chunk size rather than the size of the file.
+ * 
+ * <p>Tab delimited files must have a header with either a location (or
+ * region) column or chr, start and end columns. BED files have no header and
+ * their 0-based starts are converted to 1-based.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class StreamAnnotator {
+  /**
+   * Number of lines annotated at once.
+   */
+  public static final int CHUNK_SIZE = 64 * RegionAnnotator.BLOCK_SIZE;
+
+  private final RegionAnnotator mAnnotator;
+  private final Genome mGenome;
+  private final int mThreads;
+
+  private int mLocationColumn = -1;
+  private int mChrCol = -1;
+  private int mStartCol = -1;
+  private int mEndCol = -1;
+  private boolean mBed = false;
+
+  private AnnotationMetrics mMetrics = null;
+
+  public StreamAnnotator(RegionAnnotator annotator, Genome genome,
+      int threads) {
+    mAnnotator = annotator;
+    mGenome = genome;
+    mThreads = threads;
+  }
+
+  /**
+   * Set the metrics to record the next run in, for example to include the
+   * time spent loading tracks. Otherwise each run creates its own.
+   * 
+   * @param metrics
+   */
+  public void setMetrics(AnnotationMetrics metrics) {
+    mMetrics = metrics;
+  }
+
+  /**
+   * Annotate a file. Files ending in .gz are read or written gzipped and
+   * files whose name contains .bed are treated as BED.
+   * 
+   * @param input
+   * @param output
+   * @return The number of lines annotated.
+   * @throws IOException
+   */
+  public long annotate(Path input, Path output) throws IOException {
+    InputStream in = Files.newInputStream(input);
+
+    if (PathUtils.getName(input).endsWith(".gz")) {
+      in = new GZIPInputStream(in, 65536);
+    }
+
+    OutputStream out = Files.newOutputStream(output);
+
+    if (PathUtils.getName(output).endsWith(".gz")) {
+      out = new GZIPOutputStream(out, 65536);
+    }
+
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+
+    try {
+      BufferedWriter writer = new BufferedWriter(
+          new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+
+      try {
+        return annotate(reader,
+            writer,
+            PathUtils.getName(input).contains(".bed"));
+      } finally {
+        writer.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Annotate lines from a reader.
+   * 
+   * @param reader
+   * @param writer
+   * @param bed Whether the lines are BED rather than tab delimited with a
+   *          header.
+   * @return The number of lines annotated.
+   * @throws IOException
+   */
+  public long annotate(BufferedReader reader, BufferedWriter writer,
+      boolean bed) throws IOException {
+    if (mMetrics == null) {
+      mMetrics = new AnnotationMetrics();
+    }
+
+    mMetrics.setTracks(mAnnotator.getTracks());
+    mAnnotator.setMetrics(mMetrics);
+
+    try {
+      long n = annotateLines(reader, writer, bed);
+
+      mMetrics.finish();
+
+      return n;
+    } finally {
+      mAnnotator.setMetrics(null);
+      mMetrics = null;
+    }
+  }
+
+  private long annotateLines(BufferedReader reader,
+      BufferedWriter writer,
+      boolean bed) throws IOException {
+    mBed = bed;
+
+    if (bed) {
+      mChrCol = 0;
+      mStartCol = 1;
+      mEndCol = 2;
+    } else {
+      String header = reader.readLine();
+
+      if (header == null) {
+        return 0;
+      }
+
+      findColumns(header.split("\t", -1));
+
+      writer.write(header);
+
+      for (String name : mAnnotator.getColumnNames()) {
+        writer.write('\t');
+        writer.write(name);
+      }
+
+      writer.newLine();
+    }
+
+    List<String> lines = new ArrayList<String>(CHUNK_SIZE);
+
+    long n = 0;
+
+    String line;
+
+    while ((line = reader.readLine()) != null) {
+      if (bed && (line.startsWith("track") || line.startsWith("browser")
+          || line.startsWith("#"))) {
+        // Keep headers where they were
+        n += write(lines, writer);
+
+        writer.write(line);
+        writer.newLine();
+
+        continue;
+      }
+
+      lines.add(line);
+
+      if (lines.size() == CHUNK_SIZE) {
+        n += write(lines, writer);
+      }
+    }
+
+    n += write(lines, writer);
+
+    return n;
+  }
+
+  private void findColumns(String[] header) throws IOException {
+    for (int i = 0; i < header.length; ++i) {
+      String h = header[i].trim().toLowerCase();
+
+      if (mLocationColumn == -1
+          && (h.equals("location") || h.equals("region"))) {
+        mLocationColumn = i;
+      } else if (mChrCol == -1 && h.equals("chr")) {
+        mChrCol = i;
+      } else if (mStartCol == -1 && h.equals("start")) {
+        mStartCol = i;
+      } else if (mEndCol == -1 && h.equals("end")) {
+        mEndCol = i;
+      }
+    }
+
+    if (mLocationColumn == -1
+        && (mChrCol == -1 || mStartCol == -1 || mEndCol == -1)) {
+      throw new IOException(
+          "The header does not contain a location column or chr, start and end columns.");
+    }
+  }
+
+  /**
+   * Annotate a chunk of lines, write them out and clear the chunk.
+   * 
+   * @param lines
+   * @param writer
+   * @return The number of lines written.
+   * @throws IOException
+   */
+  private int write(List<String> lines, BufferedWriter writer)
+      throws IOException {
+    int n = lines.size();
+
+    if (n == 0) {
+      return 0;
+    }
+
+    long time = System.nanoTime();
+
+    RegionList regions = new RegionList(n);
+
+    for (int i = 0; i < n; ++i) {
+      parse(lines.get(i), regions, i);
+    }
+
+    mMetrics.addRegionTime(System.nanoTime() - time);
+
+    AnnotationBlock[] blocks = mAnnotator.annotate(regions, mThreads);
+
+    time = System.nanoTime();
+
+    for (AnnotationBlock block : blocks) {
+      for (int i = 0; i < block.getRows(); ++i) {
+        writer.write(lines.get(block.getStart() + i));
+
+        for (int j = 0; j < block.getCols(); ++j) {
+          writer.write('\t');
+
+          Object v = block.get(i, j);
+
+          if (v != null) {
+            writer.write(v.toString());
+          }
+        }
+
+        writer.newLine();
+      }
+    }
+
+    mMetrics.addFormatTime(System.nanoTime() - time);
+
+    lines.clear();
+
+    return n;
+  }
+
+  private void parse(String line, RegionList regions, int i) {
+    String[] tokens = line.split("\t", -1);
+
+    try {
+      if (mLocationColumn != -1) {
+        if (mLocationColumn < tokens.length) {
+          regions.setLocation(i, mGenome, tokens[mLocationColumn]);
+        }
+      } else if (mEndCol < tokens.length && mStartCol < tokens.length
+          && mChrCol < tokens.length) {
+        int start = Integer.parseInt(tokens[mStartCol].trim());
+
+        if (mBed) {
+          ++start;
+        }
+
+        regions.set(i,
+            tokens[mChrCol],
+            start,
+            Integer.parseInt(tokens[mEndCol].trim()));
+      }
+    } catch (NumberFormatException e) {
+      // Not a region so leave the row unannotated
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A memory mapped dictionary of UTF-8 strings referred to by id. Strings are
+ * only decoded when asked for.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class StringTable {
+  private final IntBuffer mOffsets;
+  private final ByteBuffer mBytes;
+  private final int mSize;
+
+  /**
+   * Create a table.
+   * 
+   * @param offsets The offset of each string in the bytes plus a final offset
+   *          marking the end of the last string.
+   * @param bytes
+   */
+  public StringTable(IntBuffer offsets, ByteBuffer bytes) {
+    mOffsets = offsets;
+    mBytes = bytes;
+    mSize = offsets.limit() - 1;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * Decode a string.
+   * 
+   * @param id
+   * @return
+   */
+  public String get(int id) {
+    int offset = mOffsets.get(id);
+    byte[] bytes = new byte[mOffsets.get(id + 1) - offset];
+
+    for (int i = 0; i < bytes.length; ++i) {
+      bytes[i] = mBytes.get(offset + i);
+    }
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,81 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.Arrays;
+
+/**
+ * Finds overlapping features by sweeping along a chromosome in a single pass
+ * when successive queries are sorted by start, rather than searching the
+ * index for every query. Features are added to an active list as queries
+ * reach them and dropped once they end before the current query, so each
+ * feature is visited a constant number of times.
+ * 
+ * <p>If the chromosome changes or a query starts before the previous one,
+ * the cursor is reset with a binary search, so the results are always the
+ * same as ChrIndex.overlapping; only the speed depends on the input being
+ * sorted.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class SweepCursor {
+  private ChrIndex mChr = null;
+  private int mStart = Integer.MIN_VALUE;
+  private int mNext = 0;
+
+  /**
+   * Features that may overlap the current or a later query, in start order.
+   */
+  private int[] mActive = new int[16];
+  private int mSize = 0;
+
+  /**
+   * Add the ordinals of all features overlapping a region to a list in start
+   * order.
+   * 
+   * @param chr
+   * @param start
+   * @param end
+   * @param hits
+   */
+  public void overlapping(ChrIndex chr, int start, int end, HitList hits) {
+    if (chr != mChr || start < mStart) {
+      reset(chr, start);
+    }
+
+    mStart = start;
+
+    while (mNext < chr.size() && chr.getStart(mNext) <= end) {
+      if (mSize == mActive.length) {
+        mActive = Arrays.copyOf(mActive, mSize * 2);
+      }
+
+      mActive[mSize++] = mNext++;
+    }
+
+    int n = 0;
+
+    for (int i = 0; i < mSize; ++i) {
+      int f = mActive[i];
+
+      // Queries only move forward so features ending before this one can
+      // never overlap again
+      if (chr.getEnd(f) >= start) {
+        mActive[n++] = f;
+
+        // Features added by an earlier, longer query may start after this
+        // one ends
+        if (chr.getStart(f) <= end) {
+          hits.add(f);
+        }
+      }
+    }
+
+    mSize = n;
+  }
+
+  private void reset(ChrIndex chr, int start) {
+    mChr = chr;
+    mNext = chr.firstStartAtLeast(start - chr.getMaxLength());
+    mSize = 0;
+  }
+}
@@ -0,0 +1,741 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.jebtk.core.io.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tabix index of a BGZF compressed BED track, which finds the compressed
+ * blocks holding the features in a region so that only those blocks need
+ * to be decompressed. The index is read from the .tbi file next to the
+ * track, as written by tabix, or built and written the first time it is
+ * needed.
+ *
+ * <p>Features are assigned to the bins of the UCSC binning scheme (a 512 Mb
+ * root divided by 8 at each of 5 levels down to 16 kb) and each bin lists
+ * the chunks of the file, as pairs of virtual offsets, holding its features.
+ * A linear index of the first offset of any feature overlapping each 16 kb
+ * window skips chunks that end before a region.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class TabixIndex {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(TabixIndex.class);
+
+  public static final String EXT = ".tbi";
+
+  /**
+   * "TBI\1" read as a little endian int.
+   */
+  private static final int MAGIC = 0x01494254;
+
+  private static final int MIN_SHIFT = 14;
+
+  /**
+   * Largest position the binning scheme covers.
+   */
+  private static final int MAX_POS = 1 << 29;
+
+  /**
+   * Generic format with 0-based (UCSC) coordinates.
+   */
+  private static final int FORMAT_UCSC = 0x10000;
+
+  private static final Path TMP_DIR = Paths
+      .get(System.getProperty("java.io.tmpdir"), "matcalc-annotation");
+
+  /**
+   * Versions of tracks found not to be sorted, so that they are not
+   * decompressed again just to fail to index them.
+   */
+  private static final Set<TrackKey> UNSORTED = new HashSet<TrackKey>();
+
+  private final List<String> mNames;
+
+  /**
+   * Reference ids keyed by normalized chromosome.
+   */
+  private final Map<String, Integer> mRefs = new HashMap<String, Integer>();
+
+  /**
+   * For each reference, the chunks of each bin as start and end offset
+   * pairs.
+   */
+  private final List<Map<Integer, long[]>> mBins;
+
+  /**
+   * For each reference, the smallest offset of a feature overlapping each
+   * 16 kb window.
+   */
+  private final List<long[]> mLinear;
+
+  private TabixIndex(List<String> names, List<Map<Integer, long[]>> bins,
+      List<long[]> linear) {
+    mNames = names;
+    mBins = bins;
+    mLinear = linear;
+
+    for (int i = 0; i < names.size(); ++i) {
+      mRefs.put(TrackIndex.normalizeChr(names.get(i)), i);
+    }
+  }
+
+  /**
+   * Returns the chromosomes in the order they appear in the track.
+   *
+   * @return
+   */
+  public List<String> getChrs() {
+    return Collections.unmodifiableList(mNames);
+  }
+
+  /**
+   * Add the chunks that may hold features overlapping a region.
+   *
+   * @param chr
+   * @param start 1-based start.
+   * @param end Inclusive end.
+   * @param chunks Chunks are added as start and end virtual offsets.
+   */
+  public void addChunks(String chr, int start, int end, List<long[]> chunks) {
+    Integer ref = mRefs.get(TrackIndex.normalizeChr(chr));
+
+    if (ref == null) {
+      return;
+    }
+
+    // Convert to 0-based, half open
+    int beg = Math.max(0, start - 1);
+    end = Math.min(end, MAX_POS);
+
+    if (beg >= end) {
+      return;
+    }
+
+    long[] linear = mLinear.get(ref);
+
+    long minOffset = 0;
+
+    if (linear.length > 0) {
+      minOffset = linear[Math.min(beg >> MIN_SHIFT, linear.length - 1)];
+    }
+
+    Map<Integer, long[]> bins = mBins.get(ref);
+
+    for (int bin : reg2bins(beg, end)) {
+      long[] binChunks = bins.get(bin);
+
+      if (binChunks == null) {
+        continue;
+      }
+
+      for (int i = 0; i < binChunks.length; i += 2) {
+        if (binChunks[i + 1] > minOffset) {
+          chunks.add(new long[] { binChunks[i], binChunks[i + 1] });
+        }
+      }
+    }
+  }
+
+  /**
+   * Add the chunks holding all of the features on a chromosome.
+   *
+   * @param chr
+   * @param chunks
+   */
+  public void addChunks(String chr, List<long[]> chunks) {
+    addChunks(chr, 1, MAX_POS, chunks);
+  }
+
+  /**
+   * Sort chunks and merge those that overlap or touch so that each part of
+   * the file is read once.
+   *
+   * @param chunks
+   * @return
+   */
+  public static List<long[]> merge(List<long[]> chunks) {
+    List<long[]> sorted = new ArrayList<long[]>(chunks);
+
+    Collections.sort(sorted, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] c1, long[] c2) {
+        return Long.compare(c1[0], c2[0]);
+      }
+    });
+
+    List<long[]> ret = new ArrayList<long[]>(sorted.size());
+
+    for (long[] chunk : sorted) {
+      if (!ret.isEmpty() && chunk[0] <= ret.get(ret.size() - 1)[1]) {
+        long[] last = ret.get(ret.size() - 1);
+
+        last[1] = Math.max(last[1], chunk[1]);
+      } else {
+        ret.add(new long[] { chunk[0], chunk[1] });
+      }
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the bins that may contain features overlapping a 0-based, half
+   * open region.
+   *
+   * @param beg
+   * @param end
+   * @return
+   */
+  private static List<Integer> reg2bins(int beg, int end) {
+    List<Integer> ret = new ArrayList<Integer>();
+
+    --end;
+
+    int t = 0;
+
+    for (int level = 0, s = MIN_SHIFT + 15; level <= 5; ++level, s -= 3) {
+      for (int b = t + (beg >> s); b <= t + (end >> s); ++b) {
+        ret.add(b);
+      }
+
+      t += 1 << (3 * level);
+    }
+
+    return ret;
+  }
+
+  /**
+   * Returns the smallest bin that contains a 0-based, half open region.
+   *
+   * @param beg
+   * @param end
+   * @return
+   */
+  private static int reg2bin(int beg, int end) {
+    --end;
+
+    if (beg >> 14 == end >> 14) {
+      return 4681 + (beg >> 14);
+    }
+
+    if (beg >> 17 == end >> 17) {
+      return 585 + (beg >> 17);
+    }
+
+    if (beg >> 20 == end >> 20) {
+      return 73 + (beg >> 20);
+    }
+
+    if (beg >> 23 == end >> 23) {
+      return 9 + (beg >> 23);
+    }
+
+    if (beg >> 26 == end >> 26) {
+      return 1 + (beg >> 26);
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns the tabix index of a BGZF track, building and writing it if
+   * there is no up to date index.
+   *
+   * @param track
+   * @return
+   * @throws IOException If the index cannot be read or built, for example
+   *           because the track is not sorted.
+   */
+  public static TabixIndex load(Path track) throws IOException {
+    Path file = findIndex(track);
+
+    if (file != null) {
+      return read(file);
+    }
+
+    TrackKey key = TrackKey.create(track);
+
+    synchronized (UNSORTED) {
+      if (UNSORTED.contains(key)) {
+        throw new IOException(track + " is not sorted.");
+      }
+    }
+
+    try {
+      return build(track);
+    } catch (UnsortedException e) {
+      synchronized (UNSORTED) {
+        UNSORTED.add(key);
+      }
+
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the path of the index file alongside a track.
+   *
+   * @param track
+   * @return
+   */
+  public static Path getIndexFile(Path track) {
+    return track.resolveSibling(PathUtils.getName(track) + EXT);
+  }
+
+  private static Path getTmpIndexFile(Path track) {
+    return TMP_DIR.resolve(PathUtils.getName(track) + "."
+        + Integer.toHexString(track.toAbsolutePath().hashCode()) + EXT);
+  }
+
+  /**
+   * Find an index that is at least as new as its track.
+   *
+   * @param track
+   * @return
+   * @throws IOException
+   */
+  private static Path findIndex(Path track) throws IOException {
+    long modified = Files.getLastModifiedTime(track).toMillis();
+
+    for (Path file : new Path[] { getIndexFile(track),
+        getTmpIndexFile(track) }) {
+      if (Files.exists(file)
+          && Files.getLastModifiedTime(file).toMillis() >= modified) {
+        return file;
+      }
+    }
+
+    return null;
+  }
+
+  private static TabixIndex read(Path file) throws IOException {
+    DataInputStream in = new DataInputStream(new BgzfInputStream(file));
+
+    try {
+      if (readInt(in) != MAGIC) {
+        throw new IOException(file + " is not a tabix index.");
+      }
+
+      int n = readInt(in);
+
+      // Format, sequence, start and end columns, meta character and lines
+      // to skip
+      for (int i = 0; i < 6; ++i) {
+        readInt(in);
+      }
+
+      byte[] names = new byte[readInt(in)];
+
+      in.readFully(names);
+
+      List<String> chrs = new ArrayList<String>(n);
+
+      int p = 0;
+
+      for (int i = 0; i < names.length; ++i) {
+        if (names[i] == 0) {
+          chrs.add(new String(names, p, i - p, StandardCharsets.UTF_8));
+          p = i + 1;
+        }
+      }
+
+      List<Map<Integer, long[]>> bins = new ArrayList<Map<Integer, long[]>>(
+          n);
+      List<long[]> linear = new ArrayList<long[]>(n);
+
+      for (int i = 0; i < n; ++i) {
+        int nb = readInt(in);
+
+        Map<Integer, long[]> refBins = new HashMap<Integer, long[]>(
+            nb * 2);
+
+        for (int j = 0; j < nb; ++j) {
+          int bin = readInt(in);
+
+          long[] chunks = new long[readInt(in) * 2];
+
+          for (int k = 0; k < chunks.length; ++k) {
+            chunks[k] = readLong(in);
+          }
+
+          refBins.put(bin, chunks);
+        }
+
+        bins.add(refBins);
+
+        long[] offsets = new long[readInt(in)];
+
+        for (int k = 0; k < offsets.length; ++k) {
+          offsets[k] = readLong(in);
+        }
+
+        linear.add(offsets);
+      }
+
+      return new TabixIndex(chrs, bins, linear);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Index a BGZF track and write the index next to it or, if that is not
+   * possible, to the temp directory.
+   *
+   * @param track
+   * @return
+   * @throws IOException
+   */
+  private static TabixIndex build(Path track) throws IOException {
+    LOG.info("Building tabix index for {}...", track);
+
+    long time = System.currentTimeMillis();
+
+    List<String> names = new ArrayList<String>();
+    List<Map<Integer, long[]>> bins = new ArrayList<Map<Integer, long[]>>();
+    List<long[]> linear = new ArrayList<long[]>();
+
+    BgzfInputStream in = new BgzfInputStream(track);
+
+    try {
+      RefBuilder ref = null;
+
+      long offset = in.getVirtualOffset();
+
+      String line;
+
+      while ((line = in.readLine()) != null) {
+        long next = in.getVirtualOffset();
+
+        if (line.isEmpty() || line.startsWith("track")
+            || line.startsWith("browser") || line.startsWith("#")) {
+          offset = next;
+
+          continue;
+        }
+
+        int t1 = line.indexOf('\t');
+        int t2 = line.indexOf('\t', t1 + 1);
+
+        if (t1 == -1 || t2 == -1) {
+          offset = next;
+
+          continue;
+        }
+
+        int t3 = line.indexOf('\t', t2 + 1);
+
+        if (t3 == -1) {
+          t3 = line.length();
+        }
+
+        if (ref == null || !line.startsWith(ref.mChr)
+            || t1 != ref.mChr.length()) {
+          if (ref != null) {
+            ref.finish(bins, linear);
+          }
+
+          String chr = line.substring(0, t1);
+
+          if (names.contains(chr)) {
+            throw new UnsortedException(
+                track + " is not sorted by chromosome.");
+          }
+
+          names.add(chr);
+
+          ref = new RefBuilder(chr);
+        }
+
+        int beg = Integer.parseInt(line.substring(t1 + 1, t2));
+        int end = Integer.parseInt(line.substring(t2 + 1, t3));
+
+        if (beg < ref.mLastBeg) {
+          throw new UnsortedException(track + " is not sorted by start.");
+        }
+
+        ref.add(beg, Math.max(end, beg + 1), offset, next);
+
+        offset = next;
+      }
+
+      if (ref != null) {
+        ref.finish(bins, linear);
+      }
+    } finally {
+      in.close();
+    }
+
+    TabixIndex index = new TabixIndex(names, bins, linear);
+
+    Path file = getIndexFile(track);
+
+    try {
+      index.write(file);
+    } catch (IOException e) {
+      LOG.info("Cannot write {}, using {}", file, TMP_DIR);
+
+      Files.createDirectories(TMP_DIR);
+
+      file = getTmpIndexFile(track);
+
+      index.write(file);
+    }
+
+    LOG.info("Tabix index {} built in {} ms",
+        file,
+        System.currentTimeMillis() - time);
+
+    return index;
+  }
+
+  /**
+   * Write the index in the tabix format to a temporary file and then move it
+   * into place.
+   *
+   * @param file
+   * @throws IOException
+   */
+  private void write(Path file) throws IOException {
+    Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(),
+        PathUtils.getName(file),
+        ".tmp");
+
+    try {
+      DataOutputStream out = new DataOutputStream(new BgzfOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmp))));
+
+      try {
+        writeInt(out, MAGIC);
+        writeInt(out, mNames.size());
+        writeInt(out, FORMAT_UCSC);
+        writeInt(out, 1);
+        writeInt(out, 2);
+        writeInt(out, 3);
+        writeInt(out, '#');
+        writeInt(out, 0);
+
+        int length = 0;
+
+        for (String name : mNames) {
+          length += name.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+
+        writeInt(out, length);
+
+        for (String name : mNames) {
+          out.write(name.getBytes(StandardCharsets.UTF_8));
+          out.write(0);
+        }
+
+        for (int i = 0; i < mNames.size(); ++i) {
+          Map<Integer, long[]> bins = mBins.get(i);
+
+          writeInt(out, bins.size());
+
+          for (Entry<Integer, long[]> e : bins.entrySet()) {
+            writeInt(out, e.getKey());
+            writeInt(out, e.getValue().length / 2);
+
+            for (long v : e.getValue()) {
+              writeLong(out, v);
+            }
+          }
+
+          long[] offsets = mLinear.get(i);
+
+          writeInt(out, offsets.length);
+
+          for (long v : offsets) {
+            writeLong(out, v);
+          }
+        }
+      } finally {
+        out.close();
+      }
+
+      try {
+        Files.move(tmp,
+            file,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private static int readInt(DataInputStream in) throws IOException {
+    return Integer.reverseBytes(in.readInt());
+  }
+
+  private static long readLong(DataInputStream in) throws IOException {
+    return Long.reverseBytes(in.readLong());
+  }
+
+  private static void writeInt(DataOutputStream out, int v)
+      throws IOException {
+    out.writeInt(Integer.reverseBytes(v));
+  }
+
+  private static void writeLong(DataOutputStream out, long v)
+      throws IOException {
+    out.writeLong(Long.reverseBytes(v));
+  }
+
+  /**
+   * Thrown when a track cannot be indexed because it is not sorted.
+   */
+  private static class UnsortedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public UnsortedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Collects the bins and linear index of one chromosome while indexing.
+   */
+  private static class RefBuilder {
+    private final String mChr;
+    private final Map<Integer, List<Long>> mBins =
+        new TreeMap<Integer, List<Long>>();
+    private long[] mLinear = new long[64];
+    private int mWindows = 0;
+    private int mLastBeg = 0;
+
+    /**
+     * The chunk being extended.
+     */
+    private int mBin = -1;
+    private long mChunkStart;
+    private long mChunkEnd;
+
+    public RefBuilder(String chr) {
+      mChr = chr;
+    }
+
+    /**
+     * Add a feature.
+     *
+     * @param beg 0-based start.
+     * @param end End, exclusive.
+     * @param start Offset of the line.
+     * @param next Offset of the next line.
+     */
+    public void add(int beg, int end, long start, long next) {
+      mLastBeg = beg;
+
+      int bin = reg2bin(beg, Math.min(end, MAX_POS));
+
+      if (bin != mBin) {
+        addChunk();
+
+        mBin = bin;
+        mChunkStart = start;
+      }
+
+      mChunkEnd = next;
+
+      int w1 = beg >> MIN_SHIFT;
+      int w2 = (Math.min(end, MAX_POS) - 1) >> MIN_SHIFT;
+
+      if (w2 >= mLinear.length) {
+        int size = mLinear.length;
+
+        mLinear = Arrays.copyOf(mLinear, Math.max(size * 2, w2 + 1));
+      }
+
+      for (int w = w1; w <= w2; ++w) {
+        if (w >= mWindows) {
+          // Windows skipped so far have no features
+          for (int i = mWindows; i < w; ++i) {
+            mLinear[i] = -1;
+          }
+
+          mLinear[w] = start;
+          mWindows = w + 1;
+        } else if (mLinear[w] == -1) {
+          mLinear[w] = start;
+        }
+      }
+    }
+
+    private void addChunk() {
+      if (mBin == -1) {
+        return;
+      }
+
+      List<Long> chunks = mBins.get(mBin);
+
+      if (chunks == null) {
+        chunks = new ArrayList<Long>();
+        mBins.put(mBin, chunks);
+      }
+
+      chunks.add(mChunkStart);
+      chunks.add(mChunkEnd);
+    }
+
+    public void finish(List<Map<Integer, long[]>> bins, List<long[]> linear) {
+      addChunk();
+
+      Map<Integer, long[]> ret = new TreeMap<Integer, long[]>();
+
+      for (Entry<Integer, List<Long>> e : mBins.entrySet()) {
+        long[] chunks = new long[e.getValue().size()];
+
+        for (int i = 0; i < chunks.length; ++i) {
+          chunks[i] = e.getValue().get(i);
+        }
+
+        ret.put(e.getKey(), chunks);
+      }
+
+      bins.add(ret);
+
+      long[] offsets = Arrays.copyOf(mLinear, mWindows);
+
+      // Windows without features start where the previous window did
+      long last = 0;
+
+      for (int i = 0; i < offsets.length; ++i) {
+        if (offsets[i] == -1) {
+          offsets[i] = last;
+        } else {
+          last = offsets[i];
+        }
+      }
+
+      linear.add(offsets);
+    }
+  }
+}
@@ -0,0 +1,723 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide cache of track indexes so that repeated annotations against
+ * the same track do not have to reload it. Tracks are keyed on their path,
+ * modification time and size. Once the estimated memory used by the cached
+ * tracks exceeds the budget, the least recently used tracks are evicted.
+ * Concurrent requests for the same track share a single load.
+ * 
+ * <p>A track that has not been indexed can be loaded for just the
+ * chromosomes being annotated. If a later annotation needs other
+ * chromosomes, the track is loaded again with those added.
+ * 
+ * <p>Fused indexes of sets of cached tracks are kept too and count towards
+ * the budget. Since they are rebuilt from tracks already in memory, they
+ * are evicted before any track.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class TrackCache {
+  private static final Logger LOG = LoggerFactory.getLogger(TrackCache.class);
+
+  private static final long MB = 1024 * 1024;
+
+  private static class TrackCacheLoader {
+    private static final TrackCache INSTANCE = new TrackCache();
+  }
+
+  public static TrackCache getInstance() {
+    return TrackCacheLoader.INSTANCE;
+  }
+
+  /**
+   * Tracks in access order so that the first entry is the least recently
+   * used.
+   */
+  private final Map<TrackKey, TrackIndex> mTracks = new LinkedHashMap<TrackKey, TrackIndex>(
+      16, 0.75f, true);
+
+  /**
+   * Fused indexes in access order, keyed by the version of each fused track
+   * and null for tracks that are not fused.
+   */
+  private final Map<List<TrackKey>, FusedIndex> mFused = new LinkedHashMap<List<TrackKey>, FusedIndex>(
+      16, 0.75f, true);
+
+  /**
+   * Tracks currently being loaded.
+   */
+  private final Map<TrackKey, FutureTask<TrackIndex>> mLoading = new HashMap<TrackKey, FutureTask<TrackIndex>>();
+
+  private long mMaxSize;
+
+  /**
+   * Most chromosomes to load a track for before loading all of it.
+   */
+  private final int mMaxChrs;
+
+  /**
+   * Most regions to read just the blocks of a BGZF track for.
+   */
+  private final int mMaxRegions;
+  private long mSize = 0;
+  private long mHits = 0;
+  private long mMisses = 0;
+
+  private TrackCache() {
+    mMaxSize = AnnotationSettings.getInt(AnnotationSettings.CACHE_MAX_SIZE_MB,
+        (int) (Runtime.getRuntime().maxMemory() / 4 / MB)) * MB;
+
+    mMaxChrs = AnnotationSettings.getInt(AnnotationSettings.LOAD_MAX_CHRS,
+        4);
+
+    mMaxRegions = AnnotationSettings
+        .getInt(AnnotationSettings.LOAD_MAX_REGIONS, 1000);
+  }
+
+  /**
+   * Returns the index for a track file, loading it if it is not cached or
+   * has changed on disk since it was cached.
+   * 
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public TrackIndex getTrack(Path file) throws IOException {
+    return getTrack(file, null);
+  }
+
+  /**
+   * Returns the index for a track file with at least the features on a set
+   * of chromosomes.
+   * 
+   * @param file
+   * @param chrs The chromosomes needed or null for all of them.
+   * @return
+   * @throws IOException
+   */
+  public TrackIndex getTrack(final Path file, Collection<String> chrs)
+      throws IOException {
+    final TrackKey key = TrackKey.create(file);
+
+    if (chrs != null && chrs.size() > mMaxChrs) {
+      chrs = null;
+    }
+
+    FutureTask<TrackIndex> task;
+    boolean load = false;
+
+    synchronized (this) {
+      TrackIndex index = mTracks.get(key);
+
+      if (index != null && index.hasChrs(chrs)) {
+        ++mHits;
+
+        LOG.info("Track cache hit {} (hits {}, misses {})",
+            file,
+            mHits,
+            mMisses);
+
+        return index;
+      }
+
+      ++mMisses;
+
+      task = mLoading.get(key);
+
+      if (task == null) {
+        final Set<String> loadChrs = union(index, chrs);
+
+        task = new FutureTask<TrackIndex>(new Callable<TrackIndex>() {
+          @Override
+          public TrackIndex call() throws IOException {
+            return load(key, loadChrs);
+          }
+        });
+
+        mLoading.put(key, task);
+        load = true;
+      }
+    }
+
+    if (load) {
+      task.run();
+    }
+
+    TrackIndex index;
+
+    try {
+      index = task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      throw new IOException("Interrupted loading " + file, e);
+    } catch (ExecutionException e) {
+      throw toIOException(e);
+    } finally {
+      if (load) {
+        synchronized (this) {
+          mLoading.remove(key);
+        }
+      }
+    }
+
+    if (!index.hasChrs(chrs)) {
+      // Shared a load of other chromosomes so load again with ours added
+      return getTrack(file, chrs);
+    }
+
+    return index;
+  }
+
+  /**
+   * Returns the index for a track file with at least the features
+   * overlapping some regions. If there are only a few regions and the track
+   * is BGZF compressed but not yet indexed, just the blocks overlapping the
+   * regions are read. Such an index is only good for these regions so it is
+   * not cached.
+   * 
+   * @param file
+   * @param chrs The chromosomes needed or null for all of them.
+   * @param regions The regions needed or null if whole chromosomes are
+   *          needed, for example to find the nearest features.
+   * @return
+   * @throws IOException
+   */
+  public TrackIndex getTrack(Path file,
+      Collection<String> chrs,
+      RegionList regions) throws IOException {
+    if (regions != null && regions.size() <= mMaxRegions
+        && !isCached(file, chrs)) {
+      TrackIndex index = BinaryTrackIndex.loadRegions(file, regions);
+
+      if (index != null) {
+        return index;
+      }
+    }
+
+    return getTrack(file, chrs);
+  }
+
+  /**
+   * Returns true if a track is cached with at least some chromosomes.
+   * 
+   * @param file
+   * @param chrs
+   * @return
+   * @throws IOException
+   */
+  private synchronized boolean isCached(Path file, Collection<String> chrs)
+      throws IOException {
+    TrackIndex index = mTracks.get(TrackKey.create(file));
+
+    return index != null && index.hasChrs(chrs);
+  }
+
+  /**
+   * Returns the chromosomes to load a track for so that it has both the
+   * chromosomes it already has and those now needed.
+   * 
+   * @param index The cached index or null.
+   * @param chrs
+   * @return The normalized chromosomes or null for all of them.
+   */
+  private Set<String> union(TrackIndex index, Collection<String> chrs) {
+    if (chrs == null || (index != null && index.getChrs() == null)) {
+      return null;
+    }
+
+    Set<String> ret = new HashSet<String>();
+
+    if (index != null) {
+      ret.addAll(index.getChrs());
+    }
+
+    for (String chr : chrs) {
+      ret.add(TrackIndex.normalizeChr(chr));
+    }
+
+    return ret.size() > mMaxChrs ? null : ret;
+  }
+
+  private TrackIndex load(TrackKey key, Set<String> chrs)
+      throws IOException {
+    LOG.info("Loading BED {}", key.getFile());
+
+    long time = System.currentTimeMillis();
+
+    TrackIndex index = BinaryTrackIndex.load(key.getFile(), chrs);
+
+    LOG.info("Loaded {} in {} ms ({} features)",
+        index.getName(),
+        System.currentTimeMillis() - time,
+        index.getFeatureCount());
+
+    put(key, index);
+
+    return index;
+  }
+
+  /**
+   * Returns the cached fused index of some tracks if it has the chromosomes
+   * needed.
+   * 
+   * @param tracks
+   * @param fused Which tracks are merged.
+   * @param chrs
+   * @return The index or null if it is not cached.
+   */
+  public synchronized FusedIndex findFused(List<TrackIndex> tracks,
+      boolean[] fused,
+      Collection<String> chrs) {
+    List<TrackKey> key = fusedKey(tracks, fused, chrs);
+
+    if (key == null) {
+      return null;
+    }
+
+    FusedIndex index = mFused.get(key);
+
+    return index != null && index.hasChrs(chrs) ? index : null;
+  }
+
+  /**
+   * Returns the fused index of some tracks with at least the chromosomes
+   * needed, merging them if it is not cached. Chromosomes already merged
+   * are kept so that annotating a chromosome at a time only merges each
+   * once.
+   * 
+   * @param tracks
+   * @param fused Which tracks are merged.
+   * @param chrs
+   * @return
+   */
+  public FusedIndex getFused(List<TrackIndex> tracks,
+      boolean[] fused,
+      Collection<String> chrs) {
+    List<TrackKey> key;
+    FusedIndex index;
+
+    synchronized (this) {
+      key = fusedKey(tracks, fused, chrs);
+
+      if (key == null) {
+        // Only part of a track is loaded so the index is only good for
+        // these chromosomes and regions
+        return new FusedIndex(tracks, fused, chrs);
+      }
+
+      index = mFused.get(key);
+
+      if (index != null && index.hasChrs(chrs)) {
+        return index;
+      }
+    }
+
+    Set<String> allChrs = new HashSet<String>(chrs);
+
+    if (index != null) {
+      for (String chr : index.getChrs()) {
+        if (hasChr(tracks, fused, chr)) {
+          allChrs.add(chr);
+        }
+      }
+    }
+
+    index = new FusedIndex(tracks, fused, allChrs);
+
+    synchronized (this) {
+      FusedIndex old = mFused.put(key, index);
+
+      if (old != null) {
+        mSize -= old.getSize();
+      }
+
+      mSize += index.getSize();
+
+      evict();
+    }
+
+    return index;
+  }
+
+  /**
+   * Returns the key of the fused index of some tracks.
+   * 
+   * @param tracks
+   * @param fused
+   * @param chrs
+   * @return The key or null if a fused track does not have every feature on
+   *         the chromosomes, in which case its fused index cannot be cached.
+   */
+  private static List<TrackKey> fusedKey(List<TrackIndex> tracks,
+      boolean[] fused,
+      Collection<String> chrs) {
+    List<TrackKey> ret = new ArrayList<TrackKey>(tracks.size());
+
+    for (int t = 0; t < fused.length; ++t) {
+      if (fused[t]) {
+        TrackIndex track = tracks.get(t);
+
+        if (track.getKey() == null || !track.hasChrs(chrs)) {
+          return null;
+        }
+
+        ret.add(track.getKey());
+      } else {
+        ret.add(null);
+      }
+    }
+
+    return ret;
+  }
+
+  private static boolean hasChr(List<TrackIndex> tracks,
+      boolean[] fused,
+      String chr) {
+    Collection<String> chrs = Collections.singleton(chr);
+
+    for (int t = 0; t < fused.length; ++t) {
+      if (fused[t] && !tracks.get(t).hasChrs(chrs)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the indexes of several tracks, loading any that are not cached
+   * concurrently.
+   * 
+   * @param files
+   * @param threads Maximum number of tracks to load at once.
+   * @return The indexes in the same order as the files.
+   * @throws IOException
+   */
+  public List<TrackIndex> getTracks(List<Path> files, int threads)
+      throws IOException {
+    return getTracks(files, threads, null);
+  }
+
+  /**
+   * Returns the indexes of several tracks, loading any that are not cached
+   * concurrently and reporting each as it is loaded.
+   * 
+   * @param files
+   * @param threads Maximum number of tracks to load at once.
+   * @param listener Optional listener, may be null.
+   * @return The indexes in the same order as the files or null if loading
+   *         was cancelled.
+   * @throws IOException
+   */
+  public List<TrackIndex> getTracks(List<Path> files,
+      int threads,
+      AnnotationListener listener) throws IOException {
+    return getTracks(files, null, threads, listener);
+  }
+
+  /**
+   * Returns the indexes of several tracks with at least the features on a
+   * set of chromosomes, loading any that are not cached concurrently and
+   * reporting each as it is loaded.
+   * 
+   * @param files
+   * @param chrs The chromosomes needed or null for all of them.
+   * @param threads Maximum number of tracks to load at once.
+   * @param listener Optional listener, may be null.
+   * @return The indexes in the same order as the files or null if loading
+   *         was cancelled.
+   * @throws IOException
+   */
+  public List<TrackIndex> getTracks(List<Path> files,
+      Collection<String> chrs,
+      int threads,
+      AnnotationListener listener) throws IOException {
+    return getTracks(files, chrs, null, threads, listener);
+  }
+
+  /**
+   * Returns the indexes of several tracks with at least the features on a
+   * set of chromosomes, loading any that are not cached concurrently and
+   * reporting each as it is loaded.
+   * 
+   * @param files
+   * @param chrs The chromosomes needed or null for all of them.
+   * @param regions The regions needed or null if whole chromosomes are
+   *          needed.
+   * @param threads Maximum number of tracks to load at once.
+   * @param listener Optional listener, may be null.
+   * @return The indexes in the same order as the files or null if loading
+   *         was cancelled.
+   * @throws IOException
+   */
+  public List<TrackIndex> getTracks(List<Path> files,
+      final Collection<String> chrs,
+      final RegionList regions,
+      int threads,
+      final AnnotationListener listener) throws IOException {
+    List<TrackIndex> ret = new ArrayList<TrackIndex>(files.size());
+
+    if (threads < 2 || files.size() < 2) {
+      for (Path file : files) {
+        if (listener != null && listener.isCancelled()) {
+          return null;
+        }
+
+        TrackIndex index = getTrack(file, chrs, regions);
+
+        if (listener != null) {
+          listener.trackLoaded(index);
+        }
+
+        ret.add(index);
+      }
+
+      return ret;
+    }
+
+    long time = System.currentTimeMillis();
+
+    ExecutorService pool = Executors
+        .newFixedThreadPool(Math.min(threads, files.size()));
+
+    try {
+      List<Future<TrackIndex>> futures = new ArrayList<Future<TrackIndex>>();
+
+      for (final Path file : files) {
+        futures.add(pool.submit(new Callable<TrackIndex>() {
+          @Override
+          public TrackIndex call() throws IOException {
+            if (listener != null && listener.isCancelled()) {
+              return null;
+            }
+
+            TrackIndex index = getTrack(file, chrs, regions);
+
+            if (listener != null) {
+              listener.trackLoaded(index);
+            }
+
+            return index;
+          }
+        }));
+      }
+
+      for (Future<TrackIndex> future : futures) {
+        ret.add(future.get());
+      }
+
+      if (listener != null && listener.isCancelled()) {
+        return null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+
+      throw new IOException("Interrupted loading tracks", e);
+    } catch (ExecutionException e) {
+      throw toIOException(e);
+    } finally {
+      pool.shutdownNow();
+    }
+
+    LOG.info("Loaded {} tracks in {} ms",
+        files.size(),
+        System.currentTimeMillis() - time);
+
+    return ret;
+  }
+
+  private static IOException toIOException(ExecutionException e) {
+    if (e.getCause() instanceof IOException) {
+      return (IOException) e.getCause();
+    } else {
+      return new IOException(e.getCause());
+    }
+  }
+
+  private synchronized void put(TrackKey key, TrackIndex index) {
+    // Older versions of the same file can never be hit again
+    Iterator<Entry<TrackKey, TrackIndex>> iter = mTracks.entrySet()
+        .iterator();
+
+    while (iter.hasNext()) {
+      Entry<TrackKey, TrackIndex> e = iter.next();
+
+      if (e.getKey().getFile().equals(key.getFile())) {
+        mSize -= size(e.getValue());
+        iter.remove();
+      }
+    }
+
+    Iterator<Entry<List<TrackKey>, FusedIndex>> fusedIter = mFused
+        .entrySet().iterator();
+
+    while (fusedIter.hasNext()) {
+      Entry<List<TrackKey>, FusedIndex> e = fusedIter.next();
+
+      for (TrackKey k : e.getKey()) {
+        if (k != null && k.getFile().equals(key.getFile())
+            && !k.equals(key)) {
+          mSize -= e.getValue().getSize();
+          fusedIter.remove();
+          break;
+        }
+      }
+    }
+
+    mTracks.put(key, index);
+    mSize += size(index);
+
+    evict();
+  }
+
+  /**
+   * Returns the memory an index takes up in the cache. A direct buffer
+   * counts as well as the heap since it is not backed by a file that the
+   * operating system can page out.
+   * 
+   * @param index
+   * @return
+   */
+  private static long size(TrackIndex index) {
+    return index.getHeapSize() + index.getDirectSize();
+  }
+
+  /**
+   * Remove least recently used fused indexes and then tracks until the
+   * cache is within budget. The most recently added track is always kept
+   * even if on its own it exceeds the budget.
+   */
+  private void evict() {
+    Iterator<Entry<List<TrackKey>, FusedIndex>> fusedIter = mFused
+        .entrySet().iterator();
+
+    while (mSize > mMaxSize && fusedIter.hasNext()) {
+      Entry<List<TrackKey>, FusedIndex> e = fusedIter.next();
+
+      LOG.info("Evicting fused index ({} MB)", e.getValue().getSize() / MB);
+
+      mSize -= e.getValue().getSize();
+      fusedIter.remove();
+    }
+
+    Iterator<Entry<TrackKey, TrackIndex>> iter = mTracks.entrySet()
+        .iterator();
+
+    while (mSize > mMaxSize && mTracks.size() > 1) {
+      Entry<TrackKey, TrackIndex> e = iter.next();
+
+      LOG.info("Evicting track {}", e.getKey());
+
+      mSize -= size(e.getValue());
+      iter.remove();
+    }
+  }
+
+  /**
+   * Remove every track except those in use, and every fused index, for
+   * example when memory is short part way through a large annotation. An
+   * annotation keeps the fused index it is using itself.
+   * 
+   * @param inUse The tracks to keep.
+   * @return The estimated memory freed in bytes.
+   */
+  public synchronized long evictExcept(Collection<TrackIndex> inUse) {
+    long size = mSize;
+
+    for (FusedIndex index : mFused.values()) {
+      mSize -= index.getSize();
+    }
+
+    mFused.clear();
+
+    Iterator<Entry<TrackKey, TrackIndex>> iter = mTracks.entrySet()
+        .iterator();
+
+    while (iter.hasNext()) {
+      Entry<TrackKey, TrackIndex> e = iter.next();
+
+      if (!inUse.contains(e.getValue())) {
+        LOG.info("Evicting track {}", e.getKey());
+
+        mSize -= size(e.getValue());
+        iter.remove();
+      }
+    }
+
+    return size - mSize;
+  }
+
+  /**
+   * Set the maximum estimated memory size of the cache in bytes.
+   * 
+   * @param size
+   */
+  public synchronized void setMaxSize(long size) {
+    mMaxSize = size;
+
+    evict();
+  }
+
+  public synchronized long getMaxSize() {
+    return mMaxSize;
+  }
+
+  /**
+   * Returns the estimated memory size of the cached tracks in bytes.
+   * 
+   * @return
+   */
+  public synchronized long getSize() {
+    return mSize;
+  }
+
+  public synchronized long getHits() {
+    return mHits;
+  }
+
+  public synchronized long getMisses() {
+    return mMisses;
+  }
+
+  /**
+   * Remove all tracks and fused indexes from the cache.
+   */
+  public synchronized void clear() {
+    mTracks.clear();
+    mFused.clear();
+    mSize = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "tracks: " + mTracks.size() + ", fused: " + mFused.size()
+        + ", size: " + (mSize / MB)
+        + " MB, hits: " + mHits + ", misses: " + mMisses;
+  }
+}
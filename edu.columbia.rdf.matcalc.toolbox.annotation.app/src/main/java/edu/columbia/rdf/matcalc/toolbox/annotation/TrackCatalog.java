@@ -0,0 +1,402 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.swing.SwingUtilities;
+
+import org.jebtk.bioinformatics.ext.ucsc.UCSCTrack;
+import org.jebtk.core.io.FileUtils;
+import org.jebtk.core.io.PathUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The annotation tracks installed in a folder, keyed by track name.
+ *
+ * <p>The name and attributes of each track are kept in a manifest together
+ * with the size and modification time of the track they were read from, so
+ * that only new or changed tracks have to be decompressed to find their
+ * headers.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class TrackCatalog {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(TrackCatalog.class);
+
+  /**
+   * Where annotation tracks are installed.
+   */
+  public static final Path RES_FOLDER = PathUtils
+      .getPath("res/modules/annotation");
+
+  private static final int MAGIC = 0x4D434341;
+
+  private static final int VERSION = 1;
+
+  public static final String MANIFEST = ".catalog";
+
+  /**
+   * Where the manifest is written if the track folder is read only.
+   */
+  private static final Path TMP_DIR = Paths
+      .get(System.getProperty("java.io.tmpdir"), "matcalc-annotation");
+
+  private Map<String, Path> mFiles = new TreeMap<String, Path>();
+
+  private Map<String, Map<String, String>> mAttributes = new TreeMap<String, Map<String, String>>();
+
+  /**
+   * Returns the track files keyed by track name.
+   *
+   * @return
+   */
+  public Map<String, Path> getFiles() {
+    return Collections.unmodifiableMap(mFiles);
+  }
+
+  /**
+   * Returns the track line attributes keyed by track name.
+   *
+   * @return
+   */
+  public Map<String, Map<String, String>> getAttributes() {
+    return Collections.unmodifiableMap(mAttributes);
+  }
+
+  /**
+   * Returns the file of a track or null if there is no such track.
+   *
+   * @param name
+   * @return
+   */
+  public Path getFile(String name) {
+    return mFiles.get(name);
+  }
+
+  private void add(ManifestEntry entry) {
+    mFiles.put(entry.mName, entry.mKey.getFile());
+    mAttributes.put(entry.mName, entry.mAttributes);
+  }
+
+  /**
+   * Find the tracks in a folder. Track headers are taken from the manifest
+   * if they are up to date and otherwise read from the tracks, after which
+   * the manifest is updated.
+   *
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  public static TrackCatalog load(Path dir) throws IOException {
+    TrackCatalog catalog = new TrackCatalog();
+
+    if (!FileUtils.exists(dir)) {
+      return catalog;
+    }
+
+    Map<Path, ManifestEntry> manifest = readManifest(dir);
+    Map<Path, ManifestEntry> entries = new LinkedHashMap<Path, ManifestEntry>();
+
+    int stale = 0;
+
+    for (Path file : FileUtils.ls(dir)) {
+      if (!PathUtils.getName(file).endsWith("bed.gz")) {
+        continue;
+      }
+
+      TrackKey key = TrackKey.create(file);
+
+      ManifestEntry entry = manifest.get(key.getFile());
+
+      if (entry == null || !entry.mKey.equals(key)) {
+        entry = readEntry(key);
+
+        ++stale;
+      }
+
+      if (entry != null) {
+        entries.put(key.getFile(), entry);
+        catalog.add(entry);
+      }
+    }
+
+    if (stale > 0 || entries.size() != manifest.size()) {
+      LOG.info("Updated {} of {} tracks in {}", stale, entries.size(), dir);
+
+      writeManifest(dir, entries);
+    }
+
+    return catalog;
+  }
+
+  /**
+   * Find the tracks in a folder using only the manifest, so that startup
+   * does not depend on how many tracks are installed. If there is no
+   * manifest the folder is loaded as normal. Use {@link #refresh(Path)} to
+   * pick up tracks that have changed since the manifest was written.
+   *
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  public static TrackCatalog loadCached(Path dir) throws IOException {
+    Map<Path, ManifestEntry> manifest = readManifest(dir);
+
+    if (manifest.isEmpty()) {
+      return load(dir);
+    }
+
+    TrackCatalog catalog = new TrackCatalog();
+
+    for (ManifestEntry entry : manifest.values()) {
+      catalog.add(entry);
+    }
+
+    return catalog;
+  }
+
+  /**
+   * Check the tracks in a folder against the manifest in the background and
+   * update this catalog on the event dispatch thread once done.
+   *
+   * @param dir
+   */
+  public void refresh(final Path dir) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        final TrackCatalog catalog;
+
+        try {
+          catalog = load(dir);
+        } catch (IOException e) {
+          e.printStackTrace();
+
+          return;
+        }
+
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            mFiles = catalog.mFiles;
+            mAttributes = catalog.mAttributes;
+          }
+        });
+      }
+    }, "annotation-catalog");
+
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Read the header of a track. If the track has already been indexed, its
+   * header is read from the index without decompressing the track.
+   *
+   * @param key
+   * @return The entry or null if the track cannot be read.
+   */
+  private static ManifestEntry readEntry(TrackKey key) {
+    Path file = key.getFile();
+
+    try {
+      TrackIndex index = BinaryTrackIndex.loadIfCurrent(file);
+
+      if (index != null) {
+        return new ManifestEntry(key, index.getName(), index.getAttributes());
+      }
+
+      String name = UCSCTrack.getNameFromTrack(file);
+
+      if (name == null) {
+        LOG.info("{} has no track name", file);
+
+        return null;
+      }
+
+      return new ManifestEntry(key, name, UCSCTrack.getTrackAttributes(file));
+    } catch (IOException e) {
+      e.printStackTrace();
+
+      return null;
+    }
+  }
+
+  private static Path getManifestFile(Path dir) {
+    return dir.resolve(MANIFEST);
+  }
+
+  private static Path getTmpManifestFile(Path dir) {
+    return TMP_DIR.resolve(MANIFEST + "."
+        + Integer.toHexString(dir.toAbsolutePath().normalize().hashCode()));
+  }
+
+  /**
+   * Read the manifest of a folder.
+   *
+   * @param dir
+   * @return The entries keyed by track file, empty if there is no readable
+   *         manifest.
+   */
+  private static Map<Path, ManifestEntry> readManifest(Path dir) {
+    Map<Path, ManifestEntry> ret = new HashMap<Path, ManifestEntry>();
+
+    Path file = getManifestFile(dir);
+    Path tmp = getTmpManifestFile(dir);
+
+    try {
+      // If the folder is read only, the copy in the temp directory will be
+      // the more recent one
+      if (Files.exists(tmp) && (!Files.exists(file)
+          || Files.getLastModifiedTime(tmp)
+              .compareTo(Files.getLastModifiedTime(file)) > 0)) {
+        file = tmp;
+      }
+
+      if (!Files.exists(file)) {
+        return ret;
+      }
+
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Files.newInputStream(file)));
+
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          return ret;
+        }
+
+        Path base = dir.toAbsolutePath().normalize();
+
+        int n = in.readInt();
+
+        for (int i = 0; i < n; ++i) {
+          Path track = base.resolve(in.readUTF());
+          long modified = in.readLong();
+          long size = in.readLong();
+          String name = in.readUTF();
+
+          Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+          int m = in.readInt();
+
+          for (int j = 0; j < m; ++j) {
+            attributes.put(in.readUTF(), in.readUTF());
+          }
+
+          ret.put(track,
+              new ManifestEntry(new TrackKey(track, modified, size), name,
+                  attributes));
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // Truncated or otherwise unreadable so rebuild it
+      LOG.info("Cannot read {}", file);
+
+      ret.clear();
+    }
+
+    return ret;
+  }
+
+  private static void writeManifest(Path dir,
+      Map<Path, ManifestEntry> entries) {
+    try {
+      writeManifestFile(getManifestFile(dir), entries);
+    } catch (IOException e) {
+      try {
+        Files.createDirectories(TMP_DIR);
+
+        writeManifestFile(getTmpManifestFile(dir), entries);
+      } catch (IOException e2) {
+        e2.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Write the manifest to a temporary file and then move it into place so
+   * that a partially written manifest is never seen.
+   *
+   * @param file
+   * @param entries
+   * @throws IOException
+   */
+  private static void writeManifestFile(Path file,
+      Map<Path, ManifestEntry> entries) throws IOException {
+    Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(),
+        MANIFEST,
+        ".tmp");
+
+    try {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmp)));
+
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+
+        for (ManifestEntry entry : entries.values()) {
+          out.writeUTF(PathUtils.getName(entry.mKey.getFile()));
+          out.writeLong(entry.mKey.getModified());
+          out.writeLong(entry.mKey.getSize());
+          out.writeUTF(entry.mName);
+          out.writeInt(entry.mAttributes.size());
+
+          for (Entry<String, String> e : entry.mAttributes.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+          }
+        }
+      } finally {
+        out.close();
+      }
+
+      try {
+        Files.move(tmp,
+            file,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * The header of a track and the version of the track it was read from.
+   */
+  private static class ManifestEntry {
+    private final TrackKey mKey;
+    private final String mName;
+    private final Map<String, String> mAttributes;
+
+    public ManifestEntry(TrackKey key, String name,
+        Map<String, String> attributes) {
+      mKey = key;
+      mName = name;
+      mAttributes = attributes;
+    }
+  }
+}
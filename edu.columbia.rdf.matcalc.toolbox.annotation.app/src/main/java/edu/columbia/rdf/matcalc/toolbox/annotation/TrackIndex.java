@@ -0,0 +1,287 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.nio.IntBuffer;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A track loaded from a memory mapped binary index. Coordinates and names stay
+ * in the mapped file; only the chromosome directory and track attributes are
+ * held on the heap. An index built in memory, of only some chromosomes or
+ * regions, is held in a direct buffer so that it is off the heap too, unless
+ * annotation.load.off-heap is turned off.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class TrackIndex {
+  private final String mName;
+  private final Map<String, String> mAttributes;
+  private final Map<String, ChrIndex> mChrMap = new HashMap<String, ChrIndex>();
+
+  private final StringTable mNames;
+  private final StringTable mSymbols;
+
+  /**
+   * The symbol id of each name.
+   */
+  private final IntBuffer mNameSymbols;
+
+  /**
+   * The alphabetical rank of each symbol and the symbols in rank order.
+   */
+  private final IntBuffer mSymbolRanks;
+  private final IntBuffer mSymbolsByRank;
+
+  private int mFeatureCount = 0;
+
+  private TrackLoadMetrics mLoadMetrics = new TrackLoadMetrics();
+
+  /**
+   * The version of the track file the index was built from.
+   */
+  private TrackKey mKey = null;
+
+  /**
+   * The normalized chromosomes read from the track, or null if the whole
+   * track was read.
+   */
+  private Set<String> mChrs = null;
+
+  /**
+   * Bytes of the index held on the heap, in a direct buffer and in a mapped
+   * file.
+   */
+  private long mHeapBytes = 0;
+  private long mDirectBytes = 0;
+  private long mMappedBytes = 0;
+
+  public TrackIndex(String name, Map<String, String> attributes,
+      StringTable names, StringTable symbols, IntBuffer nameSymbols,
+      IntBuffer symbolRanks, IntBuffer symbolsByRank) {
+    mName = name;
+    mAttributes = Collections.unmodifiableMap(attributes);
+    mNames = names;
+    mSymbols = symbols;
+    mNameSymbols = nameSymbols;
+    mSymbolRanks = symbolRanks;
+    mSymbolsByRank = symbolsByRank;
+  }
+
+  void addChr(ChrIndex chr) {
+    mChrMap.put(normalizeChr(chr.getChr()), chr);
+    mFeatureCount += chr.size();
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * Returns the attributes from the UCSC track line.
+   * 
+   * @return
+   */
+  public Map<String, String> getAttributes() {
+    return mAttributes;
+  }
+
+  /**
+   * Returns the features on a chromosome or null if the track has none.
+   * 
+   * @param chr
+   * @return
+   */
+  public ChrIndex getChr(String chr) {
+    return mChrMap.get(normalizeChr(chr));
+  }
+
+  public int getFeatureCount() {
+    return mFeatureCount;
+  }
+
+  /**
+   * Decode a name from the dictionary.
+   * 
+   * @param id
+   * @return
+   */
+  public String getName(int id) {
+    return mNames.get(id);
+  }
+
+  /**
+   * Returns the id of the gene symbol of a name, i.e. the part of the name
+   * before the first semicolon.
+   * 
+   * @param nameId
+   * @return
+   */
+  public int getSymbolId(int nameId) {
+    return mNameSymbols.get(nameId);
+  }
+
+  public int getSymbolCount() {
+    return mSymbols.size();
+  }
+
+  /**
+   * Decode a symbol from the dictionary.
+   * 
+   * @param id
+   * @return
+   */
+  public String getSymbol(int id) {
+    return mSymbols.get(id);
+  }
+
+  /**
+   * Returns the position of a symbol when all symbols are sorted
+   * alphabetically.
+   * 
+   * @param id
+   * @return
+   */
+  public int getSymbolRank(int id) {
+    return mSymbolRanks.get(id);
+  }
+
+  public int getSymbolByRank(int rank) {
+    return mSymbolsByRank.get(rank);
+  }
+
+  void setChrs(Set<String> chrs) {
+    mChrs = chrs;
+  }
+
+  /**
+   * Returns the normalized names of the chromosomes read from the track, or
+   * null if the whole track was read.
+   * 
+   * @return
+   */
+  public Set<String> getChrs() {
+    return mChrs;
+  }
+
+  /**
+   * Returns true if the features on a set of chromosomes have been read from
+   * the track.
+   * 
+   * @param chrs The chromosomes or null for all of them.
+   * @return
+   */
+  public boolean hasChrs(Collection<String> chrs) {
+    if (mChrs == null) {
+      return true;
+    }
+
+    if (chrs == null) {
+      return false;
+    }
+
+    for (String chr : chrs) {
+      if (!mChrs.contains(normalizeChr(chr))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  void setHeapBytes(long bytes) {
+    mHeapBytes = bytes;
+  }
+
+  void setDirectBytes(long bytes) {
+    mDirectBytes = bytes;
+  }
+
+  void setMappedBytes(long bytes) {
+    mMappedBytes = bytes;
+  }
+
+  void setKey(TrackKey key) {
+    mKey = key;
+  }
+
+  /**
+   * Returns the version of the track file the index was built from.
+   * 
+   * @return
+   */
+  public TrackKey getKey() {
+    return mKey;
+  }
+
+  void setLoadMetrics(TrackLoadMetrics metrics) {
+    mLoadMetrics = metrics;
+  }
+
+  /**
+   * Returns how long the track took to load.
+   * 
+   * @return
+   */
+  public TrackLoadMetrics getLoadMetrics() {
+    return mLoadMetrics;
+  }
+
+  /**
+   * Returns an estimate of the heap used by the index. The mapped file is not
+   * counted, but an index of only some chromosomes, which is held in memory,
+   * is.
+   * 
+   * @return
+   */
+  public long getHeapSize() {
+    return 1024 + mChrMap.size() * 256 + mHeapBytes;
+  }
+
+  /**
+   * Returns the bytes of an index built in memory that are held in a direct
+   * buffer.
+   * 
+   * @return
+   */
+  public long getDirectSize() {
+    return mDirectBytes;
+  }
+
+  /**
+   * Returns the size of the mapped index file.
+   * 
+   * @return
+   */
+  public long getMappedSize() {
+    return mMappedBytes;
+  }
+
+  /**
+   * Returns the bytes of the index held outside of the heap, either in a
+   * direct buffer or a mapped file.
+   * 
+   * @return
+   */
+  public long getOffHeapSize() {
+    return mDirectBytes + mMappedBytes;
+  }
+
+  /**
+   * Chromosome names are compared ignoring case and any chr prefix so that
+   * 1, chr1 and Chr1 are equivalent.
+   * 
+   * @param chr
+   * @return
+   */
+  public static String normalizeChr(String chr) {
+    if (chr.regionMatches(true, 0, "chr", 0, 3)) {
+      chr = chr.substring(3);
+    }
+
+    return chr.toUpperCase();
+  }
+}
@@ -0,0 +1,73 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Identifies a version of a track file on disk. Two keys are equal only if
+ * they refer to the same path and the file has the same modification time and
+ * size, so editing or replacing a track produces a new key.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class TrackKey {
+  private final Path mFile;
+  private final long mModified;
+  private final long mSize;
+
+  public TrackKey(Path file, long modified, long size) {
+    mFile = file;
+    mModified = modified;
+    mSize = size;
+  }
+
+  /**
+   * Create a key from the current state of a file.
+   * 
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static TrackKey create(Path file) throws IOException {
+    Path p = file.toAbsolutePath().normalize();
+
+    return new TrackKey(p, Files.getLastModifiedTime(p).toMillis(),
+        Files.size(p));
+  }
+
+  public Path getFile() {
+    return mFile;
+  }
+
+  public long getModified() {
+    return mModified;
+  }
+
+  public long getSize() {
+    return mSize;
+  }
+
+  @Override
+  public int hashCode() {
+    return mFile.hashCode() ^ Long.hashCode(mModified) ^ Long.hashCode(mSize);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof TrackKey)) {
+      return false;
+    }
+
+    TrackKey k = (TrackKey) o;
+
+    return mFile.equals(k.mFile) && mModified == k.mModified
+        && mSize == k.mSize;
+  }
+
+  @Override
+  public String toString() {
+    return mFile + " [" + mModified + ", " + mSize + "]";
+  }
+}
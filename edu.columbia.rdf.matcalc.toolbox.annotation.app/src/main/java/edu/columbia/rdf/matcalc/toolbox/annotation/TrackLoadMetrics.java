@@ -0,0 +1,98 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * How long it took to load a track. If the index had to be built, this
+ * includes the time spent decompressing and parsing the BED file and
+ * building the index, otherwise just the time to map the existing index.
+ * Times are in nanoseconds.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class TrackLoadMetrics {
+  private boolean mBuilt = false;
+  private long mDecompressTime = 0;
+  private long mParseTime = 0;
+  private long mIndexTime = 0;
+  private long mMapTime = 0;
+  private long mBytesRead = 0;
+  private long mBytesDecompressed = 0;
+
+  /**
+   * Set once the load has been counted in a run so that a cached track is
+   * not counted again by later runs.
+   */
+  private final AtomicBoolean mReported = new AtomicBoolean();
+
+  /**
+   * Record reading the track to build the index.
+   *
+   * @param decompressTime
+   * @param parseTime
+   * @param bytesRead Bytes read from the track file.
+   * @param bytesDecompressed Bytes once decompressed.
+   */
+  void setParse(long decompressTime,
+      long parseTime,
+      long bytesRead,
+      long bytesDecompressed) {
+    mBuilt = true;
+    mDecompressTime = decompressTime;
+    mParseTime = parseTime;
+    mBytesRead = bytesRead;
+    mBytesDecompressed = bytesDecompressed;
+  }
+
+  void setIndexTime(long time) {
+    mIndexTime = time;
+  }
+
+  void setMapTime(long time) {
+    mMapTime = time;
+  }
+
+  /**
+   * Whether the index was built rather than an existing one mapped.
+   *
+   * @return
+   */
+  public boolean getBuilt() {
+    return mBuilt;
+  }
+
+  public long getDecompressTime() {
+    return mDecompressTime;
+  }
+
+  public long getParseTime() {
+    return mParseTime;
+  }
+
+  public long getIndexTime() {
+    return mIndexTime;
+  }
+
+  public long getMapTime() {
+    return mMapTime;
+  }
+
+  public long getBytesRead() {
+    return mBytesRead;
+  }
+
+  public long getBytesDecompressed() {
+    return mBytesDecompressed;
+  }
+
+  /**
+   * Returns true the first time it is called, so that the cost of loading a
+   * track is only attributed to the run that loaded it.
+   *
+   * @return
+   */
+  public boolean claim() {
+    return mReported.compareAndSet(false, true);
+  }
+}
@@ -0,0 +1,358 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable copy of the options chosen for a track so that they can be read
+ * off the Swing thread while annotating.
+ * 
+ * @author Antony Holmes
+ *
+ */
+public class TrackOptions {
+  private final String mName;
+  private final boolean mAll;
+  private final boolean mAlphabetical;
+  private final boolean mCount;
+  private final boolean mOverlapCount;
+  private final boolean mFirstN;
+  private final int mFirstNCount;
+  private final boolean mNearest;
+  private final int mNearestCount;
+  private final boolean mDistance;
+  private final int mMaxDistance;
+  private final boolean mBounds;
+  private final boolean mLocations;
+  private final boolean mCondense;
+
+  /**
+   * Collects the options for a track. Everything is off until set.
+   */
+  public static class Builder {
+    private final String mName;
+    private boolean mAll = false;
+    private boolean mAlphabetical = false;
+    private boolean mCount = false;
+    private boolean mOverlapCount = false;
+    private boolean mFirstN = false;
+    private int mFirstNCount = 1;
+    private boolean mNearest = false;
+    private int mNearestCount = 1;
+    private boolean mDistance = false;
+    private int mMaxDistance = 0;
+    private boolean mBounds = false;
+    private boolean mLocations = false;
+    private boolean mCondense = false;
+
+    public Builder(String name) {
+      mName = name;
+    }
+
+    public Builder all(boolean all) {
+      mAll = all;
+      return this;
+    }
+
+    public Builder alphabetical(boolean alphabetical) {
+      mAlphabetical = alphabetical;
+      return this;
+    }
+
+    public Builder count(boolean count) {
+      mCount = count;
+      return this;
+    }
+
+    public Builder overlapCount(boolean overlapCount) {
+      mOverlapCount = overlapCount;
+      return this;
+    }
+
+    public Builder firstN(boolean firstN) {
+      mFirstN = firstN;
+      return this;
+    }
+
+    public Builder firstNCount(int count) {
+      mFirstNCount = count;
+      return this;
+    }
+
+    public Builder nearest(boolean nearest) {
+      mNearest = nearest;
+      return this;
+    }
+
+    public Builder nearestCount(int count) {
+      mNearestCount = count;
+      return this;
+    }
+
+    public Builder distance(boolean distance) {
+      mDistance = distance;
+      return this;
+    }
+
+    /**
+     * Set how far from a region to look for the nearest features.
+     * 
+     * @param maxDistance The distance or 0 for no limit.
+     * @return
+     */
+    public Builder maxDistance(int maxDistance) {
+      mMaxDistance = maxDistance;
+      return this;
+    }
+
+    public Builder bounds(boolean bounds) {
+      mBounds = bounds;
+      return this;
+    }
+
+    public Builder locations(boolean locations) {
+      mLocations = locations;
+      return this;
+    }
+
+    public Builder condense(boolean condense) {
+      mCondense = condense;
+      return this;
+    }
+
+    public TrackOptions build() {
+      return new TrackOptions(this);
+    }
+  }
+
+  public TrackOptions(AnnotationPanel panel) {
+    this(new Builder(panel.getName()).all(panel.getAddAll())
+        .alphabetical(panel.getAddAlphabetical())
+        .count(panel.getAddCount())
+        .overlapCount(panel.getAddOverlapCount())
+        .firstN(panel.getAddFirstN())
+        .firstNCount(panel.getFirstNCount())
+        .nearest(panel.getAddNearest())
+        .nearestCount(panel.getNearestCount())
+        .distance(panel.getAddDistance())
+        .maxDistance(AnnotationSettings
+            .getInt(AnnotationSettings.NEAREST_MAX_DISTANCE, 0))
+        .bounds(panel.getAddBounds())
+        .locations(panel.getAddLocations())
+        .condense(panel.getCondense()));
+  }
+
+  private TrackOptions(Builder builder) {
+    mName = builder.mName;
+    mAll = builder.mAll;
+    mAlphabetical = builder.mAlphabetical;
+    mCount = builder.mCount;
+    mOverlapCount = builder.mOverlapCount;
+    mFirstN = builder.mFirstN;
+    mFirstNCount = builder.mFirstNCount;
+    mNearest = builder.mNearest;
+    mNearestCount = builder.mNearestCount;
+    mDistance = builder.mDistance;
+    mMaxDistance = builder.mMaxDistance;
+    mBounds = builder.mBounds;
+    mLocations = builder.mLocations;
+    mCondense = builder.mCondense;
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  public boolean getAddAll() {
+    return mAll;
+  }
+
+  public boolean getAddAlphabetical() {
+    return mAlphabetical;
+  }
+
+  public boolean getAddCount() {
+    return mCount;
+  }
+
+  /**
+   * Whether to add the number of overlapping features, counting every
+   * feature rather than distinct symbols or locations.
+   * 
+   * @return
+   */
+  public boolean getAddOverlapCount() {
+    return mOverlapCount;
+  }
+
+  /**
+   * Whether the options need the overlapping features themselves rather than
+   * just how many there are.
+   * 
+   * @return
+   */
+  public boolean getNeedsFeatures() {
+    return mCount || mFirstN || mCondense || mAll || mBounds;
+  }
+
+  /**
+   * Whether the options write out the text of the overlapping features.
+   * 
+   * @return
+   */
+  public boolean getNeedsText() {
+    return mFirstN || mCondense || mAll;
+  }
+
+  public boolean getAddFirstN() {
+    return mFirstN;
+  }
+
+  public int getFirstNCount() {
+    return mFirstNCount;
+  }
+
+  /**
+   * Whether to add the nearest features.
+   * 
+   * @return
+   */
+  public boolean getAddNearest() {
+    return mNearest;
+  }
+
+  /**
+   * Whether the options look beyond the features overlapping a region, so
+   * that the whole of each chromosome of a track is needed.
+   * 
+   * @return
+   */
+  public boolean getNeedsNearest() {
+    return mNearest || mDistance;
+  }
+
+  /**
+   * Returns how many nearest features to report.
+   * 
+   * @return
+   */
+  public int getNearestCount() {
+    return mNearestCount;
+  }
+
+  /**
+   * Whether to add the signed distance to each of the nearest features.
+   * 
+   * @return
+   */
+  public boolean getAddDistance() {
+    return mDistance;
+  }
+
+  /**
+   * Returns how far from a region to look for the nearest features, 0 for no
+   * limit.
+   * 
+   * @return
+   */
+  public int getMaxDistance() {
+    return mMaxDistance;
+  }
+
+  /**
+   * Whether to add the smallest start and largest end of the overlapping
+   * features and how many bases of the region they cover, as numbers.
+   * 
+   * @return
+   */
+  public boolean getAddBounds() {
+    return mBounds;
+  }
+
+  public boolean getAddLocations() {
+    return mLocations;
+  }
+
+  public boolean getCondense() {
+    return mCondense;
+  }
+
+  /**
+   * Add the names of the columns these options create.
+   * 
+   * @param names
+   */
+  public void addColumnNames(List<String> names) {
+    if (mCount) {
+      names.add("num." + mName);
+    }
+
+    if (mOverlapCount) {
+      names.add("overlaps." + mName);
+    }
+
+    if (mFirstN) {
+      names.add("first." + mFirstNCount + "." + mName);
+    }
+
+    if (mNearest) {
+      names.add("nearest." + mNearestCount + "." + mName);
+    }
+
+    if (mDistance) {
+      names.add("nearest." + mNearestCount + ".distance." + mName);
+    }
+
+    if (mBounds) {
+      names.add("start." + mName);
+      names.add("end." + mName);
+      names.add("overlap.bp." + mName);
+    }
+
+    if (mCondense) {
+      names.add("condensed." + mName);
+    }
+
+    if (mAll) {
+      names.add(mName);
+    }
+  }
+
+  /**
+   * Options are equal if they produce the same cells for a region. The name
+   * is ignored since it only changes the column names.
+   */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof TrackOptions)) {
+      return false;
+    }
+
+    TrackOptions t = (TrackOptions) o;
+
+    return mAll == t.mAll && mAlphabetical == t.mAlphabetical
+        && mCount == t.mCount && mOverlapCount == t.mOverlapCount
+        && mFirstN == t.mFirstN && mFirstNCount == t.mFirstNCount
+        && mNearest == t.mNearest && mNearestCount == t.mNearestCount
+        && mDistance == t.mDistance && mMaxDistance == t.mMaxDistance
+        && mBounds == t.mBounds && mLocations == t.mLocations
+        && mCondense == t.mCondense;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(mAll,
+        mAlphabetical,
+        mCount,
+        mOverlapCount,
+        mFirstN,
+        mFirstNCount,
+        mNearest,
+        mNearestCount,
+        mDistance,
+        mMaxDistance,
+        mBounds,
+        mLocations,
+        mCondense);
+  }
+}
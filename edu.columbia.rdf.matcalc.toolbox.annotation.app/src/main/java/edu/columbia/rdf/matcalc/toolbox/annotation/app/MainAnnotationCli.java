@@ -0,0 +1,224 @@
+/**
+ * Copyright 2016 Antony Holmes
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.columbia.rdf.matcalc.toolbox.annotation.app;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+
+import edu.columbia.rdf.matcalc.toolbox.annotation.AnnotationMetrics;
+import edu.columbia.rdf.matcalc.toolbox.annotation.AnnotationSettings;
+import edu.columbia.rdf.matcalc.toolbox.annotation.RegionAnnotator;
+import edu.columbia.rdf.matcalc.toolbox.annotation.StreamAnnotator;
+import edu.columbia.rdf.matcalc.toolbox.annotation.TrackCache;
+import edu.columbia.rdf.matcalc.toolbox.annotation.TrackCatalog;
+import edu.columbia.rdf.matcalc.toolbox.annotation.TrackIndex;
+import edu.columbia.rdf.matcalc.toolbox.annotation.TrackOptions;
+
+/**
+ * Annotates a file from the command line without a display, e.g.
+ * 
+ * <pre>
+ * java -cp annotation.jar edu.columbia.rdf.matcalc.toolbox.annotation.app.MainAnnotationCli \
+ *   -i peaks.bed.gz -o peaks.annotated.txt.gz -t refseq -t enhancers --count --first 10
+ * </pre>
+ */
+public class MainAnnotationCli {
+  private static final String USAGE = "Usage: MainAnnotationCli -i <input> -o <output> -t <track> [-t <track> ...]\n"
+      + "  -i, --input <file>      tab delimited file with a header or a BED file (.gz allowed)\n"
+      + "  -o, --output <file>     output file, gzipped if it ends in .gz\n"
+      + "  -t, --track <name>      track to annotate with, may be repeated\n"
+      + "  -d, --tracks-dir <dir>  folder containing the tracks\n"
+      + "  -l, --list              list the available tracks\n"
+      + "      --all               add all features\n"
+      + "      --count             add the number of features\n"
+      + "      --overlap-count     add the number of overlapping features\n"
+      + "      --first <n>         add the first n features\n"
+      + "      --nearest <k>       add the k nearest features\n"
+      + "      --distance          add the signed distance to the nearest features\n"
+      + "      --max-distance <bp> only look this far for the nearest features\n"
+      + "      --bounds            add the min start, max end and bases covered\n"
+      + "      --condense          add the first and last features\n"
+      + "      --locations         report feature locations rather than names\n"
+      + "      --alphabetical      sort features alphabetically\n"
+      + "      --closest           report the closest features if none overlap\n"
+      + "      --sorted            the input is sorted by chromosome and start\n"
+      + "      --threads <n>       number of threads, 0 for all processors\n";
+
+  public static final void main(String[] args) throws IOException {
+    System.setProperty("java.awt.headless", "true");
+
+    Path input = null;
+    Path output = null;
+    Path dir = TrackCatalog.RES_FOLDER;
+    List<String> names = new ArrayList<String>();
+    boolean list = false;
+    boolean all = false;
+    boolean count = false;
+    boolean overlapCount = false;
+    boolean firstN = false;
+    int firstNCount = 10;
+    boolean nearest = false;
+    int nearestCount = 1;
+    boolean distance = false;
+    int maxDistance = AnnotationSettings
+        .getInt(AnnotationSettings.NEAREST_MAX_DISTANCE, 0);
+    boolean bounds = false;
+    boolean condense = false;
+    boolean locations = false;
+    boolean alphabetical = false;
+    boolean closest = false;
+    boolean sorted = false;
+    int threads = AnnotationSettings.getThreads();
+
+    try {
+      for (int i = 0; i < args.length; ++i) {
+        String arg = args[i];
+
+        if (arg.equals("-i") || arg.equals("--input")) {
+          input = Paths.get(args[++i]);
+        } else if (arg.equals("-o") || arg.equals("--output")) {
+          output = Paths.get(args[++i]);
+        } else if (arg.equals("-t") || arg.equals("--track")) {
+          names.add(args[++i]);
+        } else if (arg.equals("-d") || arg.equals("--tracks-dir")) {
+          dir = Paths.get(args[++i]);
+        } else if (arg.equals("-l") || arg.equals("--list")) {
+          list = true;
+        } else if (arg.equals("--all")) {
+          all = true;
+        } else if (arg.equals("--count")) {
+          count = true;
+        } else if (arg.equals("--overlap-count")) {
+          overlapCount = true;
+        } else if (arg.equals("--first")) {
+          firstN = true;
+          firstNCount = Integer.parseInt(args[++i]);
+        } else if (arg.equals("--nearest")) {
+          nearest = true;
+          nearestCount = Integer.parseInt(args[++i]);
+        } else if (arg.equals("--distance")) {
+          distance = true;
+        } else if (arg.equals("--max-distance")) {
+          maxDistance = Integer.parseInt(args[++i]);
+        } else if (arg.equals("--bounds")) {
+          bounds = true;
+        } else if (arg.equals("--condense")) {
+          condense = true;
+        } else if (arg.equals("--locations")) {
+          locations = true;
+        } else if (arg.equals("--alphabetical")) {
+          alphabetical = true;
+        } else if (arg.equals("--closest")) {
+          closest = true;
+        } else if (arg.equals("--sorted")) {
+          sorted = true;
+        } else if (arg.equals("--threads")) {
+          threads = Integer.parseInt(args[++i]);
+
+          if (threads < 1) {
+            threads = Runtime.getRuntime().availableProcessors();
+          }
+        } else {
+          exit("Unknown option " + arg);
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      exit("Missing value for " + args[args.length - 1]);
+    } catch (NumberFormatException e) {
+      exit(e.getMessage());
+    }
+
+    TrackCatalog catalog = TrackCatalog.load(dir);
+
+    if (list) {
+      for (String name : catalog.getFiles().keySet()) {
+        System.out.println(name + "\t"
+            + catalog.getAttributes().get(name).get("description"));
+      }
+
+      return;
+    }
+
+    if (input == null || output == null || names.isEmpty()) {
+      exit("An input, output and at least one track are required.");
+    }
+
+    if (!all && !count && !overlapCount && !firstN && !nearest && !distance
+        && !bounds && !condense) {
+      // Default to listing every feature
+      all = true;
+    }
+
+    List<Path> files = new ArrayList<Path>();
+    List<TrackOptions> options = new ArrayList<TrackOptions>();
+
+    for (String name : names) {
+      Path file = catalog.getFile(name);
+
+      if (file == null) {
+        exit("There is no track called " + name + " in " + dir);
+      }
+
+      files.add(file);
+      options.add(new TrackOptions.Builder(name).all(all)
+          .alphabetical(alphabetical)
+          .count(count)
+          .overlapCount(overlapCount)
+          .firstN(firstN)
+          .firstNCount(firstNCount)
+          .nearest(nearest)
+          .nearestCount(nearestCount)
+          .distance(distance)
+          .maxDistance(maxDistance)
+          .bounds(bounds)
+          .locations(locations)
+          .condense(condense)
+          .build());
+    }
+
+    AnnotationMetrics metrics = new AnnotationMetrics();
+
+    List<TrackIndex> tracks = TrackCache.getInstance().getTracks(files,
+        threads);
+
+    long time = System.currentTimeMillis();
+
+    RegionAnnotator annotator = new RegionAnnotator(tracks, options, closest);
+
+    annotator.setSorted(sorted);
+
+    StreamAnnotator streamer = new StreamAnnotator(annotator, Genome.HG19,
+        threads);
+
+    streamer.setMetrics(metrics);
+
+    long n = streamer.annotate(input, output);
+
+    System.err.println("Annotated " + n + " lines in "
+        + (System.currentTimeMillis() - time) + " ms.");
+  }
+
+  private static void exit(String message) {
+    System.err.println(message);
+    System.err.println(USAGE);
+    System.exit(1);
+  }
+}
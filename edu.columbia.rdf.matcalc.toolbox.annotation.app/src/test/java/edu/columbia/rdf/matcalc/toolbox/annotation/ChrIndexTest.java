@@ -0,0 +1,412 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks each way of searching a chromosome index against a scan of every
+ * feature. Tracks are random but include zero length features (a BED start
+ * equal to its end), features nested inside long ones, features that touch
+ * end to end and queries that touch features at either edge.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class ChrIndexTest {
+  private static final int TRACKS = 200;
+  private static final int QUERIES = 200;
+
+  private Path mDir;
+
+  @Before
+  public void setUp() throws IOException {
+    mDir = Files.createTempDirectory("chrindex");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (Path file : Files.newDirectoryStream(mDir)) {
+      Files.delete(file);
+    }
+
+    Files.delete(mDir);
+  }
+
+  @Test
+  public void testEmptyChr() {
+    IntBuffer empty = IntBuffer.allocate(0);
+
+    ChrIndex chr = new ChrIndex(null, "chr1", empty, empty, empty, empty,
+        empty, 0);
+
+    HitList hits = new HitList();
+
+    chr.overlapping(1, 100, hits);
+    assertEquals(0, hits.size());
+
+    chr.closest(1, 100, hits);
+    assertEquals(0, hits.size());
+
+    assertEquals(0, chr.nearest(1, 100, 5, 0, hits));
+    assertEquals(0, hits.size());
+
+    assertEquals(0, chr.countOverlapping(1, 100));
+
+    new SweepCursor().overlapping(chr, 1, 100, hits);
+    assertEquals(0, hits.size());
+  }
+
+  @Test
+  public void testOverlapping() throws IOException {
+    Random random = new Random(1);
+
+    for (int n = 1; n <= TRACKS; ++n) {
+      ChrIndex chr = createChr(random, n);
+
+      HitList hits = new HitList();
+
+      for (int q = 0; q < QUERIES; ++q) {
+        int[] query = createQuery(random, chr);
+
+        hits.clear();
+        chr.overlapping(query[0], query[1], hits);
+
+        assertEquals(scan(chr, query[0], query[1]), toList(hits));
+      }
+    }
+  }
+
+  @Test
+  public void testCountOverlapping() throws IOException {
+    Random random = new Random(2);
+
+    for (int n = 1; n <= TRACKS; ++n) {
+      ChrIndex chr = createChr(random, n);
+
+      for (int q = 0; q < QUERIES; ++q) {
+        int[] query = createQuery(random, chr);
+
+        assertEquals(scan(chr, query[0], query[1]).size(),
+            chr.countOverlapping(query[0], query[1]));
+      }
+    }
+  }
+
+  @Test
+  public void testSweep() throws IOException {
+    Random random = new Random(3);
+
+    for (int n = 1; n <= TRACKS; ++n) {
+      ChrIndex chr = createChr(random, n);
+
+      int[][] queries = new int[QUERIES][];
+
+      for (int q = 0; q < queries.length; ++q) {
+        queries[q] = createQuery(random, chr);
+      }
+
+      // Sorted queries sweep forward, the originals also reset the cursor
+      // whenever a query starts before the last
+      List<int[]> sorted = toList(queries);
+      sortByStart(sorted);
+
+      List<List<int[]>> orders = new ArrayList<List<int[]>>();
+      orders.add(sorted);
+      orders.add(toList(queries));
+
+      for (List<int[]> order : orders) {
+        SweepCursor cursor = new SweepCursor();
+
+        HitList hits = new HitList();
+
+        for (int[] query : order) {
+          hits.clear();
+          cursor.overlapping(chr, query[0], query[1], hits);
+
+          assertEquals(scan(chr, query[0], query[1]), toList(hits));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testClosest() throws IOException {
+    Random random = new Random(4);
+
+    for (int n = 1; n <= TRACKS; ++n) {
+      ChrIndex chr = createChr(random, n);
+
+      HitList hits = new HitList();
+
+      for (int q = 0; q < QUERIES; ++q) {
+        int[] query = createQuery(random, chr);
+        int start = query[0];
+        int end = query[1];
+
+        hits.clear();
+        chr.closest(start, end, hits);
+
+        List<Integer> overlapping = scan(chr, start, end);
+
+        if (!overlapping.isEmpty()) {
+          assertEquals(overlapping, toList(hits));
+          continue;
+        }
+
+        int beforeDist = Integer.MAX_VALUE;
+        int afterDist = Integer.MAX_VALUE;
+
+        for (int i = 0; i < chr.size(); ++i) {
+          if (chr.getEnd(i) < start) {
+            beforeDist = Math.min(beforeDist, start - chr.getEnd(i));
+          } else {
+            afterDist = Math.min(afterDist, chr.getStart(i) - end);
+          }
+        }
+
+        int expected = (beforeDist <= afterDist ? 1 : 0)
+            + (afterDist <= beforeDist ? 1 : 0);
+
+        assertEquals(expected, hits.size());
+
+        int best = Math.min(beforeDist, afterDist);
+
+        for (int i = 0; i < hits.size(); ++i) {
+          assertEquals(best,
+              Math.abs(chr.getDistance(start, end, hits.get(i))));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNearest() throws IOException {
+    Random random = new Random(5);
+
+    for (int n = 1; n <= TRACKS; ++n) {
+      ChrIndex chr = createChr(random, n);
+
+      HitList hits = new HitList();
+
+      for (int q = 0; q < QUERIES; ++q) {
+        int[] query = createQuery(random, chr);
+        int start = query[0];
+        int end = query[1];
+
+        int k = 1 + random.nextInt(5);
+        int maxDistance = random.nextBoolean() ? 0 : random.nextInt(500);
+
+        hits.clear();
+        int added = chr.nearest(start, end, k, maxDistance, hits);
+
+        List<Integer> overlapping = scan(chr, start, end);
+
+        // Distances of every feature not overlapping, within range
+        List<Integer> distances = new ArrayList<Integer>();
+
+        for (int i = 0; i < chr.size(); ++i) {
+          int d = Math.abs(chr.getDistance(start, end, i));
+
+          if (d > 0 && (maxDistance < 1 || d <= maxDistance)) {
+            distances.add(d);
+          }
+        }
+
+        Collections.sort(distances);
+
+        int expected = Math.min(k, distances.size());
+
+        assertEquals(expected, added);
+        assertEquals(overlapping.size() + expected, hits.size());
+
+        for (int i = 0; i < overlapping.size(); ++i) {
+          assertEquals(overlapping.get(i), (Integer) hits.get(i));
+        }
+
+        // Ties may be broken either way so only the distances must match
+        for (int i = 0; i < expected; ++i) {
+          assertEquals(distances.get(i),
+              (Integer) Math.abs(chr.getDistance(start,
+                  end,
+                  hits.get(overlapping.size() + i))));
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a random BED track with n features on chr1 and index it.
+   *
+   * @param random
+   * @param n
+   * @return
+   * @throws IOException
+   */
+  private ChrIndex createChr(Random random, int n) throws IOException {
+    Path bed = mDir.resolve("track" + n + ".bed");
+
+    int length = 100 + n * 20;
+
+    BufferedWriter writer = Files.newBufferedWriter(bed,
+        StandardCharsets.UTF_8);
+
+    try {
+      writer.write("track name=\"track" + n + "\"");
+      writer.newLine();
+
+      int last = random.nextInt(length);
+
+      for (int i = 0; i < n; ++i) {
+        // BED starts are 0-based and ends are exclusive
+        int start;
+        int end;
+
+        switch (random.nextInt(6)) {
+        case 0:
+          // Zero length
+          start = random.nextInt(length);
+          end = start;
+          break;
+        case 1:
+          // Long, so that later features are nested inside it
+          start = random.nextInt(length);
+          end = start + length / 2 + random.nextInt(length);
+          break;
+        case 2:
+          // Starting where the last one ended
+          start = last;
+          end = start + 1 + random.nextInt(20);
+          break;
+        default:
+          start = random.nextInt(length);
+          end = start + 1 + random.nextInt(30);
+          break;
+        }
+
+        last = end;
+
+        writer.write("chr1\t" + start + "\t" + end + "\tf" + i);
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+
+    TrackIndex track = BinaryTrackIndex.load(bed);
+
+    ChrIndex chr = track.getChr("chr1");
+
+    assertNotNull(chr);
+    assertEquals(n, chr.size());
+
+    return chr;
+  }
+
+  /**
+   * Returns a random query, often starting or ending exactly at the edge of
+   * a feature.
+   *
+   * @param random
+   * @param chr
+   * @return
+   */
+  private static int[] createQuery(Random random, ChrIndex chr) {
+    int f = random.nextInt(chr.size());
+
+    int start;
+    int end;
+
+    switch (random.nextInt(4)) {
+    case 0:
+      // Starting on the last base of a feature
+      start = chr.getEnd(f);
+      end = start + random.nextInt(10);
+      break;
+    case 1:
+      // Ending on the first base of a feature
+      end = chr.getStart(f);
+      start = end - random.nextInt(10);
+      break;
+    case 2:
+      // Just missing a feature on the left
+      start = chr.getEnd(f) + 1;
+      end = start + random.nextInt(10);
+      break;
+    default:
+      start = 1 + random.nextInt(chr.getEnd(chr.size() - 1) + 50);
+      end = start + random.nextInt(60);
+      break;
+    }
+
+    start = Math.max(1, start);
+
+    assertTrue(end >= start);
+
+    return new int[] { start, end };
+  }
+
+  /**
+   * Returns the ordinals of the features overlapping a region by checking
+   * every feature.
+   *
+   * @param chr
+   * @param start
+   * @param end
+   * @return
+   */
+  private static List<Integer> scan(ChrIndex chr, int start, int end) {
+    List<Integer> ret = new ArrayList<Integer>();
+
+    for (int i = 0; i < chr.size(); ++i) {
+      if (chr.getStart(i) <= end && chr.getEnd(i) >= start) {
+        ret.add(i);
+      }
+    }
+
+    return ret;
+  }
+
+  private static List<Integer> toList(HitList hits) {
+    List<Integer> ret = new ArrayList<Integer>(hits.size());
+
+    for (int i = 0; i < hits.size(); ++i) {
+      ret.add(hits.get(i));
+    }
+
+    return ret;
+  }
+
+  private static List<int[]> toList(int[][] queries) {
+    List<int[]> ret = new ArrayList<int[]>(queries.length);
+
+    Collections.addAll(ret, queries);
+
+    return ret;
+  }
+
+  private static void sortByStart(List<int[]> queries) {
+    Collections.sort(queries, new Comparator<int[]>() {
+      @Override
+      public int compare(int[] q1, int[] q2) {
+        return Integer.compare(q1[0], q2[0]);
+      }
+    });
+  }
+}
@@ -0,0 +1,467 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips BGZF tracks and their tabix indexes: compressed tracks are
+ * checked with the JDK's gzip reader, a tabix index laid out as tabix
+ * writes it is read back, and indexes built here are written, read again
+ * and used to load the features overlapping random regions, which are
+ * checked against a scan of the whole track.
+ *
+ * @author Antony Holmes
+ *
+ */
+public class TabixIndexTest {
+  /**
+   * The empty block that ends every BGZF file, from the SAM specification.
+   */
+  private static final byte[] EOF = { 0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0,
+      (byte) 0xFF, 6, 0, 'B', 'C', 2, 0, 0x1B, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0,
+      0 };
+
+  private Path mDir;
+
+  @Before
+  public void setUp() throws IOException {
+    mDir = Files.createTempDirectory("tabix");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (Path file : Files.newDirectoryStream(mDir)) {
+      Files.delete(file);
+    }
+
+    Files.delete(mDir);
+  }
+
+  @Test
+  public void testBgzfRoundTrip() throws IOException {
+    Random random = new Random(1);
+
+    // Enough lines to fill several blocks
+    List<String> lines = new ArrayList<String>();
+
+    StringBuilder text = new StringBuilder();
+
+    for (int i = 0; i < 20000; ++i) {
+      String line = "chr1\t" + random.nextInt() + "\tline" + i;
+
+      lines.add(line);
+      text.append(line).append('\n');
+    }
+
+    byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+
+    Path file = mDir.resolve("lines.gz");
+
+    writeBgzf(file, text.toString());
+
+    assertTrue(BgzfInputStream.isBgzf(file));
+
+    // Any gzip reader can read BGZF
+    assertArrayEquals(bytes, readGzip(file));
+
+    byte[] all = Files.readAllBytes(file);
+
+    assertArrayEquals(EOF,
+        Arrays.copyOfRange(all, all.length - EOF.length, all.length));
+
+    // Read every line, remembering where each starts
+    long[] offsets = new long[lines.size()];
+
+    BgzfInputStream in = new BgzfInputStream(file);
+
+    try {
+      for (int i = 0; i < lines.size(); ++i) {
+        offsets[i] = in.getVirtualOffset();
+
+        assertEquals(lines.get(i), in.readLine());
+      }
+
+      assertNull(in.readLine());
+
+      assertTrue(offsets[lines.size() - 1] >>> 16 > 0);
+
+      // Seek back to lines in any order
+      for (int k = 0; k < 1000; ++k) {
+        int i = random.nextInt(lines.size());
+
+        in.seek(offsets[i]);
+
+        assertEquals(lines.get(i), in.readLine());
+      }
+    } finally {
+      in.close();
+    }
+
+    // Plain gzip is not BGZF
+    Path gzip = mDir.resolve("lines.txt.gz");
+
+    OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzip));
+
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+
+    assertFalse(BgzfInputStream.isBgzf(gzip));
+  }
+
+  @Test
+  public void testReadTabixIndex() throws IOException {
+    String[] lines = { "chr1\t10\t20\ta", "chr1\t15\t30\tb",
+        "chr1\t100\t200\tc", "chr2\t100000\t100010\td" };
+
+    StringBuilder text = new StringBuilder();
+
+    // Offsets of each line in the single block, which has address 0
+    long[] offsets = new long[lines.length + 1];
+
+    for (int i = 0; i < lines.length; ++i) {
+      offsets[i] = text.length();
+      text.append(lines[i]).append('\n');
+    }
+
+    offsets[lines.length] = text.length();
+
+    Path track = mDir.resolve("known.bed.gz");
+
+    writeBgzf(track, text.toString());
+
+    // The index as tabix -p bed writes it, including the pseudo bin that
+    // htslib adds to each reference with its offsets and feature counts
+    ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+    b.put("TBI".getBytes(StandardCharsets.US_ASCII)).put((byte) 1);
+    b.putInt(2); // references
+    b.putInt(0x10000); // generic format, 0-based
+    b.putInt(1).putInt(2).putInt(3); // chr, start and end columns
+    b.putInt('#').putInt(0); // meta character and lines to skip
+    b.putInt(10).put("chr1\0chr2\0".getBytes(StandardCharsets.US_ASCII));
+
+    // chr1: every feature is in the first 16 kb bin
+    b.putInt(2);
+    b.putInt(4681).putInt(1).putLong(offsets[0]).putLong(offsets[3]);
+    b.putInt(37450).putInt(2).putLong(offsets[0]).putLong(offsets[3])
+        .putLong(3).putLong(0);
+    b.putInt(1).putLong(offsets[0]);
+
+    // chr2: one feature in the seventh 16 kb bin, earlier windows point at
+    // the first feature
+    b.putInt(2);
+    b.putInt(4681 + 6).putInt(1).putLong(offsets[3]).putLong(offsets[4]);
+    b.putInt(37450).putInt(2).putLong(offsets[3]).putLong(offsets[4])
+        .putLong(1).putLong(0);
+    b.putInt(7);
+
+    for (int i = 0; i < 7; ++i) {
+      b.putLong(offsets[3]);
+    }
+
+    Path tbi = TabixIndex.getIndexFile(track);
+
+    writeBgzf(tbi, Arrays.copyOf(b.array(), b.position()));
+
+    // The index must be newer than the track to be used
+    Files.setLastModifiedTime(tbi,
+        FileTime.fromMillis(Files.getLastModifiedTime(track).toMillis()
+            + 1000));
+
+    TabixIndex index = TabixIndex.load(track);
+
+    assertEquals(Arrays.asList("chr1", "chr2"), index.getChrs());
+
+    assertChunks(index, "chr1", 1, 1000, offsets[0], offsets[3]);
+    assertChunks(index, "1", 150, 150, offsets[0], offsets[3]);
+    assertChunks(index, "chr2", 100001, 100001, offsets[3], offsets[4]);
+    assertChunks(index, "chr2", 1, 50);
+    assertChunks(index, "chr3", 1, 1000);
+
+    // Loading regions through the index finds only their features
+    RegionList regions = new RegionList(2);
+    regions.set(0, "chr1", 16, 16);
+    regions.set(1, "chr2", 100005, 100005);
+
+    TrackIndex features = BinaryTrackIndex.loadRegions(track, regions);
+
+    assertNotNull(features);
+
+    assertEquals(Arrays.asList("a", "b"), overlapping(features, "chr1", 16, 16));
+    assertEquals(Arrays.asList("d"),
+        overlapping(features, "chr2", 100005, 100005));
+    assertEquals(3, features.getFeatureCount());
+  }
+
+  @Test
+  public void testBuildTabixIndex() throws IOException {
+    Random random = new Random(2);
+
+    String[] chrs = { "chr1", "chr2", "chrX" };
+
+    List<Feature> features = new ArrayList<Feature>();
+
+    StringBuilder text = new StringBuilder();
+
+    text.append("track name=\"features\"\n");
+
+    int n = 0;
+
+    for (String chr : chrs) {
+      int start = 0;
+
+      for (int i = 0; i < 20000; ++i) {
+        start += random.nextInt(2000);
+
+        // Mostly short features with some spanning several bins
+        int length = random.nextInt(50) == 0 ? random.nextInt(1000000)
+            : random.nextInt(500);
+
+        Feature f = new Feature(chr, start, start + length, "f" + n++);
+
+        features.add(f);
+
+        text.append(f.mChr).append('\t').append(f.mStart).append('\t')
+            .append(f.mEnd).append('\t').append(f.mName).append('\n');
+      }
+    }
+
+    Path track = mDir.resolve("features.bed.gz");
+
+    writeBgzf(track, text.toString());
+
+    TabixIndex built = TabixIndex.load(track);
+
+    assertTrue(Files.exists(TabixIndex.getIndexFile(track)));
+
+    TabixIndex read = TabixIndex.load(track);
+
+    assertEquals(built.getChrs(), read.getChrs());
+
+    RegionList regions = new RegionList(200);
+
+    for (int i = 0; i < regions.size(); ++i) {
+      String chr = chrs[random.nextInt(chrs.length)];
+      int start = 1 + random.nextInt(41000000);
+      int end = start + random.nextInt(random.nextBoolean() ? 100 : 100000);
+
+      regions.set(i, chr, start, end);
+
+      // The index read back must give the same chunks as the one built
+      List<long[]> c1 = new ArrayList<long[]>();
+      List<long[]> c2 = new ArrayList<long[]>();
+
+      built.addChunks(chr, start, end, c1);
+      read.addChunks(chr, start, end, c2);
+
+      assertEquals(toString(TabixIndex.merge(c1)),
+          toString(TabixIndex.merge(c2)));
+    }
+
+    TrackIndex index = BinaryTrackIndex.loadRegions(track, regions);
+
+    assertNotNull(index);
+
+    for (int i = 0; i < regions.size(); ++i) {
+      String chr = regions.getChr(i);
+      int start = regions.getStart(i);
+      int end = regions.getEnd(i);
+
+      List<String> expected = new ArrayList<String>();
+
+      for (Feature f : features) {
+        // BED starts are 0-based
+        if (f.mChr.equals(chr) && f.mStart + 1 <= end && f.mEnd >= start) {
+          expected.add(f.mName);
+        }
+      }
+
+      List<String> found = overlapping(index, chr, start, end);
+
+      Collections.sort(expected);
+      Collections.sort(found);
+
+      assertEquals(expected, found);
+    }
+  }
+
+  @Test
+  public void testUnsortedTrack() throws IOException {
+    Path track = mDir.resolve("unsorted.bed.gz");
+
+    writeBgzf(track,
+        "chr1\t500\t600\ta\nchr1\t100\t200\tb\nchr2\t1\t10\tc\n");
+
+    for (int i = 0; i < 2; ++i) {
+      try {
+        TabixIndex.load(track);
+
+        fail("An unsorted track cannot be indexed");
+      } catch (IOException e) {
+        // Expected
+      }
+    }
+
+    assertFalse(Files.exists(TabixIndex.getIndexFile(track)));
+
+    RegionList regions = new RegionList(1);
+    regions.set(0, "chr1", 1, 1000);
+
+    assertNull(BinaryTrackIndex.loadRegions(track, regions));
+
+    // The track is still read in full, sorted by start
+    TrackIndex index = BinaryTrackIndex.load(track,
+        Collections.singleton("chr1"));
+
+    assertEquals(Arrays.asList("b", "a"),
+        overlapping(index, "chr1", 1, 1000));
+  }
+
+  private static void assertChunks(TabixIndex index,
+      String chr,
+      int start,
+      int end,
+      long... expected) {
+    List<long[]> chunks = new ArrayList<long[]>();
+
+    index.addChunks(chr, start, end, chunks);
+
+    List<Long> found = new ArrayList<Long>();
+
+    for (long[] chunk : TabixIndex.merge(chunks)) {
+      found.add(chunk[0]);
+      found.add(chunk[1]);
+    }
+
+    List<Long> e = new ArrayList<Long>();
+
+    for (long v : expected) {
+      e.add(v);
+    }
+
+    assertEquals(e, found);
+  }
+
+  /**
+   * Returns the names of the features of a track overlapping a region, in
+   * start order.
+   *
+   * @param index
+   * @param chr
+   * @param start
+   * @param end
+   * @return
+   */
+  private static List<String> overlapping(TrackIndex index,
+      String chr,
+      int start,
+      int end) {
+    List<String> ret = new ArrayList<String>();
+
+    ChrIndex chrIndex = index.getChr(chr);
+
+    if (chrIndex == null) {
+      return ret;
+    }
+
+    HitList hits = new HitList();
+
+    chrIndex.overlapping(start, end, hits);
+
+    for (int i = 0; i < hits.size(); ++i) {
+      ret.add(chrIndex.getName(hits.get(i)));
+    }
+
+    return ret;
+  }
+
+  private static String toString(List<long[]> chunks) {
+    StringBuilder ret = new StringBuilder();
+
+    for (long[] chunk : chunks) {
+      ret.append(chunk[0]).append('-').append(chunk[1]).append(' ');
+    }
+
+    return ret.toString();
+  }
+
+  private static void writeBgzf(Path file, String text) throws IOException {
+    writeBgzf(file, text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void writeBgzf(Path file, byte[] bytes) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BgzfOutputStream(Files.newOutputStream(file)));
+
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] readGzip(Path file) throws IOException {
+    InputStream in = new GZIPInputStream(Files.newInputStream(file));
+
+    ByteArrayOutputStream ret = new ByteArrayOutputStream();
+
+    try {
+      byte[] buffer = new byte[8192];
+
+      int n;
+
+      while ((n = in.read(buffer)) != -1) {
+        ret.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+
+    return ret.toByteArray();
+  }
+
+  private static class Feature {
+    private final String mChr;
+    private final int mStart;
+    private final int mEnd;
+    private final String mName;
+
+    public Feature(String chr, int start, int end, String name) {
+      mChr = chr;
+      mStart = start;
+      mEnd = end;
+      mName = name;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jebtk.bioinformatics.genomic.Genome;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.columbia.rdf.matcalc.toolbox.annotation.AnnotationBlock;
+import edu.columbia.rdf.matcalc.toolbox.annotation.BinaryTrackIndex;
+import edu.columbia.rdf.matcalc.toolbox.annotation.RegionAnnotator;
+import edu.columbia.rdf.matcalc.toolbox.annotation.RegionList;
+import edu.columbia.rdf.matcalc.toolbox.annotation.StreamAnnotator;
+import edu.columbia.rdf.matcalc.toolbox.annotation.TrackIndex;
+import edu.columbia.rdf.matcalc.toolbox.annotation.TrackOptions;
+
+/**
+ * End to end annotation of a region set with the same headless core used by
+ * the module and the command line, both in memory and streamed from a file.
+ *
+ * @author Antony Holmes
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Djava.awt.headless=true" })
+@State(Scope.Benchmark)
+public class AnnotateBenchmark {
+  @Param({ "1000000" })
+  public int features;
+
+  @Param({ "300" })
+  public double density;
+
+  @Param({ "100000", "1000000" })
+  public int regions;
+
+  @Param({ "1000" })
+  public int length;
+
+  @Param({ "true", "false" })
+  public boolean sorted;
+
+  @Param({ "1", "4" })
+  public int threads;
+
+  /**
+   * Which columns to add: count only, all features or the nearest features
+   * with their distances.
+   */
+  @Param({ "count", "all", "nearest" })
+  public String columns;
+
+  @Param({ "false", "true" })
+  public boolean closest;
+
+  private Path mDir;
+  private RegionList mRegions;
+  private Path mInput;
+  private Path mOutput;
+  private RegionAnnotator mAnnotator;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    mDir = Files.createTempDirectory("annotation-bench");
+
+    TrackIndex track = BinaryTrackIndex.load(
+        SyntheticData.writeTrack(mDir, features, density, 2000, 1));
+
+    mRegions = SyntheticData
+        .createRegions(regions, features, density, length, sorted, 2);
+
+    mInput = mDir.resolve("regions.txt");
+    mOutput = mDir.resolve("regions.annotated.txt");
+
+    SyntheticData.writeRegions(mInput, mRegions);
+
+    boolean count = columns.equals("count");
+    boolean all = columns.equals("all");
+    boolean nearest = columns.equals("nearest");
+
+    List<TrackIndex> tracks = new ArrayList<TrackIndex>();
+    List<TrackOptions> options = new ArrayList<TrackOptions>();
+
+    tracks.add(track);
+    options.add(new TrackOptions.Builder("synthetic").all(all)
+        .count(count)
+        .firstN(all)
+        .firstNCount(10)
+        .nearest(nearest)
+        .nearestCount(5)
+        .distance(nearest)
+        .condense(all)
+        .build());
+
+    mAnnotator = new RegionAnnotator(tracks, options, closest);
+    mAnnotator.setSorted(sorted);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    SyntheticData.delete(mDir);
+  }
+
+  /**
+   * Annotate regions already in memory and build the text of every cell, as
+   * happens when the results are copied into a matrix.
+   *
+   * @param bh
+   */
+  @Benchmark
+  public void annotate(Blackhole bh) {
+    AnnotationBlock[] blocks = mAnnotator.annotate(mRegions, threads);
+
+    for (AnnotationBlock block : blocks) {
+      for (int i = 0; i < block.getRows(); ++i) {
+        for (int j = 0; j < block.getCols(); ++j) {
+          Object v = block.get(i, j);
+
+          if (v != null) {
+            bh.consume(v.toString());
+          }
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public long stream() throws IOException {
+    return new StreamAnnotator(mAnnotator, Genome.HG19, threads)
+        .annotate(mInput, mOutput);
+  }
+}
@@ -0,0 +1,109 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.rdf.matcalc.toolbox.annotation.BinaryTrackIndex;
+import edu.columbia.rdf.matcalc.toolbox.annotation.TrackIndex;
+
+/**
+ * Time to build the binary index of a track from its gzipped BED file and
+ * to map an index that has already been built.
+ *
+ * @author Antony Holmes
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Track {
+    @Param({ "100000", "1000000" })
+    public int features;
+
+    @Param({ "30", "300" })
+    public double density;
+
+    @Param({ "2000" })
+    public int length;
+
+    public Path dir;
+    public Path track;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      dir = Files.createTempDirectory("annotation-bench");
+      track = SyntheticData.writeTrack(dir, features, density, length, 1);
+    }
+
+    /**
+     * Remove the index so that every build starts from the track.
+     *
+     * @throws IOException
+     */
+    @Setup(Level.Invocation)
+    public void deleteIndex() throws IOException {
+      Files.deleteIfExists(BinaryTrackIndex.getIndexFile(track));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      SyntheticData.delete(dir);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class IndexedTrack {
+    @Param({ "100000", "1000000" })
+    public int features;
+
+    @Param({ "300" })
+    public double density;
+
+    public Path dir;
+    public Path track;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      dir = Files.createTempDirectory("annotation-bench");
+      track = SyntheticData.writeTrack(dir, features, density, 2000, 1);
+
+      BinaryTrackIndex.load(track);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      SyntheticData.delete(dir);
+    }
+  }
+
+  @Benchmark
+  public TrackIndex build(Track state) throws IOException {
+    return BinaryTrackIndex.load(state.track);
+  }
+
+  @Benchmark
+  public TrackIndex load(IndexedTrack state) throws IOException {
+    return BinaryTrackIndex.load(state.track);
+  }
+}
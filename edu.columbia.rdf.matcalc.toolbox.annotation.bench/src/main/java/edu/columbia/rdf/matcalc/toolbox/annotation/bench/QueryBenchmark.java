@@ -0,0 +1,169 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.columbia.rdf.matcalc.toolbox.annotation.AnnotationModule;
+import edu.columbia.rdf.matcalc.toolbox.annotation.BinaryTrackIndex;
+import edu.columbia.rdf.matcalc.toolbox.annotation.ChrIndex;
+import edu.columbia.rdf.matcalc.toolbox.annotation.HitList;
+import edu.columbia.rdf.matcalc.toolbox.annotation.RegionList;
+import edu.columbia.rdf.matcalc.toolbox.annotation.SweepCursor;
+import edu.columbia.rdf.matcalc.toolbox.annotation.TrackIndex;
+
+/**
+ * Cost of the individual index queries made for each region, reported per
+ * query.
+ *
+ * @author Antony Holmes
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+  /**
+   * Number of queries made per invocation.
+   */
+  private static final int QUERIES = 65536;
+
+  @Param({ "1000000" })
+  public int features;
+
+  @Param({ "30", "300", "3000" })
+  public double density;
+
+  @Param({ "500", "5000" })
+  public int length;
+
+  @Param({ "true", "false" })
+  public boolean sorted;
+
+  private Path mDir;
+  private ChrIndex[] mChrs;
+  private int[] mStarts;
+  private int[] mEnds;
+  private String[] mNames;
+
+  private final HitList mHits = new HitList();
+  private final SweepCursor mCursor = new SweepCursor();
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    mDir = Files.createTempDirectory("annotation-bench");
+
+    TrackIndex track = BinaryTrackIndex.load(
+        SyntheticData.writeTrack(mDir, features, density, 2000, 1));
+
+    RegionList regions = SyntheticData
+        .createRegions(QUERIES, features, density, length, sorted, 2);
+
+    mChrs = new ChrIndex[QUERIES];
+    mStarts = new int[QUERIES];
+    mEnds = new int[QUERIES];
+    mNames = new String[QUERIES];
+
+    for (int i = 0; i < QUERIES; ++i) {
+      mChrs[i] = track.getChr(regions.getChr(i));
+      mStarts[i] = regions.getStart(i);
+      mEnds[i] = regions.getEnd(i);
+
+      ChrIndex chr = mChrs[i];
+
+      mNames[i] = chr.getName(i % chr.size());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    SyntheticData.delete(mDir);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public void overlapping(Blackhole bh) {
+    for (int i = 0; i < QUERIES; ++i) {
+      mHits.clear();
+      mChrs[i].overlapping(mStarts[i], mEnds[i], mHits);
+      bh.consume(mHits.size());
+    }
+  }
+
+  /**
+   * Overlap queries using the sweep cursor, which is only meaningful for
+   * sorted regions.
+   *
+   * @param bh
+   */
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public void sweep(Blackhole bh) {
+    for (int i = 0; i < QUERIES; ++i) {
+      mHits.clear();
+      mCursor.overlapping(mChrs[i], mStarts[i], mEnds[i], mHits);
+      bh.consume(mHits.size());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public void countOverlapping(Blackhole bh) {
+    for (int i = 0; i < QUERIES; ++i) {
+      bh.consume(mChrs[i].countOverlapping(mStarts[i], mEnds[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public void closest(Blackhole bh) {
+    for (int i = 0; i < QUERIES; ++i) {
+      mHits.clear();
+      mChrs[i].closest(mStarts[i], mEnds[i], mHits);
+      bh.consume(mHits.size());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public void nearest5(Blackhole bh) {
+    for (int i = 0; i < QUERIES; ++i) {
+      mHits.clear();
+      bh.consume(mChrs[i].nearest(mStarts[i], mEnds[i], 5, 0, mHits));
+    }
+  }
+
+  /**
+   * Splitting a feature name to find its symbol, which the index otherwise
+   * does once when it is built.
+   *
+   * @param bh
+   */
+  @Benchmark
+  @OperationsPerInvocation(QUERIES)
+  public void symbol(Blackhole bh) {
+    for (int i = 0; i < QUERIES; ++i) {
+      bh.consume(AnnotationModule.getSymbol(mNames[i]));
+    }
+  }
+}
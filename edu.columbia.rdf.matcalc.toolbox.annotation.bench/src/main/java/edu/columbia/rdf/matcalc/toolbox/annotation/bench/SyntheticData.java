@@ -0,0 +1,261 @@
+package edu.columbia.rdf.matcalc.toolbox.annotation.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import edu.columbia.rdf.matcalc.toolbox.annotation.RegionList;
+
+/**
+ * Generates reproducible genome scale tracks and region sets for the
+ * benchmarks.
+ *
+ * <p>Sizes are given as a number of features and a density in features per
+ * megabase, from which the size of the synthetic genome is derived, so that
+ * the same number of features can be made sparse or crowded. Features are
+ * spread over {@link #CHRS} equally sized chromosomes and have lengths drawn
+ * around a mean with an occasional long feature, similar to genes.
+ *
+ * <p>The benchmarks are run from the shaded jar, e.g.
+ *
+ * <pre>
+ * mvn package
+ * java -jar target/benchmarks.jar AnnotateBenchmark -p sorted=true -p threads=4
+ * </pre>
+ *
+ * @author Antony Holmes
+ *
+ */
+public class SyntheticData {
+  /**
+   * Number of chromosomes, chr1 to chr22 and chrX.
+   */
+  public static final int CHRS = 23;
+
+  /**
+   * Number of distinct gene symbols shared by the features.
+   */
+  private static final int SYMBOLS = 20000;
+
+  private SyntheticData() {
+    // Do nothing
+  }
+
+  /**
+   * Returns the name of a synthetic chromosome.
+   *
+   * @param c A chromosome index between 0 and {@link #CHRS} - 1.
+   * @return
+   */
+  public static String getChr(int c) {
+    return c == CHRS - 1 ? "chrX" : "chr" + (c + 1);
+  }
+
+  /**
+   * Returns the length of each chromosome for a given number of features and
+   * density.
+   *
+   * @param features
+   * @param density Features per megabase.
+   * @return
+   */
+  public static int getChrSize(int features, double density) {
+    return (int) Math.min(Integer.MAX_VALUE / 2,
+        Math.max(1000000L, (long) (features / density * 1000000 / CHRS)));
+  }
+
+  /**
+   * Write a gzipped BED track to a folder, sorted by chromosome and start as
+   * tracks normally are. Names are in the usual symbol;id form.
+   *
+   * @param dir
+   * @param features
+   * @param density Features per megabase.
+   * @param length Mean feature length.
+   * @param seed
+   * @return The track file.
+   * @throws IOException
+   */
+  public static Path writeTrack(Path dir,
+      int features,
+      double density,
+      int length,
+      long seed) throws IOException {
+    Path file = dir.resolve("synthetic." + features + "." + density + "."
+        + length + ".bed.gz");
+
+    Random rnd = new Random(seed);
+
+    int chrSize = getChrSize(features, density);
+
+    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+        new GZIPOutputStream(Files.newOutputStream(file), 65536),
+        StandardCharsets.UTF_8), 65536);
+
+    try {
+      writer.write("track name=\"synthetic\" description=\"Synthetic "
+          + features + " features\"");
+      writer.newLine();
+
+      int id = 0;
+
+      for (int c = 0; c < CHRS; ++c) {
+        int n = features / CHRS + (c < features % CHRS ? 1 : 0);
+
+        int[] starts = new int[n];
+
+        for (int i = 0; i < n; ++i) {
+          starts[i] = rnd.nextInt(chrSize);
+        }
+
+        Arrays.sort(starts);
+
+        String chr = getChr(c);
+
+        for (int i = 0; i < n; ++i) {
+          writer.write(chr);
+          writer.write('\t');
+          writer.write(Integer.toString(starts[i]));
+          writer.write('\t');
+          writer.write(Integer.toString(starts[i] + length(rnd, length)));
+          writer.write('\t');
+          writer.write("GENE" + rnd.nextInt(SYMBOLS));
+          writer.write(";NM_");
+          writer.write(Integer.toString(id++));
+          writer.newLine();
+        }
+      }
+    } finally {
+      writer.close();
+    }
+
+    return file;
+  }
+
+  /**
+   * Create a set of regions over the same synthetic genome as a track.
+   *
+   * @param regions Number of regions.
+   * @param features Number of features in the track.
+   * @param density Features per megabase in the track.
+   * @param length Mean region length.
+   * @param sorted Whether the regions are sorted by chromosome and start.
+   * @param seed
+   * @return
+   */
+  public static RegionList createRegions(int regions,
+      int features,
+      double density,
+      int length,
+      boolean sorted,
+      long seed) {
+    Random rnd = new Random(seed);
+
+    int chrSize = getChrSize(features, density);
+
+    long[] keys = new long[regions];
+
+    for (int i = 0; i < regions; ++i) {
+      keys[i] = ((long) rnd.nextInt(CHRS) << 32) | rnd.nextInt(chrSize);
+    }
+
+    if (sorted) {
+      Arrays.sort(keys);
+    }
+
+    RegionList ret = new RegionList(regions);
+
+    for (int i = 0; i < regions; ++i) {
+      int start = (int) keys[i] + 1;
+
+      ret.set(i,
+          getChr((int) (keys[i] >>> 32)),
+          start,
+          start + length(rnd, length));
+    }
+
+    return ret;
+  }
+
+  /**
+   * Write regions as a tab delimited file with a location column so that
+   * they can be streamed.
+   *
+   * @param file
+   * @param regions
+   * @throws IOException
+   */
+  public static void writeRegions(Path file, RegionList regions)
+      throws IOException {
+    BufferedWriter writer = Files.newBufferedWriter(file,
+        StandardCharsets.UTF_8);
+
+    try {
+      writer.write("id\tlocation");
+      writer.newLine();
+
+      for (int i = 0; i < regions.size(); ++i) {
+        writer.write("region" + i);
+        writer.write('\t');
+        writer.write(regions.getChr(i) + ":" + regions.getStart(i) + "-"
+            + regions.getEnd(i));
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Delete a folder created for a benchmark and the files in it.
+   *
+   * @param dir
+   * @throws IOException
+   */
+  public static void delete(Path dir) throws IOException {
+    List<Path> files = new ArrayList<Path>();
+
+    DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+
+    try {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    } finally {
+      stream.close();
+    }
+
+    for (Path file : files) {
+      Files.deleteIfExists(file);
+    }
+
+    Files.deleteIfExists(dir);
+  }
+
+  /**
+   * Draw a length around a mean, with roughly one in a hundred being fifty
+   * times longer.
+   *
+   * @param rnd
+   * @param mean
+   * @return
+   */
+  private static int length(Random rnd, int mean) {
+    int l = 1 + rnd.nextInt(Math.max(1, 2 * mean));
+
+    if (rnd.nextInt(100) == 0) {
+      l *= 50;
+    }
+
+    return l;
+  }
+}